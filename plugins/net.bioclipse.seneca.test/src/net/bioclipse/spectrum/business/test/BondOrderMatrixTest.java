@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.spectrum.business.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IMolecule;
+import org.openscience.cdk.structgen.BondOrderMatrix;
+
+/**
+ * Checks that the Faulon moves drawn from the bonds of a BondOrderMatrix
+ * have the distribution of the moves RandomGenerator made before, i.e. of
+ * drawing four atoms until they have at least two bonds among them and a
+ * bond order which can change.
+ */
+public class BondOrderMatrixTest {
+
+    private static final int SAMPLES = 200000;
+    private static final int STATES = 5;
+
+    /** A five ring with a double bond and an ethenyl on it */
+    private IMolecule molecule() {
+        IMolecule mol = DefaultChemObjectBuilder.getInstance().newInstance(
+            IMolecule.class);
+        for (int i = 0; i < 7; i++)
+            mol.addAtom(DefaultChemObjectBuilder.getInstance().newInstance(
+                IAtom.class, "C"));
+        mol.addBond(0, 1, IBond.Order.DOUBLE);
+        mol.addBond(1, 2, IBond.Order.SINGLE);
+        mol.addBond(2, 3, IBond.Order.SINGLE);
+        mol.addBond(3, 4, IBond.Order.SINGLE);
+        mol.addBond(4, 0, IBond.Order.SINGLE);
+        mol.addBond(2, 5, IBond.Order.SINGLE);
+        mol.addBond(5, 6, IBond.Order.DOUBLE);
+        return mol;
+    }
+
+    private int outcome(BondOrderMatrix matrix) {
+        int n = matrix.getAtomCount();
+        int x1 = matrix.getMovedAtom(0);
+        int y1 = matrix.getMovedAtom(2);
+        return ((((x1 * n + matrix.getMovedAtom(1)) * n + y1) * n
+            + matrix.getMovedAtom(3)) * 4) + matrix.getOrder(x1, y1);
+    }
+
+    /**
+     * The probability of each move by enumerating all quadruples: uniform
+     * over the quadruples which can be moved, the new order uniform over
+     * the orders x1-y1 can take.
+     */
+    private double[] expected(BondOrderMatrix matrix) {
+        int n = matrix.getAtomCount();
+        double[] p = new double[n * n * n * n * 4];
+        int quadruples = 0;
+        for (int x1 = 0; x1 < n; x1++)
+        for (int x2 = 0; x2 < n; x2++)
+        for (int y1 = 0; y1 < n; y1++)
+        for (int y2 = 0; y2 < n; y2++) {
+            if (x1 == x2 || x1 == y1 || x1 == y2 || x2 == y1 || x2 == y2
+                || y1 == y2)
+                continue;
+            int a11 = matrix.getOrder(x1, y1);
+            int a12 = matrix.getOrder(x1, y2);
+            int a21 = matrix.getOrder(x2, y1);
+            int a22 = matrix.getOrder(x2, y2);
+            int bonds = (a11 > 0 ? 1 : 0) + (a12 > 0 ? 1 : 0)
+                + (a21 > 0 ? 1 : 0) + (a22 > 0 ? 1 : 0);
+            if (bonds < 2)
+                continue;
+            int lower = Math.max(Math.max(0, a11 - a22),
+                                 Math.max(a11 + a12 - 3, a11 + a21 - 3));
+            int upper = Math.min(Math.min(3, a11 + a12),
+                                 Math.min(a11 + a21, a11 - a22 + 3));
+            int choices = upper - lower + (a11 >= lower && a11 <= upper ? 0 : 1);
+            if (choices <= 0)
+                continue;
+            quadruples++;
+            for (int b11 = lower; b11 <= upper; b11++) {
+                if (b11 != a11)
+                    p[(((x1 * n + x2) * n + y1) * n + y2) * 4 + b11] = 1.0 / choices;
+            }
+        }
+        for (int k = 0; k < p.length; k++)
+            p[k] /= quadruples;
+        return p;
+    }
+
+    @Test
+    public void testMoveDistribution() {
+        BondOrderMatrix matrix = new BondOrderMatrix(molecule());
+        Random random = new Random(42);
+        for (int state = 0; state < STATES; state++) {
+            double[] p = expected(matrix);
+            int[] counts = new int[p.length];
+            for (int s = 0; s < SAMPLES; s++) {
+                matrix.move(random);
+                counts[outcome(matrix)]++;
+                matrix.undo();
+            }
+            double chiSquare = 0;
+            int degrees = -1;
+            for (int k = 0; k < p.length; k++) {
+                if (p[k] == 0) {
+                    assertEquals("impossible move drawn", 0, counts[k]);
+                } else {
+                    double e = p[k] * SAMPLES;
+                    chiSquare += (counts[k] - e) * (counts[k] - e) / e;
+                    degrees++;
+                }
+            }
+            // Wilson-Hilferty: the cube root of chi^2/df is nearly normal
+            double v = 2.0 / (9 * degrees);
+            double z = (Math.cbrt(chiSquare / degrees) - (1 - v)) / Math.sqrt(v);
+            assertTrue("chi^2 = " + chiSquare + " for " + degrees
+                + " degrees of freedom", z < 4);
+            // go on from another structure, with changed bond lists
+            for (int k = 0; k < 7; k++)
+                matrix.move(random);
+        }
+    }
+
+    @Test
+    public void testUndo() {
+        BondOrderMatrix matrix = new BondOrderMatrix(molecule());
+        BondOrderMatrix before = new BondOrderMatrix(molecule());
+        Random random = new Random(7);
+        int n = matrix.getAtomCount();
+        for (int s = 0; s < 1000; s++) {
+            matrix.move(random);
+            matrix.undo();
+            for (int i = 0; i < n; i++)
+                for (int j = 0; j < n; j++)
+                    assertEquals(before.getOrder(i, j), matrix.getOrder(i, j));
+        }
+    }
+
+    @Test
+    public void testLoad() {
+        IMolecule other = molecule();
+        other.getBond(0).setOrder(IBond.Order.SINGLE);
+        other.getBond(5).setOrder(IBond.Order.DOUBLE);
+        BondOrderMatrix reused = new BondOrderMatrix(molecule());
+        Random random = new Random(3);
+        for (int s = 0; s < 50; s++)
+            reused.move(random);
+        reused.load(other);
+        BondOrderMatrix fresh = new BondOrderMatrix(other);
+        int n = fresh.getAtomCount();
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                assertEquals(fresh.getOrder(i, j), reused.getOrder(i, j));
+        // the bond lists are rebuilt in the same order, so are the moves
+        Random random1 = new Random(11);
+        Random random2 = new Random(11);
+        for (int s = 0; s < 1000; s++) {
+            fresh.move(random1);
+            reused.move(random2);
+            for (int k = 0; k < 4; k++)
+                assertEquals(fresh.getMovedAtom(k), reused.getMovedAtom(k));
+        }
+    }
+
+    /** A chain of 40 carbons, every third bond double, closed into rings of six */
+    private IMolecule chain() {
+        IMolecule mol = DefaultChemObjectBuilder.getInstance().newInstance(
+            IMolecule.class);
+        for (int i = 0; i < 40; i++)
+            mol.addAtom(DefaultChemObjectBuilder.getInstance().newInstance(
+                IAtom.class, "C"));
+        for (int i = 1; i < 40; i++)
+            mol.addBond(i - 1, i, i % 3 == 0 ? IBond.Order.DOUBLE
+                : IBond.Order.SINGLE);
+        for (int i = 0; i + 5 < 40; i += 6)
+            mol.addBond(i, i + 5, IBond.Order.SINGLE);
+        return mol;
+    }
+
+    /** Whether all atoms are connected, by a search over the whole matrix */
+    private boolean connected(BondOrderMatrix matrix) {
+        int n = matrix.getAtomCount();
+        boolean[] seen = new boolean[n];
+        int[] queue = new int[n];
+        int found = 0;
+        queue[found++] = 0;
+        seen[0] = true;
+        for (int head = 0; head < found; head++) {
+            for (int j = 0; j < n; j++) {
+                if (matrix.getOrder(queue[head], j) > 0 && !seen[j]) {
+                    seen[j] = true;
+                    queue[found++] = j;
+                }
+            }
+        }
+        return found == n;
+    }
+
+    @Test
+    public void testConnectedAfterMove() {
+        // the chain is longer than twice SEARCH_LIMIT, so the searches from
+        // the ends of a bond meet, close a fragment or fall back
+        BondOrderMatrix matrix = new BondOrderMatrix(chain());
+        Random random = new Random(5);
+        int disconnected = 0;
+        for (int s = 0; s < 20000; s++) {
+            boolean before = connected(matrix);
+            matrix.move(random);
+            boolean after = connected(matrix);
+            assertEquals(after, matrix.isConnected());
+            if (before)
+                assertEquals(after, matrix.isConnectedAfterMove());
+            if (!after)
+                disconnected++;
+            if (s % 2 == 0)
+                matrix.undo();
+        }
+        assertTrue(disconnected > 0);
+    }
+}
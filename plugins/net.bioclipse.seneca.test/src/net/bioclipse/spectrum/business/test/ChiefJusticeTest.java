@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.spectrum.business.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bioclipse.seneca.judge.ChiefJustice;
+import net.bioclipse.seneca.judge.IJudge;
+import net.bioclipse.seneca.judge.ScoreCache;
+import net.bioclipse.seneca.judge.SymmetryJudge;
+
+import org.junit.Test;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IMolecule;
+
+/**
+ * Checks that the score cache of ChiefJustice keeps renumbered copies of a
+ * structure apart when a judge depends on the atom order.
+ */
+public class ChiefJusticeTest {
+
+    /** Propane with the atoms of each bond given as index pairs */
+    private IMolecule propane(int a1, int a2, int b1, int b2) {
+        IMolecule mol = DefaultChemObjectBuilder.getInstance().newInstance(
+            IMolecule.class);
+        for (int i = 0; i < 3; i++)
+            mol.addAtom(DefaultChemObjectBuilder.getInstance().newInstance(
+                IAtom.class, "C"));
+        mol.addBond(a1, a2, IBond.Order.SINGLE);
+        mol.addBond(b1, b2, IBond.Order.SINGLE);
+        return mol;
+    }
+
+    @Test
+    public void testRenumberedIsomorphs() throws Exception {
+        // atoms 0 and 2 are the ends in the first numbering, the middle
+        // and an end in the second
+        IMolecule ends = propane(0, 1, 1, 2);
+        IMolecule middle = propane(1, 0, 0, 2);
+        assertEquals(ScoreCache.keyOf(ends, true),
+                     ScoreCache.keyOf(middle, true));
+
+        SymmetryJudge judge = new SymmetryJudge();
+        judge.addSymmetryClass(new boolean[] { true, false, true });
+        judge.setEnabled(true);
+        assertTrue(judge.isAtomOrderDependent());
+        double endsScore = judge.evaluate(ends).score;
+        double middleScore = judge.evaluate(middle).score;
+        assertFalse(endsScore == middleScore);
+
+        List<IJudge> judges = new ArrayList<IJudge>();
+        judges.add(judge);
+        ChiefJustice chiefJustice = new ChiefJustice(judges);
+        chiefJustice.getScoreCache().setMaxSize(16);
+        double first = chiefJustice.getScore(ends).score;
+        double second = chiefJustice.getScore(middle).score;
+        assertFalse(first == second);
+        assertEquals(2, chiefJustice.getScoreCache().getSize());
+        assertEquals(0, chiefJustice.getScoreCache().getHits());
+        assertEquals(first, chiefJustice.getScore(ends).score, 0.0);
+        assertEquals(second, chiefJustice.getScore(middle).score, 0.0);
+        assertEquals(2, chiefJustice.getScoreCache().getHits());
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.spectrum.business.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.bioclipse.seneca.util.WCCKernel;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Checks that the WCC kernel of Seneca gives the values of the spectrum
+ * manager. testBenchmark compares the time both take for typical 13C
+ * spectra; it asserts nothing about the times and is ignored, remove the
+ * Ignore annotation to run it by hand.
+ */
+public class WCCKernelTest {
+
+    private static final double WIDTH = 20.0;
+    private static final int SPECTRA = 2000;
+    private static final int ROUNDS = 5;
+
+    private double[] randomSpectrum(Random random, int peaks) {
+        double[] positions = new double[peaks];
+        for (int i = 0; i < peaks; i++)
+            positions[i] = random.nextDouble() * 220.0;
+        return positions;
+    }
+
+    /** The previous judge code, with unit intensities allocated per call */
+    private double managerWCC(double[] positions1, double[] positions2) {
+        double[] intensities1 = new double[positions1.length];
+        for (int i = 0; i < intensities1.length; i++)
+            intensities1[i] = 1.0;
+        double[] intensities2 = new double[positions2.length];
+        for (int i = 0; i < intensities2.length; i++)
+            intensities2[i] = 1.0;
+        return net.bioclipse.spectrum.Activator.getDefault()
+            .getJavaSpectrumManager().calculateSimilarityWCC(
+            positions1, intensities1, positions2, intensities2, WIDTH);
+    }
+
+    @Test
+    public void testSameValues() {
+        Random random = new Random(42);
+        for (int n = 0; n < 200; n++) {
+            double[] experimental = randomSpectrum(random, 1 + random.nextInt(40));
+            double[] predicted = randomSpectrum(random, 1 + random.nextInt(40));
+            WCCKernel kernel = new WCCKernel(experimental, WIDTH);
+            assertEquals(managerWCC(experimental, predicted),
+                         kernel.similarity(predicted), 1e-12);
+            assertEquals(1.0, kernel.similarity(experimental), 1e-12);
+        }
+    }
+
+    @Test
+    public void testEmptySpectrum() {
+        WCCKernel kernel = new WCCKernel(new double[]{20.0, 128.5}, WIDTH);
+        assertEquals(0.0, kernel.similarity(new double[0]), 0.0);
+        assertEquals(0.0, new WCCKernel(new double[0], WIDTH)
+                     .similarity(new double[]{20.0}), 0.0);
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void testBenchmark() {
+        Random random = new Random(7);
+        double[] experimental = randomSpectrum(random, 25);
+        double[][] predicted = new double[SPECTRA][];
+        for (int i = 0; i < SPECTRA; i++)
+            predicted[i] = randomSpectrum(random, 25);
+        WCCKernel kernel = new WCCKernel(experimental, WIDTH);
+        double sumManager = 0, sumKernel = 0;
+        long timeManager = Long.MAX_VALUE, timeKernel = Long.MAX_VALUE;
+        // best of several rounds, the first ones also warm up the JIT
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            sumManager = 0;
+            for (int i = 0; i < SPECTRA; i++)
+                sumManager += managerWCC(experimental, predicted[i]);
+            timeManager = Math.min(timeManager, System.nanoTime() - start);
+            start = System.nanoTime();
+            sumKernel = 0;
+            for (int i = 0; i < SPECTRA; i++)
+                sumKernel += kernel.similarity(predicted[i]);
+            timeKernel = Math.min(timeKernel, System.nanoTime() - start);
+        }
+        System.out.println("WCC of " + SPECTRA + " spectra: spectrum manager "
+            + timeManager / 1000000.0 + " ms, WCCKernel "
+            + timeKernel / 1000000.0 + " ms");
+        assertEquals(sumManager, sumKernel, 1e-9);
+    }
+}
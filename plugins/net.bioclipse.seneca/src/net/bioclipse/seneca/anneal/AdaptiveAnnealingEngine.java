@@ -1,8 +1,14 @@
 package net.bioclipse.seneca.anneal;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
 
+import net.bioclipse.seneca.util.Checkpoint;
+
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.openscience.cdk.exception.CDKException;
 
@@ -11,12 +17,26 @@ import org.openscience.cdk.exception.CDKException;
  * Vincent A. Cicirello (On the Design of an
  * Adaptive Simulated Annealing Algorithm).
  *
+ * When the adapter is a SpeculativeAnnealerAdapterI and few states are
+ * accepted, the engine lets it make and cost several states from the
+ * current one at once, and tests them in order with the temperatures the
+ * sequential run would have used for them. The speculative states come
+ * from split random streams and acceptance numbers are drawn ahead, so the
+ * chain is not the one a sequential run with the same seed makes, but it
+ * follows the same distribution. The number of states asked for follows
+ * the measured acceptance rate.
+ *
+ * The state of a run is the step, the temperature, the acceptance rates,
+ * the random numbers and the state of the adapter, so a run continued
+ * from a checkpoint is statistically equivalent to one which was not
+ * interrupted, though not step by step the same.
+ *
  * @author maclean
  *
  */
-public class AdaptiveAnnealingEngine implements AnnealingEngineI {
+public class AdaptiveAnnealingEngine implements ResumableEngineI {
 
-	private final Random rand = new Random();
+	private final Random rand;
 
 	/**
 	 * This is the number of steps to take
@@ -25,12 +45,40 @@ public class AdaptiveAnnealingEngine implements AnnealingEngineI {
 
 	public final static int DEFAULT_EVALSMAX=1000;
 
+	/**
+	 * The largest number of states costed at once
+	 */
+	private int maxSpeculation = Runtime.getRuntime().availableProcessors();
+
+	/** the fraction of recently accepted states, for the speculation width */
+	private double measuredAcceptance = 1.0;
+
+	/** whether the last state tested by speculate was accepted */
+	private boolean lastAccepted;
+
 	private final ArrayList<TemperatureListener> temperatureListeners;
 
 	private AnnealerAdapterI aa;
 
+	private CheckpointListener checkpointListener = null;
+	private Checkpoint.Schedule checkpointSchedule = null;
+
+	/** the state to continue from, read by readState */
+	private boolean resumed = false;
+	private int resumeStep;
+	private double resumeTemperature;
+	private double resumeAcceptRate;
+
 	public AdaptiveAnnealingEngine(AnnealerAdapterI annealerAdapter, int evalSMax) {
+		this(annealerAdapter, evalSMax, new Random());
+	}
+
+	/**
+	 * @param rand The random numbers for accepting states.
+	 */
+	public AdaptiveAnnealingEngine(AnnealerAdapterI annealerAdapter, int evalSMax, Random rand) {
 		this.aa = annealerAdapter;
+		this.rand = rand;
 		this.evalSMax = evalSMax;
 		this.temperatureListeners = new ArrayList<TemperatureListener>();
 	}
@@ -39,18 +87,69 @@ public class AdaptiveAnnealingEngine implements AnnealingEngineI {
 		this.temperatureListeners.add(listener);
 	}
 
+	/**
+	 * @param maxSpeculation The largest number of states costed at once, 1 to
+	 *                       cost one state after another.
+	 */
+	public void setMaxSpeculation(int maxSpeculation) {
+		this.maxSpeculation = Math.max(1, maxSpeculation);
+	}
+
+	public void setCheckpointListener(CheckpointListener listener, long interval) {
+		this.checkpointListener = listener;
+		this.checkpointSchedule = new Checkpoint.Schedule(interval);
+	}
+
 	/*
 	 * This implementation is near-identical to the pseudocode of Figure 2.
 	 *
 	 */
 	public void run() throws CDKException {
-		aa.initialState();
+		int start = 1;
 		double t = 0.5;
 		double acceptRate = 0.5;
+		if (resumed) {
+			// the adapter and the random numbers were restored by readState
+			resumed = false;
+			start = resumeStep;
+			t = resumeTemperature;
+			acceptRate = resumeAcceptRate;
+		} else {
+			aa.initialState();
+			measuredAcceptance = 1.0;
+		}
+
+		for (int i = start; i < evalSMax; i++) {
+			if (checkpointSchedule != null && checkpointSchedule.isDue())
+				checkpoint(i, t, acceptRate);
+			int width = Math.min(speculationWidth(), evalSMax - i);
+			if (width > 1) {
+				// the steps taken, the last one of them accepted unless all were rejected
+				int steps = speculate(i, width, t, acceptRate);
+				for (int j = 0; j < steps; j++) {
+					boolean accepted = j == steps - 1 && lastAccepted;
+					acceptRate = (1.0/500.0) * (499.0 * (accepted ? acceptRate + 1 : acceptRate));
+					t = nextTemperature(i + j, t, acceptRate);
+					fireTemperatureEvent(t);
+				}
+				if (aa.isCancelled()) {
+					checkpoint(i + steps, t, acceptRate);
+					return;
+				}
+				i += steps - 1;
+				continue;
+			}
 
-		for (int i = 1; i < evalSMax; i++) {
 		    if (aa.isCancelled()) {
+		    	checkpoint(i, t, acceptRate);
 		    	return;
+		    }
+			// the random number is drawn in advance, so adapters can stop
+			// calculating the cost of states which are rejected anyway
+			double r = rand.nextDouble();
+		    if (aa instanceof ThresholdAnnealerAdapterI) {
+		    	// r < e^(-increase/t) accepts any increase below -t*ln(r)
+		    	((ThresholdAnnealerAdapterI) aa).nextState(-t * Math.log(r));
 		    } else {
 		    	aa.nextState();
 		    }
@@ -58,35 +157,142 @@ public class AdaptiveAnnealingEngine implements AnnealingEngineI {
 			// the normal annealing process
 			if (aa.costDecreasing()) {
 				aa.accept();
+				measure(true);
 				acceptRate = (1.0/500.0) * (499.0 * (acceptRate + 1));
 			} else {
-				double r = rand.nextDouble();
 				if (r < Math.pow(Math.E, (aa.costDifference() / t))) {
 					aa.accept();
+					measure(true);
 					acceptRate = (1.0/500.0) * (499.0 * (acceptRate + 1));
 				} else {
 					aa.reject();
+					measure(false);
 					acceptRate = (1.0/500.0) * (499.0 * (acceptRate));
 				}
 			}
 
-			// calculate the lambda rate
-			double lamRate = 0.0;
-			if (i/evalSMax < 0.15) {
-				lamRate = 0.44 + 0.56 * Math.pow(560, -i/evalSMax/0.15);
-			} else if (i/evalSMax >= 0.15 && i/evalSMax < 0.65) {
-				lamRate = 0.44;
-			} else if (0.65 <= i/evalSMax) {
-				lamRate = 0.44 * Math.pow(440, -(i/evalSMax - 0.65)/0.15);
-			}
+			t = nextTemperature(i, t, acceptRate);
+			fireTemperatureEvent(t);
+		}
+	}
 
-			// use the lambda to adjust the temperature
-			if (acceptRate > lamRate) {
-				t = 0.999 * t;
-			} else {
-				t = t / 0.999;
+	/**
+	 * Passes the state before step i to the checkpoint listener.
+	 */
+	private void checkpoint(int i, double t, double acceptRate) throws CDKException {
+		if (checkpointListener == null)
+			return;
+		long start = System.currentTimeMillis();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(i);
+			out.writeDouble(t);
+			out.writeDouble(acceptRate);
+			out.writeDouble(measuredAcceptance);
+			Checkpoint.writeRandom(out, rand);
+			out.writeBoolean(aa instanceof ResumableAnnealerAdapterI);
+			if (aa instanceof ResumableAnnealerAdapterI)
+				((ResumableAnnealerAdapterI) aa).writeState(out);
+		} catch (IOException e) {
+			throw new CDKException("Could not save the state of the run", e);
+		}
+		checkpointListener.checkpoint(bytes.toByteArray());
+		checkpointSchedule.written(start);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.ResumableEngineI#readState(java.io.DataInput)
+	 */
+	public void readState(DataInput in) throws IOException, CDKException {
+		resumeStep = in.readInt();
+		resumeTemperature = in.readDouble();
+		resumeAcceptRate = in.readDouble();
+		measuredAcceptance = in.readDouble();
+		Checkpoint.readRandom(in, rand);
+		if (in.readBoolean()) {
+			if (!(aa instanceof ResumableAnnealerAdapterI))
+				throw new IOException("The adapter cannot be restored");
+			((ResumableAnnealerAdapterI) aa).readState(in);
+		} else {
+			aa.initialState();
+		}
+		resumed = true;
+	}
+
+	/**
+	 * Takes up to width steps with states costed at once, stopping after the
+	 * first accepted one. The temperature of each step is the one the
+	 * sequential run reaches after rejecting all states before it, which is
+	 * the only case in which the step is taken.
+	 *
+	 * @return The number of steps taken.
+	 */
+	private int speculate(int i, int width, double t, double acceptRate) throws CDKException {
+		SpeculativeAnnealerAdapterI sa = (SpeculativeAnnealerAdapterI) aa;
+		double[] r = new double[width];
+		double[] temperatures = new double[width];
+		double[] acceptableIncreases = new double[width];
+		for (int j = 0; j < width; j++) {
+			r[j] = rand.nextDouble();
+			temperatures[j] = t;
+			acceptableIncreases[j] = -t * Math.log(r[j]);
+			acceptRate = (1.0/500.0) * (499.0 * (acceptRate));
+			t = nextTemperature(i + j, t, acceptRate);
+		}
+		lastAccepted = false;
+		if (aa.isCancelled())
+			return 0;
+		sa.nextStates(width, acceptableIncreases);
+		for (int j = 0; j < width; j++) {
+			sa.useState(j);
+			if (sa.costDecreasing()
+					|| r[j] < Math.pow(Math.E, (sa.costDifference() / temperatures[j]))) {
+				sa.accept();
+				measure(true);
+				lastAccepted = true;
+				return j + 1;
 			}
-			fireTemperatureEvent(t);
+			sa.reject();
+			measure(false);
+		}
+		return width;
+	}
+
+	/**
+	 * @return The number of states to cost at once, about the number of
+	 *         states tested until one is accepted.
+	 */
+	private int speculationWidth() {
+		if (maxSpeculation < 2 || !(aa instanceof SpeculativeAnnealerAdapterI))
+			return 1;
+		double expected = 1 / Math.max(measuredAcceptance, 1.0 / maxSpeculation);
+		return Math.min(maxSpeculation, (int) Math.ceil(expected - 0.5));
+	}
+
+	private void measure(boolean accepted) {
+		measuredAcceptance = 0.99 * measuredAcceptance + (accepted ? 0.01 : 0);
+	}
+
+	/**
+	 * Adjusts the temperature after step i to the acceptance rate.
+	 */
+	private double nextTemperature(int i, double t, double acceptRate) {
+		// calculate the lambda rate
+		double lamRate = 0.0;
+		if (i/evalSMax < 0.15) {
+			lamRate = 0.44 + 0.56 * Math.pow(560, -i/evalSMax/0.15);
+		} else if (i/evalSMax >= 0.15 && i/evalSMax < 0.65) {
+			lamRate = 0.44;
+		} else if (0.65 <= i/evalSMax) {
+			lamRate = 0.44 * Math.pow(440, -(i/evalSMax - 0.65)/0.15);
+		}
+
+		// use the lambda to adjust the temperature
+		if (acceptRate > lamRate) {
+			return 0.999 * t;
+		} else {
+			return t / 0.999;
 		}
 	}
 
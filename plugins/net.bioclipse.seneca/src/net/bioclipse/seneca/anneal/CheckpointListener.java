@@ -0,0 +1,14 @@
+package net.bioclipse.seneca.anneal;
+
+/**
+ * Gets the state of a ResumableEngineI between two steps, to write it to a
+ * checkpoint. It is called on the thread running the engine.
+ */
+public interface CheckpointListener {
+
+	/**
+	 * @param state The state, which ResumableEngineI.readState continues from.
+	 */
+	public void checkpoint(byte[] state);
+
+}
@@ -1,22 +1,49 @@
 package net.bioclipse.seneca.anneal;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.bioclipse.seneca.anneal.MoleculeState.Acceptance;
 import net.bioclipse.seneca.judge.ChiefJustice;
 import net.bioclipse.seneca.judge.IJudge;
+import net.bioclipse.seneca.judge.ScoreSummary;
+import net.bioclipse.seneca.util.Checkpoint;
+import net.bioclipse.seneca.util.IncrementalAromaticity;
+import net.bioclipse.seneca.util.RandomSource;
 
 import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
 import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IMolecule;
 import org.openscience.cdk.structgen.RandomGenerator;
 
-public class MoleculeAnnealerAdapter implements AnnealerAdapterI {
+public class MoleculeAnnealerAdapter implements SpeculativeAnnealerAdapterI,
+		ResumableAnnealerAdapterI {
+	
+	/** scores the speculative proposals of all adapters */
+	private static ExecutorService executor = null;
 	
 	private ChiefJustice judge; 
 	
 	private final ArrayList<StateListener> stateListeners;
 	private RandomGenerator randomGenerator;
+	private final Random random;
+	
+	/** a generator with its own random numbers for each speculative proposal */
+	private final List<RandomGenerator> speculators = new ArrayList<RandomGenerator>();
+	private Proposal[] proposals = new Proposal[0];
+	/** whether the next state is one of the proposals, not made in place */
+	private boolean speculative = false;
 	
 	private double bestCost;
 	private double currentCost;
@@ -33,11 +60,19 @@ public class MoleculeAnnealerAdapter implements AnnealerAdapterI {
 	private boolean detectAromaticity;
 	
 	public MoleculeAnnealerAdapter(IMolecule startingMolecule, ChiefJustice judge, boolean detectAromaticity) {
+		this(startingMolecule, judge, detectAromaticity, new Random());
+	}
+	
+	/**
+	 * @param random The random numbers for proposing structures.
+	 */
+	public MoleculeAnnealerAdapter(IMolecule startingMolecule, ChiefJustice judge, boolean detectAromaticity, Random random) {
 		this.judge = judge;
 		this.detectAromaticity = detectAromaticity;
 		this.stateListeners = new ArrayList<StateListener>();
 		
-		this.randomGenerator = new RandomGenerator(startingMolecule);
+		this.randomGenerator = new RandomGenerator(startingMolecule, random);
+		this.random = random;
 		
 		this.current = startingMolecule;
 		this.next = null;
@@ -66,6 +101,9 @@ public class MoleculeAnnealerAdapter implements AnnealerAdapterI {
 		return this.bestStepIndex;
 	}
 	
+	/**
+	 * @return The current molecule, which the next steps change in place.
+	 */
 	public IMolecule getCurrent() {
 		return this.current;
 	}
@@ -87,7 +125,7 @@ public class MoleculeAnnealerAdapter implements AnnealerAdapterI {
 	private double cost(IMolecule mol) {
 		// the score is in the range [0-judge.calcMaxScore()], so the cost must be judge.calcMaxScore()-score.
     try {
-        return judge.calcMaxScore() - this.judge.getScore(mol).score;
+        return judge.calcMaxScore() - this.judge.getScore(mol, false).score;
     } catch (Exception e) {
         e.printStackTrace();
         return -1;
@@ -101,35 +139,215 @@ public class MoleculeAnnealerAdapter implements AnnealerAdapterI {
 		    CDKHueckelAromaticityDetector.detectAromaticity( this.current );
 		this.currentCost = cost(this.current);
 		this.bestCost = this.currentCost;
+		this.best = keep(this.current);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.ResumableAnnealerAdapterI#writeState(java.io.DataOutput)
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.stepIndex);
+		out.writeInt(this.bestStepIndex);
+		out.writeDouble(this.currentCost);
+		out.writeDouble(this.bestCost);
+		Checkpoint.writeMolecule(out, this.current);
+		Checkpoint.writeMolecule(out, this.best);
+		Checkpoint.writeRandom(out, this.random);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.ResumableAnnealerAdapterI#readState(java.io.DataInput)
+	 */
+	public void readState(DataInput in) throws IOException, CDKException {
+		this.stepIndex = in.readInt();
+		this.bestStepIndex = in.readInt();
+		this.currentCost = in.readDouble();
+		this.bestCost = in.readDouble();
+		// the structures get clones of the atoms of the starting molecule
+		IMolecule template = this.randomGenerator.getMolecule();
+		this.current = Checkpoint.readMolecule(in, template);
+		this.best = Checkpoint.readMolecule(in, template);
+		Checkpoint.readRandom(in, this.random);
+		if(detectAromaticity) {
+		    CDKHueckelAromaticityDetector.detectAromaticity( this.current );
+		    CDKHueckelAromaticityDetector.detectAromaticity( this.best );
+		}
+		// the generator orders the bonds of the restored structure anew, and
+		// the speculators are split again, so the moves after resuming are
+		// drawn from the same distribution but not the same as without it
+		this.randomGenerator.setMolecule(this.current);
+		this.next = null;
+		this.speculative = false;
+		this.proposals = new Proposal[0];
 	}
 
 	public void nextState() throws CDKException {
-		this.next = this.randomGenerator.proposeStructure();
+		this.next = this.randomGenerator.proposeStructureInPlace();
+		this.speculative = false;
     if(detectAromaticity)
-        CDKHueckelAromaticityDetector.detectAromaticity( this.next );
+        IncrementalAromaticity.detectAromaticity( this.next, this.randomGenerator.getMovedAtoms() );
 		this.nextCost = cost(this.next);
 		this.stepIndex++;
 		fireStateEvent(new MoleculeState(current, Acceptance.UNKNOWN, stepIndex,judge.calcMaxScore()-nextCost));
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.ThresholdAnnealerAdapterI#nextState(double)
+	 */
+	public void nextState(double acceptableIncrease) throws CDKException {
+		IMolecule molecule = this.randomGenerator.proposeStructureInPlace();
+		Proposal proposal = score(molecule, this.randomGenerator.getMovedAtoms(), acceptableIncrease);
+		this.speculative = false;
+		this.next = proposal.molecule;
+		this.nextCost = proposal.cost;
+		this.stepIndex++;
+		fireStateEvent(new MoleculeState(current, Acceptance.UNKNOWN, stepIndex,proposal.score));
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.SpeculativeAnnealerAdapterI#nextStates(int, double[])
+	 */
+	public void nextStates(int count, final double[] acceptableIncreases) throws CDKException {
+		while (speculators.size() < count) {
+			// split in order, so a seeded run proposes the same structures
+			Random speculatorRandom = random instanceof RandomSource
+					? ((RandomSource) random).split() : new Random(random.nextLong());
+			speculators.add(new RandomGenerator(current, speculatorRandom));
+		}
+		proposals = new Proposal[count];
+		// the current molecule is only read while the proposals are made
+		List<Future<Proposal>> futures = new ArrayList<Future<Proposal>>(count - 1);
+		for (int k = 1; k < count; k++) {
+			final RandomGenerator speculator = speculators.get(k);
+			final double acceptableIncrease = acceptableIncreases[k];
+			speculator.setMolecule(current);
+			futures.add(getExecutor().submit(new Callable<Proposal>() {
+				public Proposal call() throws CDKException {
+					IMolecule molecule = speculator.proposeStructure();
+					return score(molecule, speculator.getMovedAtoms(), acceptableIncrease);
+				}
+			}));
+		}
+		RandomGenerator first = speculators.get(0);
+		first.setMolecule(current);
+		IMolecule molecule = first.proposeStructure();
+		proposals[0] = score(molecule, first.getMovedAtoms(), acceptableIncreases[0]);
+		for (int k = 1; k < count; k++) {
+			try {
+				proposals[k] = futures.get(k - 1).get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof CDKException)
+					throw (CDKException) e.getCause();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new CDKException(e.getCause().getMessage(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CDKException("Interrupted while scoring proposals", e);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.SpeculativeAnnealerAdapterI#useState(int)
+	 */
+	public void useState(int k) {
+		this.next = proposals[k].molecule;
+		this.nextCost = proposals[k].cost;
+		this.speculative = true;
+		this.stepIndex++;
+		fireStateEvent(new MoleculeState(current, Acceptance.UNKNOWN, stepIndex,proposals[k].score));
+	}
+
+	/**
+	 * Scores a proposed structure, as far as needed for a cost increase up
+	 * to acceptableIncrease. Its aromaticity is only perceived again around
+	 * the moved atoms, the rest is that of the current structure.
+	 */
+	private Proposal score(IMolecule molecule, IAtom[] moved, double acceptableIncrease) throws CDKException {
+    if(detectAromaticity)
+        IncrementalAromaticity.detectAromaticity( molecule, moved );
+		double maxScore = judge.calcMaxScore();
+		try {
+			// scores not above this give a cost increase which is rejected
+			ScoreSummary summary = judge.getScore(molecule, maxScore - currentCost - acceptableIncrease);
+			// an incomplete score is only an upper limit, make sure it is
+			// rejected and not published as the score of the structure
+			if (!summary.complete)
+				return new Proposal(molecule, Double.POSITIVE_INFINITY, Double.NaN);
+			return new Proposal(molecule, maxScore - summary.score, summary.score);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return new Proposal(molecule, -1, maxScore + 1);
+		}
+	}
+
+	/**
+	 * A proposed structure with its cost and score. If the scoring stopped
+	 * at the threshold, the cost is infinite and the score NaN.
+	 */
+	private static class Proposal {
+		final IMolecule molecule;
+		final double cost;
+		final double score;
+
+		Proposal(IMolecule molecule, double cost, double score) {
+			this.molecule = molecule;
+			this.cost = cost;
+			this.score = score;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Seneca proposal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
 	public void accept() {
 		this.current = this.next;
 		this.currentCost = this.nextCost;
+		if (this.speculative) {
+			// the next state comes from a speculator, not the generator
+			this.randomGenerator.setMolecule(this.next);
+			this.proposals = new Proposal[0];
+		} else {
+			this.randomGenerator.acceptStructure();
+		}
 		if (this.currentCost < this.bestCost) {
 			//System.out.println("best > current, storing" + this.bestCost + " " + this.currentCost);
-			this.best = this.current;
+			// the current molecule changes with the next step, the best one is kept as a copy
+			this.best = keep(this.current);
 			this.bestCost = currentCost;
 			this.bestStepIndex = this.stepIndex;
-	    fireStateEvent(new MoleculeState(current, Acceptance.ACCEPT, stepIndex,judge.calcMaxScore()-currentCost));
+	    fireStateEvent(new MoleculeState(best, Acceptance.ACCEPT, stepIndex,judge.calcMaxScore()-currentCost));
 		} else {
 			//System.out.println("best !> current, !storing" + this.bestCost + " " + this.currentCost);
 		}
-		this.randomGenerator.acceptStructure(); 
 		
 	}
 
 	public void reject() {
 		fireStateEvent(new MoleculeState(next, Acceptance.REJECT, stepIndex,0));
+		if (!this.speculative)
+			this.randomGenerator.rejectStructure();
+	}
+
+	private IMolecule keep(IMolecule molecule) {
+		try {
+			return (IMolecule) molecule.clone();
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+			return molecule;
+		}
 	}
 	
 	private void fireStateEvent(State state) {
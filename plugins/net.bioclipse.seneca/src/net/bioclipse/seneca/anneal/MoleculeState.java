@@ -12,6 +12,7 @@ public class MoleculeState implements State {
 	
 	public final int stepIndex;
 	
+	/** NaN for a proposal whose scoring stopped as it could not be accepted */
 	public double score=0;
 	
 	public MoleculeState(IMolecule molecule, Acceptance acceptance, int stepIndex, double score) {
@@ -0,0 +1,483 @@
+package net.bioclipse.seneca.anneal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.bioclipse.seneca.util.Checkpoint;
+import net.bioclipse.seneca.util.RandomSource;
+
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * A replica exchange (parallel tempering) engine. Several annealer adapters,
+ * the replicas, each run a Metropolis chain at a fixed temperature of a
+ * geometric ladder, concurrently on a thread pool. Every exchangeInterval
+ * steps the replicas at neighbouring temperatures swap their temperatures
+ * with the probability min(1, e^((1/Tk - 1/Tk+1) * (Ck - Ck+1))), where Ck
+ * is the current cost of the replica at temperature Tk, so good states move
+ * to the cold end of the ladder while the hot replicas keep exploring.
+ *
+ * The adapters must not share state which is not thread safe; a
+ * ChiefJustice may be shared. State listeners of the engine get the states
+ * of the replicas which improve on the best cost of all replicas, the
+ * other states of replica 0, and a ReplicaExchangeState after each exchange
+ * round. Temperature listeners get the temperature of replica 0 after each
+ * round. Cancelling any replica stops the run.
+ *
+ * Checkpoints are taken after an exchange round, when no replica is
+ * running: they hold the slots of the replicas, their costs and counters,
+ * all random numbers and the states of the adapters.
+ */
+public class ParallelTemperingEngine implements ResumableEngineI {
+
+	/** The default number of steps of each replica between two exchanges */
+	public final static int DEFAULT_EXCHANGE_INTERVAL = 100;
+
+	/** The default temperature of the coldest replica, as part of the largest cost */
+	public final static double DEFAULT_COLDEST = 0.005;
+
+	/** The default temperature of the hottest replica, as part of the largest cost */
+	public final static double DEFAULT_HOTTEST = 0.5;
+
+	private final Random rand;
+
+	/**
+	 * This is the number of steps each replica takes
+	 */
+	private final int evalSMax;
+
+	private int exchangeInterval = DEFAULT_EXCHANGE_INTERVAL;
+
+	private final AnnealerAdapterI[] replicas;
+	private final Random[] replicaRands;
+
+	/** the temperature of each slot, coldest first */
+	private final double[] ladder;
+	/** the slot of each replica, and the replica in each slot */
+	private final int[] slotOf;
+	private final int[] replicaAt;
+
+	/** the cost of the current state of each replica */
+	private final double[] costs;
+	private final long[] proposed;
+	private final long[] accepted;
+	/** tried and accepted swaps between slot k and k+1 */
+	private final long[] swapsTried;
+	private final long[] swapsAccepted;
+
+	private volatile boolean cancelled = false;
+
+	private CheckpointListener checkpointListener = null;
+	private Checkpoint.Schedule checkpointSchedule = null;
+
+	/** the round to continue from, read by readState */
+	private boolean resumed = false;
+	private int resumeStep;
+	private boolean resumeEvenPairs;
+
+	private final ArrayList<TemperatureListener> temperatureListeners;
+
+	/** guards the listeners and the best costs below */
+	private final ArrayList<StateListener> stateListeners;
+	private final double[] replicaBestCosts;
+	private double bestCost = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Sets up the engine.
+	 *
+	 * @param replicas The adapters to run, one per temperature.
+	 * @param evalSMax The number of steps each replica takes.
+	 * @param coldest  The temperature of the coldest replica.
+	 * @param hottest  The temperature of the hottest replica.
+	 */
+	public ParallelTemperingEngine(AnnealerAdapterI[] replicas, int evalSMax,
+			double coldest, double hottest) {
+		this(replicas, evalSMax, coldest, hottest, new RandomSource());
+	}
+
+	/**
+	 * Sets up the engine.
+	 *
+	 * @param replicas The adapters to run, one per temperature.
+	 * @param evalSMax The number of steps each replica takes.
+	 * @param coldest  The temperature of the coldest replica.
+	 * @param hottest  The temperature of the hottest replica.
+	 * @param random   The random numbers for the swaps, split for each replica.
+	 */
+	public ParallelTemperingEngine(AnnealerAdapterI[] replicas, int evalSMax,
+			double coldest, double hottest, RandomSource random) {
+		if (replicas.length == 0)
+			throw new IllegalArgumentException("At least one replica is needed");
+		if (coldest <= 0 || hottest < coldest)
+			throw new IllegalArgumentException("Invalid temperatures "
+					+ coldest + " to " + hottest);
+		int n = replicas.length;
+		this.replicas = new AnnealerAdapterI[n];
+		this.replicaRands = new Random[n];
+		this.ladder = new double[n];
+		this.slotOf = new int[n];
+		this.replicaAt = new int[n];
+		this.costs = new double[n];
+		this.proposed = new long[n];
+		this.accepted = new long[n];
+		this.swapsTried = new long[Math.max(n - 1, 0)];
+		this.swapsAccepted = new long[Math.max(n - 1, 0)];
+		this.replicaBestCosts = new double[n];
+		this.evalSMax = evalSMax;
+		this.rand = random;
+		this.temperatureListeners = new ArrayList<TemperatureListener>();
+		this.stateListeners = new ArrayList<StateListener>();
+		for (int k = 0; k < n; k++) {
+			ladder[k] = n == 1 ? coldest : coldest
+					* Math.pow(hottest / coldest, k / (double) (n - 1));
+			slotOf[k] = k;
+			replicaAt[k] = k;
+			replicaRands[k] = random.split();
+			setReplica(k, replicas[k]);
+		}
+	}
+
+	private void setReplica(int replica, AnnealerAdapterI adapter) {
+		replicas[replica] = adapter;
+		adapter.addStateListener(new ReplicaListener(replica));
+	}
+
+	public void addTemperatureListener(TemperatureListener listener) {
+		this.temperatureListeners.add(listener);
+	}
+
+	public void addStateListener(StateListener listener) {
+		synchronized (stateListeners) {
+			this.stateListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Replaces replica 0.
+	 */
+	public void setAnnealerAdapter(AnnealerAdapterI adapter) {
+		setReplica(0, adapter);
+	}
+
+	/**
+	 * @param exchangeInterval The number of steps of each replica between two exchanges.
+	 */
+	public void setExchangeInterval(int exchangeInterval) {
+		this.exchangeInterval = Math.max(1, exchangeInterval);
+	}
+
+	public void setCheckpointListener(CheckpointListener listener, long interval) {
+		this.checkpointListener = listener;
+		this.checkpointSchedule = new Checkpoint.Schedule(interval);
+	}
+
+	public int getReplicaCount() {
+		return replicas.length;
+	}
+
+	/**
+	 * @return The temperature of a slot, slot 0 being the coldest.
+	 */
+	public double getTemperature(int slot) {
+		return ladder[slot];
+	}
+
+	/**
+	 * @return The fraction of proposed states a replica accepted so far.
+	 */
+	public double getAcceptanceRate(int replica) {
+		return proposed[replica] == 0 ? 0 : accepted[replica]
+				/ (double) proposed[replica];
+	}
+
+	/**
+	 * @return The fraction of accepted swaps between slot k and k+1.
+	 */
+	public double getSwapRate(int slot) {
+		return swapsTried[slot] == 0 ? 0 : swapsAccepted[slot]
+				/ (double) swapsTried[slot];
+	}
+
+	public void run() throws CDKException {
+		int n = replicas.length;
+		int start = 0;
+		boolean evenPairs = true;
+		if (resumed) {
+			// the replicas, counters and random numbers were restored by readState
+			resumed = false;
+			start = resumeStep;
+			evenPairs = resumeEvenPairs;
+		} else {
+			for (int k = 0; k < n; k++) {
+				replicas[k].initialState();
+				// the best state is the initial one now
+				costs[k] = replicas[k].getBestCost();
+			}
+			synchronized (stateListeners) {
+				bestCost = Double.POSITIVE_INFINITY;
+				for (int k = 0; k < n; k++) {
+					replicaBestCosts[k] = costs[k];
+					bestCost = Math.min(bestCost, costs[k]);
+				}
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(n,
+				Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Seneca replica");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<Object>> sweeps = new ArrayList<Future<Object>>(n);
+			int step = start;
+			while (step < evalSMax && !isCancelled()) {
+				int length = Math.min(exchangeInterval, evalSMax - step);
+				sweeps.clear();
+				for (int k = 0; k < n; k++)
+					sweeps.add(pool.submit(new Sweep(k, length)));
+				for (Future<Object> sweep : sweeps)
+					waitFor(sweep);
+				step += length;
+				exchange(evenPairs);
+				evenPairs = !evenPairs;
+				fireStatistics(step);
+				fireTemperatureEvent(ladder[slotOf[0]]);
+				if (checkpointSchedule != null && checkpointSchedule.isDue())
+					checkpoint(step, evenPairs);
+			}
+			// a cancelled round counts as complete, some replicas took fewer steps
+			if (isCancelled())
+				checkpoint(step, evenPairs);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private boolean isCancelled() {
+		if (cancelled)
+			return true;
+		for (AnnealerAdapterI aa : replicas) {
+			if (aa.isCancelled())
+				return cancelled = true;
+		}
+		return false;
+	}
+
+	private static void waitFor(Future<Object> sweep) throws CDKException {
+		try {
+			sweep.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CDKException)
+				throw (CDKException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new CDKException(e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CDKException("Interrupted while waiting for a replica", e);
+		}
+	}
+
+	/**
+	 * Passes the state after an exchange round to the checkpoint listener.
+	 */
+	private void checkpoint(int step, boolean evenPairs) throws CDKException {
+		if (checkpointListener == null)
+			return;
+		long start = System.currentTimeMillis();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(step);
+			out.writeBoolean(evenPairs);
+			out.writeInt(replicas.length);
+			Checkpoint.writeRandom(out, rand);
+			synchronized (stateListeners) {
+				out.writeDouble(bestCost);
+				for (int k = 0; k < replicas.length; k++)
+					out.writeDouble(replicaBestCosts[k]);
+			}
+			for (int k = 0; k < replicas.length; k++) {
+				out.writeInt(slotOf[k]);
+				out.writeDouble(costs[k]);
+				out.writeLong(proposed[k]);
+				out.writeLong(accepted[k]);
+				Checkpoint.writeRandom(out, replicaRands[k]);
+				if (!(replicas[k] instanceof ResumableAnnealerAdapterI))
+					throw new IOException("Replica " + k + " cannot be saved");
+				((ResumableAnnealerAdapterI) replicas[k]).writeState(out);
+			}
+			for (int k = 0; k < swapsTried.length; k++) {
+				out.writeLong(swapsTried[k]);
+				out.writeLong(swapsAccepted[k]);
+			}
+		} catch (IOException e) {
+			throw new CDKException("Could not save the state of the run", e);
+		}
+		checkpointListener.checkpoint(bytes.toByteArray());
+		checkpointSchedule.written(start);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.anneal.ResumableEngineI#readState(java.io.DataInput)
+	 */
+	public void readState(DataInput in) throws IOException, CDKException {
+		resumeStep = in.readInt();
+		resumeEvenPairs = in.readBoolean();
+		int n = in.readInt();
+		if (n != replicas.length)
+			throw new IOException("The checkpoint has " + n + " replicas, not "
+					+ replicas.length);
+		Checkpoint.readRandom(in, rand);
+		synchronized (stateListeners) {
+			bestCost = in.readDouble();
+			for (int k = 0; k < n; k++)
+				replicaBestCosts[k] = in.readDouble();
+		}
+		for (int k = 0; k < n; k++) {
+			slotOf[k] = in.readInt();
+			replicaAt[slotOf[k]] = k;
+			costs[k] = in.readDouble();
+			proposed[k] = in.readLong();
+			accepted[k] = in.readLong();
+			Checkpoint.readRandom(in, replicaRands[k]);
+			if (!(replicas[k] instanceof ResumableAnnealerAdapterI))
+				throw new IOException("Replica " + k + " cannot be restored");
+			((ResumableAnnealerAdapterI) replicas[k]).readState(in);
+		}
+		for (int k = 0; k < swapsTried.length; k++) {
+			swapsTried[k] = in.readLong();
+			swapsAccepted[k] = in.readLong();
+		}
+		resumed = true;
+	}
+
+	/**
+	 * Tries to swap the replicas of the slot pairs (0,1), (2,3), ... or
+	 * (1,2), (3,4), ..., so no replica takes part in two swaps of a round.
+	 */
+	private void exchange(boolean evenPairs) {
+		for (int k = evenPairs ? 0 : 1; k + 1 < ladder.length; k += 2) {
+			int colder = replicaAt[k];
+			int hotter = replicaAt[k + 1];
+			double delta = (1 / ladder[k] - 1 / ladder[k + 1])
+					* (costs[colder] - costs[hotter]);
+			swapsTried[k]++;
+			if (delta >= 0 || rand.nextDouble() < Math.exp(delta)) {
+				replicaAt[k] = hotter;
+				replicaAt[k + 1] = colder;
+				slotOf[hotter] = k;
+				slotOf[colder] = k + 1;
+				swapsAccepted[k]++;
+			}
+		}
+	}
+
+	/**
+	 * Runs a number of Metropolis steps of one replica at its temperature.
+	 */
+	private class Sweep implements Callable<Object> {
+		private final int replica;
+		private final int length;
+
+		Sweep(int replica, int length) {
+			this.replica = replica;
+			this.length = length;
+		}
+
+		public Object call() throws CDKException {
+			AnnealerAdapterI aa = replicas[replica];
+			Random random = replicaRands[replica];
+			double t = ladder[slotOf[replica]];
+			for (int i = 0; i < length; i++) {
+				// drawn in advance as in AdaptiveAnnealingEngine
+				double r = random.nextDouble();
+				if (cancelled || aa.isCancelled()) {
+					cancelled = true;
+					return null;
+				} else if (aa instanceof ThresholdAnnealerAdapterI) {
+					((ThresholdAnnealerAdapterI) aa).nextState(-t * Math.log(r));
+				} else {
+					aa.nextState();
+				}
+				proposed[replica]++;
+				if (aa.costDecreasing()
+						|| r < Math.pow(Math.E, (aa.costDifference() / t))) {
+					costs[replica] -= aa.costDifference();
+					aa.accept();
+					accepted[replica]++;
+				} else {
+					aa.reject();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Passes the states of a replica on to the listeners of the engine.
+	 */
+	private class ReplicaListener implements StateListener {
+		private final int replica;
+
+		ReplicaListener(int replica) {
+			this.replica = replica;
+		}
+
+		public void stateChanged(State state) {
+			synchronized (stateListeners) {
+				double cost = replicas[replica].getBestCost();
+				if (cost < replicaBestCosts[replica]) {
+					// the replica found a better state, pass it on if no other found one as good
+					replicaBestCosts[replica] = cost;
+					if (cost < bestCost) {
+						bestCost = cost;
+						fireStateEvent(state);
+					}
+				} else if (replica == 0) {
+					fireStateEvent(state);
+				}
+			}
+		}
+	}
+
+	private void fireStatistics(int step) {
+		int n = replicas.length;
+		double[] acceptanceRates = new double[n];
+		double[] swapRates = new double[swapsTried.length];
+		for (int k = 0; k < n; k++)
+			acceptanceRates[k] = getAcceptanceRate(k);
+		for (int k = 0; k < swapRates.length; k++)
+			swapRates[k] = getSwapRate(k);
+		synchronized (stateListeners) {
+			fireStateEvent(new ReplicaExchangeState(step, slotOf.clone(),
+					acceptanceRates, swapRates, bestCost));
+		}
+	}
+
+	private void fireStateEvent(State state) {
+		for (StateListener listener : this.stateListeners) {
+			listener.stateChanged(state);
+		}
+	}
+
+	private void fireTemperatureEvent(double t) {
+		for (TemperatureListener listener : this.temperatureListeners) {
+			listener.temperatureChange(t);
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package net.bioclipse.seneca.anneal;
+
+/**
+ * The statistics of a ParallelTemperingEngine after an exchange round,
+ * passed to its state listeners. Replicas are numbered as given to the
+ * engine, temperature slots from the coldest to the hottest.
+ */
+public class ReplicaExchangeState implements State {
+
+	/** the steps each replica has taken so far */
+	public final int stepIndex;
+
+	/** the temperature slot of each replica */
+	public final int[] slots;
+
+	/** the fraction of proposed states each replica accepted */
+	public final double[] acceptanceRates;
+
+	/** the fraction of accepted swaps between slot k and k+1 */
+	public final double[] swapRates;
+
+	/** the lowest cost found by any replica */
+	public final double bestCost;
+
+	public ReplicaExchangeState(int stepIndex, int[] slots,
+			double[] acceptanceRates, double[] swapRates, double bestCost) {
+		this.stepIndex = stepIndex;
+		this.slots = slots;
+		this.acceptanceRates = acceptanceRates;
+		this.swapRates = swapRates;
+		this.bestCost = bestCost;
+	}
+
+	public int getStep() {
+		return this.stepIndex;
+	}
+
+}
@@ -0,0 +1,33 @@
+package net.bioclipse.seneca.anneal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * An annealer adapter whose current and best states can be saved between
+ * two steps and restored, for a ResumableEngineI.
+ */
+public interface ResumableAnnealerAdapterI extends AnnealerAdapterI {
+
+	/**
+	 * Writes the current and best states, their costs, the step counters
+	 * and the state of the random numbers.
+	 *
+	 * @param out The output.
+	 * @throws IOException
+	 */
+	public void writeState(DataOutput out) throws IOException;
+
+	/**
+	 * Continues from what writeState wrote, instead of initialState.
+	 *
+	 * @param in The input.
+	 * @throws IOException if the state does not fit the adapter.
+	 * @throws CDKException
+	 */
+	public void readState(DataInput in) throws IOException, CDKException;
+
+}
@@ -0,0 +1,37 @@
+package net.bioclipse.seneca.anneal;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * An annealing engine whose run can be continued from a checkpoint. While
+ * it runs, the engine passes its state, including that of its adapters, to
+ * a CheckpointListener from time to time, and once more when it is
+ * cancelled. The adapters must be ResumableAnnealerAdapterIs.
+ *
+ * A resumed run is statistically equivalent to the run it continues, not
+ * necessarily the same: an adapter may make different moves from the same
+ * random numbers after its state was restored.
+ */
+public interface ResumableEngineI extends AnnealingEngineI {
+
+	/**
+	 * @param listener The listener to pass the states to.
+	 * @param interval The milliseconds between two states; more if passing
+	 *                 them on takes more than 1% of the time.
+	 */
+	public void setCheckpointListener(CheckpointListener listener, long interval);
+
+	/**
+	 * Makes the next run continue from a state passed to a checkpoint
+	 * listener, by an engine set up like this one.
+	 *
+	 * @param in The state.
+	 * @throws IOException if the state does not fit the engine.
+	 * @throws CDKException
+	 */
+	public void readState(DataInput in) throws IOException, CDKException;
+
+}
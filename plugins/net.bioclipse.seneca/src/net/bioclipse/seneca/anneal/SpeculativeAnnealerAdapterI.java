@@ -0,0 +1,37 @@
+package net.bioclipse.seneca.anneal;
+
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * An annealer adapter which can generate and cost several states from the
+ * current one at once. When few states are accepted, the engine asks for a
+ * batch and tests them in order as if they had been generated one after
+ * another: each rejected state is followed by one generated from the same
+ * current state, so the chain has the same distribution as without
+ * speculation, though it is drawn from other random numbers; the states
+ * after the first accepted one are dropped.
+ */
+public interface SpeculativeAnnealerAdapterI extends ThresholdAnnealerAdapterI {
+
+	/**
+	 * Generates count states from the current state, concurrently, and
+	 * calculates their costs. The cost of state k may be left incomplete as
+	 * for nextState(double) with acceptableIncreases[k].
+	 *
+	 * @param count               The number of states.
+	 * @param acceptableIncreases The largest cost increase accepted for each state.
+	 * @throws CDKException
+	 */
+	public void nextStates(int count, double[] acceptableIncreases)
+			throws CDKException;
+
+	/**
+	 * Makes state k of the last nextStates the next state, as nextState
+	 * would have, to be accepted or rejected. States must be used in order,
+	 * and none after an accepted one.
+	 *
+	 * @param k The index of the state.
+	 */
+	public void useState(int k);
+
+}
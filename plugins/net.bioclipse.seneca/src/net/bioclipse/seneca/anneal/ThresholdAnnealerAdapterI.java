@@ -0,0 +1,25 @@
+package net.bioclipse.seneca.anneal;
+
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * An annealer adapter which can skip part of the cost calculation for
+ * states which will be rejected anyway. The engine draws the random number
+ * for the Metropolis test before asking for the next state and passes the
+ * largest cost increase which would still be accepted.
+ */
+public interface ThresholdAnnealerAdapterI extends AnnealerAdapterI {
+
+	/**
+	 * Generate a new state internally, and store it for acceptance/rejection.
+	 * If the cost of the new state is certainly higher than the cost of the
+	 * current state plus acceptableIncrease, the adapter may stop calculating
+	 * it; costDecreasing must then return false and costDifference must
+	 * return a value which makes the engine reject the state.
+	 *
+	 * @param acceptableIncrease The largest cost increase which is accepted.
+	 * @throws CDKException
+	 */
+	public void nextState(double acceptableIncrease) throws CDKException;
+
+}
@@ -93,4 +93,21 @@ public interface ISenecaManager extends IBioclipseManager {
           	"functions defined in a SenecaJobSpecification. Only " +
           	"the scoring part of sjs is used. ")
   public List<JudgeResult> evaluateStructures(SenecaJobSpecification sjs, List<IMolecule> structure);
+
+  @Recorded
+  @PublishedMethod( params = "SenecaJobSpecification sjs, IFile structures, IFile results",
+          methodSummary = "Evaluates all structures of an SD file against the " +
+            "scoring functions defined in a SenecaJobSpecification, and writes " +
+            "them best first, with their scores, to another SD file. The " +
+            "structures are scored in parallel. Only the scoring part of sjs " +
+            "is used. ")
+  public void rankStructures(SenecaJobSpecification sjs, IFile structures, IFile results) throws BioclipseException;
+
+  @Recorded
+  @PublishedMethod( params = "SenecaJobSpecification sjs, String structures, String results",
+          methodSummary = "Evaluates all structures of an SD file against the " +
+            "scoring functions defined in a SenecaJobSpecification, and writes " +
+            "them best first, with their scores, to another SD file. The " +
+            "paths are relative to the workspace. ")
+  public void rankStructures(SenecaJobSpecification sjs, String structures, String results) throws BioclipseException;
 }
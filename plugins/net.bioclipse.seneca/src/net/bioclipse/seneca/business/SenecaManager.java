@@ -1,11 +1,22 @@
 package net.bioclipse.seneca.business;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.bioclipse.cdk.domain.CDKMolecule;
 import net.bioclipse.cdk.domain.ICDKMolecule;
@@ -20,6 +31,7 @@ import net.bioclipse.seneca.editor.TemperatureAndScoreListener;
 import net.bioclipse.seneca.job.DeterministicStructureElucidationJob;
 import net.bioclipse.seneca.job.GAStructureElucidationJob;
 import net.bioclipse.seneca.job.ICASEJob;
+import net.bioclipse.seneca.job.IResumableJob;
 import net.bioclipse.seneca.job.IScoreImprovedListener;
 import net.bioclipse.seneca.job.PubchemStructureElucidationJob;
 import net.bioclipse.seneca.job.StochasticStructureElucidationJob;
@@ -27,6 +39,7 @@ import net.bioclipse.seneca.job.UserConfigurableStochasticStructureElucidationJo
 import net.bioclipse.seneca.judge.IJudge;
 import net.bioclipse.seneca.judge.JudgeResult;
 import net.bioclipse.seneca.judge.MissingInformationException;
+import net.bioclipse.seneca.util.RandomSource;
 import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.ParsingException;
@@ -36,14 +49,21 @@ import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
 import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IIsotope;
 import org.openscience.cdk.interfaces.IMolecularFormula;
+import org.openscience.cdk.io.MDLV2000Writer;
+import org.openscience.cdk.io.iterator.IteratingMDLReader;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
 
 public class SenecaManager implements IBioclipseManager {
@@ -51,6 +71,9 @@ public class SenecaManager implements IBioclipseManager {
 	private IFinishListener finishlistener;
 	private TemperatureAndScoreListener temperaturelistener;
 
+	/** The milliseconds between two checkpoints of a job */
+	private static final long CHECKPOINT_INTERVAL = 5 * 60 * 1000;
+
     public String getManagerName() {
 		return "seneca";
 	}
@@ -154,12 +177,29 @@ public class SenecaManager implements IBioclipseManager {
 	    if (generatorID != null) {
 	      if (StructureGeneratorSettingsPage.generatorName
 	          .equals(generatorID)) {
-  	        job = new StochasticStructureElucidationJob( 
+  	        // older specifications have no replicas, chains or target score
+  	        String replicas = jobSpec.getGeneratorSetting( 
+  	                              StructureGeneratorSettingsPage.generatorName, 
+  	                              "replicas");
+  	        String chains = jobSpec.getGeneratorSetting( 
+  	                            StructureGeneratorSettingsPage.generatorName, 
+  	                            "chains");
+  	        String targetScore = jobSpec.getGeneratorSetting( 
+  	                                 StructureGeneratorSettingsPage.generatorName, 
+  	                                 "targetScore");
+  	        StochasticStructureElucidationJob stochasticJob 
+  	            = new StochasticStructureElucidationJob( 
   	                  startStructure, 
   	                  Integer.parseInt( 
   	                      jobSpec.getGeneratorSetting( 
   	                          StructureGeneratorSettingsPage.generatorName, 
-  	                          "numberSteps")));
+  	                          "numberSteps")),
+  	                  replicas == null ? 1 : Integer.parseInt(replicas));
+  	        if (chains != null)
+  	            stochasticJob.setChains( Integer.parseInt(chains) );
+  	        if (targetScore != null && targetScore.trim().length() > 0)
+  	            stochasticJob.setTargetScore( Double.parseDouble(targetScore) );
+  	        job = stochasticJob;
         } else if (StructureGeneratorSettingsPage.generatorNameUserConfigurable
                 .equals(generatorID)) {
             job = new UserConfigurableStochasticStructureElucidationJob( 
@@ -181,6 +221,10 @@ public class SenecaManager implements IBioclipseManager {
 	      }
         job.setJobSpecification( jobSpec );
         job.setDetectAromaticity(jobSpec.getDetectAromaticity());
+        // without a seed in the specification each run differs
+        Long seed = jobSpec.getSeed();
+        job.setRandomSource( seed == null ? new RandomSource() 
+                                          : new RandomSource( seed ) );
         //Add judges
         Iterator<String> judgeIDs = jobSpec.getJudges().iterator();
         while (judgeIDs.hasNext()) {
@@ -211,6 +255,8 @@ public class SenecaManager implements IBioclipseManager {
         job.addScoreImprovedListener( new MyScoreImprovedListener(returner) );
         if(temperaturelistener!=null)
             job.addTemperatureAndScoreListener(temperaturelistener);
+        if (job instanceof IResumableJob)
+            setUpCheckpoints((IResumableJob) job, jobSpec);
         job.run( monitor);
         finishlistener.finished();
 	 	  }else{
@@ -218,6 +264,31 @@ public class SenecaManager implements IBioclipseManager {
 	    }
 	}
 	
+	/**
+	 * Makes a job write checkpoints to its job directory, and resume from
+	 * the checkpoint there, which a run only leaves if it did not finish.
+	 * The job rejects a checkpoint written with other judges, weights, data
+	 * files or seed, and starts a new run.
+	 */
+	private void setUpCheckpoints(IResumableJob job, SenecaJobSpecification jobSpec) {
+	    IContainer directory = jobSpec.getJobDirectory();
+	    IPath location = directory == null ? null : directory.getLocation();
+	    if (location == null)
+	        return;
+	    String title = jobSpec.getJobTitle() == null ? "seneca" : jobSpec.getJobTitle();
+	    File checkpoint = new File(location.toFile(), title + ".checkpoint");
+	    if (checkpoint.exists()) {
+	        try {
+	            job.resumeFrom(checkpoint);
+	        } catch (IOException e) {
+	            // the new run replaces a checkpoint it cannot use, e.g. one
+	            // of the job before it was changed
+	            e.printStackTrace();
+	        }
+	    }
+	    job.setCheckpointFile(checkpoint, CHECKPOINT_INTERVAL);
+	}
+
 	private class MyScoreImprovedListener implements IScoreImprovedListener{
 
 	      IReturner<IMolecule> returner=null;
@@ -233,6 +304,8 @@ public class SenecaManager implements IBioclipseManager {
 	
 	public boolean validateJob(SenecaJobSpecification sjs){
 	    boolean canFinish =  checkForRequiredData(sjs);
+      if (canFinish)
+        canFinish = sjs.isSeedValid();
       if (canFinish)
         canFinish = canFinish && configureEngine(sjs);
       if (canFinish)
@@ -304,19 +377,228 @@ public class SenecaManager implements IBioclipseManager {
   
   public List<JudgeResult> evaluateStructures(SenecaJobSpecification sjs, List<IMolecule> structures) throws BioclipseException{
 	  List<JudgeResult> results = new ArrayList<JudgeResult>();
+	  //the judges are configured once for all structures
+	  List<IJudge> judges = createJudges(sjs, false);
 	  for(int i=0;i<structures.size();i++){
-		  results.add(this.evaluateStructure(sjs, structures.get(i)));
+		  ICDKMolecule mol = net.bioclipse.cdk.business.Activator.getDefault().getJavaCDKManager().asCDKMolecule(structures.get(i));
+		  results.add(scoreStructure(judges, mol.getAtomContainer()));
 	  }
 	  return results;
   }
 
   public JudgeResult evaluateStructure(SenecaJobSpecification sjs, IMolecule structure) throws BioclipseException{
-  	StringBuffer result = new StringBuffer();
 	ICDKMolecule mol = net.bioclipse.cdk.business.Activator.getDefault().getJavaCDKManager().asCDKMolecule(structure);
-    //Add judges
+	return scoreStructure(createJudges(sjs, false), mol.getAtomContainer());
+  }
+
+  /**
+   * Scores all structures of an SD file against the judges of a job
+   * specification and writes them, best first, to another SD file, with
+   * the score in the fields "Score" and "Score description". The judges
+   * are configured once per worker thread, and the structures are read,
+   * scored and spooled one by one, so the file can be larger than memory.
+   *
+   * @param sjs        The job specification, only the judges are used.
+   * @param structures The SD file to read.
+   * @param results    The SD file to write, it is replaced if it exists.
+   * @param monitor    A progress monitor.
+   * @throws OperationCanceledException if the monitor was cancelled; the
+   *                                    results are not written then.
+   */
+  public void rankStructures(final SenecaJobSpecification sjs, IFile structures, IFile results, IProgressMonitor monitor) throws BioclipseException{
+	  final ThreadLocal<List<IJudge>> workerJudges = new ThreadLocal<List<IJudge>>();
+	  // fails early if a judge cannot be configured
+	  workerJudges.set(createJudges(sjs, true));
+	  monitor.beginTask("Ranking structures", IProgressMonitor.UNKNOWN);
+	  final List<RankedStructure> ranked = new ArrayList<RankedStructure>();
+	  File spoolFile = null;
+	  RandomAccessFile spool = null;
+	  InputStream contents = null;
+	  IteratingMDLReader reader = null;
+	  int workers = Runtime.getRuntime().availableProcessors();
+	  // a full queue makes the reading thread score, so reading never runs far ahead
+	  ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0,
+			  TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(4 * workers),
+			  new ThreadPoolExecutor.CallerRunsPolicy());
+	  try {
+		  spoolFile = File.createTempFile("seneca-rank", ".sdf");
+		  spoolFile.deleteOnExit();
+		  final RandomAccessFile spoolOut = new RandomAccessFile(spoolFile, "rw");
+		  spool = spoolOut;
+		  final List<Throwable> failures = new ArrayList<Throwable>();
+		  contents = structures.getContents();
+		  reader = new IteratingMDLReader(contents, DefaultChemObjectBuilder.getInstance());
+		  int index = 0;
+		  while (reader.hasNext() && !monitor.isCanceled()) {
+			  final org.openscience.cdk.interfaces.IMolecule molecule = (org.openscience.cdk.interfaces.IMolecule) reader.next();
+			  final int structureIndex = index++;
+			  executor.execute(new Runnable() {
+				  public void run() {
+					  try {
+						  List<IJudge> judges = workerJudges.get();
+						  if (judges == null) {
+							  judges = createJudges(sjs, true);
+							  workerJudges.set(judges);
+						  }
+						  JudgeResult result;
+						  try {
+							  AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
+							  CDKHydrogenAdder.getInstance(DefaultChemObjectBuilder.getInstance()).addImplicitHydrogens(molecule);
+							  result = scoreStructure(judges, molecule);
+						  } catch (Exception e) {
+							  result = new JudgeResult(0, 0, 0, "not possible with this structure: " + e.getMessage());
+						  }
+						  byte[] record = toSDRecord(molecule, result);
+						  synchronized (spoolOut) {
+							  long offset = spoolOut.length();
+							  spoolOut.seek(offset);
+							  spoolOut.write(record);
+							  ranked.add(new RankedStructure(result.score, structureIndex, offset, record.length));
+						  }
+					  } catch (Throwable e) {
+						  synchronized (failures) {
+							  failures.add(e);
+						  }
+					  }
+				  }
+			  });
+			  monitor.worked(1);
+			  monitor.subTask("Read " + index + " structures");
+		  }
+		  // a partial ranking must not replace the results
+		  if (monitor.isCanceled())
+			  throw new OperationCanceledException();
+		  executor.shutdown();
+		  executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		  if (!failures.isEmpty())
+			  throw new BioclipseException("Ranking structures failed: " + failures.get(0).getMessage(), failures.get(0));
+		  Collections.sort(ranked);
+		  File rankedFile = File.createTempFile("seneca-ranked", ".sdf");
+		  rankedFile.deleteOnExit();
+		  OutputStream out = new BufferedOutputStream(new FileOutputStream(rankedFile));
+		  try {
+			  byte[] buffer = new byte[0];
+			  for (RankedStructure structure : ranked) {
+				  if (buffer.length < structure.length)
+					  buffer = new byte[structure.length];
+				  spoolOut.seek(structure.offset);
+				  spoolOut.readFully(buffer, 0, structure.length);
+				  out.write(buffer, 0, structure.length);
+			  }
+		  } finally {
+			  out.close();
+		  }
+		  InputStream source = new FileInputStream(rankedFile);
+		  try {
+			  if (results.exists())
+				  results.setContents(source, true, false, monitor);
+			  else
+				  results.create(source, true, monitor);
+		  } finally {
+			  source.close();
+			  rankedFile.delete();
+		  }
+	  } catch (IOException e) {
+		  throw new BioclipseException(e.getMessage(), e);
+	  } catch (CoreException e) {
+		  throw new BioclipseException(e.getMessage(), e);
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  throw new BioclipseException(e.getMessage(), e);
+	  } finally {
+		  executor.shutdownNow();
+		  workerJudges.remove();
+		  if (reader != null) {
+			  try {
+				  reader.close();
+			  } catch (IOException e) {
+				  e.printStackTrace();
+			  }
+		  }
+		  if (contents != null) {
+			  try {
+				  contents.close();
+			  } catch (IOException e) {
+				  e.printStackTrace();
+			  }
+		  }
+		  if (spool != null) {
+			  try {
+				  spool.close();
+			  } catch (IOException e) {
+				  e.printStackTrace();
+			  }
+		  }
+		  if (spoolFile != null)
+			  spoolFile.delete();
+		  monitor.done();
+	  }
+  }
+
+  /**
+   * A scored structure in the spool file of rankStructures, ordered best first.
+   */
+  private static class RankedStructure implements Comparable<RankedStructure> {
+	  final double score;
+	  final int index;
+	  final long offset;
+	  final int length;
+
+	  RankedStructure(double score, int index, long offset, int length) {
+		  this.score = score;
+		  this.index = index;
+		  this.offset = offset;
+		  this.length = length;
+	  }
+
+	  public int compareTo(RankedStructure other) {
+		  if (score != other.score)
+			  return score > other.score ? -1 : 1;
+		  return index - other.index;
+	  }
+  }
+
+  /**
+   * Writes a structure with its score as an SD file record.
+   */
+  private static byte[] toSDRecord(org.openscience.cdk.interfaces.IMolecule molecule, JudgeResult result) throws CDKException, IOException {
+	  StringWriter writer = new StringWriter();
+	  MDLV2000Writer mdlWriter = new MDLV2000Writer(writer);
+	  mdlWriter.write(molecule);
+	  mdlWriter.close();
+	  StringBuffer record = new StringBuffer(writer.toString());
+	  if (record.length() > 0 && record.charAt(record.length() - 1) != '\n')
+		  record.append("\n");
+	  for (Map.Entry<Object, Object> property : molecule.getProperties().entrySet()) {
+		  if (property.getKey() instanceof String && property.getValue() != null
+				  && !((String) property.getKey()).startsWith("cdk:")
+				  && !property.getKey().equals("Score")
+				  && !property.getKey().equals("Score description"))
+			  appendField(record, (String) property.getKey(), property.getValue().toString());
+	  }
+	  appendField(record, "Score", result.score + "/" + result.maxScore);
+	  appendField(record, "Score description", result.scoreDescription.trim());
+	  record.append("$$$$\n");
+	  return record.toString().getBytes("UTF-8");
+  }
+
+  private static void appendField(StringBuffer record, String name, String value) {
+	  record.append("> <").append(name).append(">\n");
+	  record.append(value.replace("\r\n", "\n")).append("\n\n");
+  }
+
+  /**
+   * Creates and configures the judges of a job specification.
+   *
+   * @param sjs          The job specification.
+   * @param newInstances If true, each judge is a new object; else the
+   *                     extension objects may be configured and returned,
+   *                     which is cheaper but not safe for concurrent use.
+   * @return The configured judges.
+   */
+  private List<IJudge> createJudges(SenecaJobSpecification sjs, boolean newInstances) throws BioclipseException{
+    List<IJudge> result = new ArrayList<IJudge>();
     Iterator<String> judgeIDs = sjs.getJudges().iterator();
-    double maxScore=0;
-    double score=0;
     while (judgeIDs.hasNext()) {
       String judgeID = judgeIDs.next();
       Iterator<IJudge> judges = net.bioclipse.seneca.Activator.getDefault()
@@ -325,32 +607,53 @@ public class SenecaManager implements IBioclipseManager {
         IJudge factory = judges.next();
         if (factory.getClass().getName().equals(judgeID)) {
           try {
+            if (newInstances)
+              factory = factory.getClass().newInstance();
             IJudge judge 
                 = factory.createJudge(
                       new Path( sjs.getJobDirectory()
                                        .getFullPath().toOSString()
                                 + File.separator 
                                 + sjs.getJudgesData().get( judgeID)));
-			if (judge.hasMaxScore()) {
+			if (judge.hasMaxScore())
 				judge.calcMaxScore();
-				maxScore+=judge.getMaxScore();
-			}
-            if(judge.isLabelling())
-            	judge.labelStartStructure(mol.getAtomContainer());
-            try {
-            	JudgeResult judgeResult = judge.evaluate(mol.getAtomContainer());
-            	result.append(judgeID+ ": "+judgeResult.score+"/"+judge.getMaxScore()+"\r\n");
-            	score += judgeResult.score;
-			} catch (Exception e) {
-				result.append(judgeID+ ": not possible with this structure\r\n");
-				e.printStackTrace();
-			}
+            result.add(judge);
           } catch (MissingInformationException e) {
               throw new BioclipseException(e.getMessage(),e);
+          } catch (InstantiationException e) {
+              throw new BioclipseException(e.getMessage(),e);
+          } catch (IllegalAccessException e) {
+              throw new BioclipseException(e.getMessage(),e);
           }
         }
       }
     }
+    return result;
+  }
+
+  /**
+   * Scores a structure with configured judges. The score is the sum of the
+   * judge scores, the description lists the score of each judge.
+   */
+  private JudgeResult scoreStructure(List<IJudge> judges, IAtomContainer ac) {
+  	StringBuffer result = new StringBuffer();
+    double maxScore=0;
+    double score=0;
+    for (IJudge judge : judges) {
+        String judgeID = judge.getClass().getName();
+        if (judge.hasMaxScore())
+            maxScore+=judge.getMaxScore();
+        if(judge.isLabelling())
+        	judge.labelStartStructure(ac);
+        try {
+        	JudgeResult judgeResult = judge.evaluate(ac);
+        	result.append(judgeID+ ": "+judgeResult.score+"/"+judge.getMaxScore()+"\r\n");
+        	score += judgeResult.score;
+		} catch (Exception e) {
+			result.append(judgeID+ ": not possible with this structure\r\n");
+			e.printStackTrace();
+		}
+    }
     return new JudgeResult(maxScore, score, 0, result.toString());
   }
 }
@@ -162,6 +162,62 @@ public class SenecaJobSpecification {
 	    root.appendChild(mfElem);
 	}
 
+	/**
+	 * @return The seed of the random numbers of the run, null for a new
+	 *         seed each run or if the seed is no number, see isSeedValid.
+	 */
+	public Long getSeed(){
+	    String text = getSeedText();
+	    if (text.length() == 0)
+	      return null;
+	    try {
+	      return Long.valueOf( text );
+	    } catch (NumberFormatException e) {
+	      return null;
+	    }
+	}
+
+	/**
+	 * @return The seed as written in the specification, empty if there is none.
+	 */
+	public String getSeedText(){
+	    Nodes result = root.query("./sjs:seed", context);
+	    if (result.size() > 0) {
+	      return result.get(0).getValue().trim();
+	    }
+	    return "";
+	}
+
+	/**
+	 * @return Whether the seed is empty or a number, a hand edited file may
+	 *         have another value.
+	 */
+	public boolean isSeedValid(){
+	    String text = getSeedText();
+	    return text.length() == 0 || getSeed() != null;
+	}
+
+	public void setSeed(Long seed){
+	    setSeedText(seed == null ? "" : seed.toString());
+	}
+
+	/**
+	 * Sets the seed as entered, which need not be a number: checking the
+	 * job reports it then.
+	 *
+	 * @param seed The seed, empty for a new one each run.
+	 */
+	public void setSeedText(String seed){
+	    Nodes result = root.query("./sjs:seed", context);
+	    for (int i=0; i<result.size(); i++)
+	      root.removeChild(result.get(i));
+	    if (seed.trim().length() > 0) {
+	      Element seedElem = new Element("seed", NAMESPACE);
+	      seedElem.appendChild(seed.trim());
+	      root.appendChild(seedElem);
+	    }
+	}
+
 	public void setJudgeEnabled(String id, boolean enabled) {
 		Nodes result = root.query("./sjs:judge[./@id='" + id + "']", context);
 		if (enabled) {
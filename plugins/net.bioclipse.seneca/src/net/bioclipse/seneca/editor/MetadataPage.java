@@ -13,7 +13,10 @@ package net.bioclipse.seneca.editor;
 import net.bioclipse.seneca.domain.SenecaJobSpecification;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.dialogs.IMessageProvider;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
 import org.eclipse.swt.layout.GridData;
@@ -33,6 +36,7 @@ public class MetadataPage extends FormPage implements IDirtyablePage {
 	private Text[] dataFile = new Text[4];
 	public boolean isDirty = false;
 	private Button detectAromaticity;
+	private Text seed;
 
 	public MetadataPage(FormEditor editor) {
 		super(editor, "metadata", "General Data");
@@ -94,6 +98,42 @@ public class MetadataPage extends FormPage implements IDirtyablePage {
         
     });
     detectAromaticity.setSelection( specification.getDetectAromaticity() );
+    // a fixed seed repeats a run exactly
+    toolkit.createLabel(form.getBody(), "Random seed (empty for a new one each run):");
+    seed = toolkit.createText(form.getBody(), specification.getSeedText(), SWT.BORDER);
+    gData = new GridData(GridData.FILL_HORIZONTAL);
+    gData.horizontalSpan = 2;
+    seed.setLayoutData(gData);
+    seed.addModifyListener(new EditorModifyListener(this));
+    seed.addModifyListener(new ModifyListener(){
+
+        public void modifyText( ModifyEvent e ) {
+
+            checkSeed();
+        }
+    });
+    checkSeed();
+	}
+
+	/**
+	 * Marks the seed field if it is neither empty nor a whole number; the
+	 * job is not run then.
+	 */
+	private void checkSeed() {
+		String seedText = seed.getText().trim();
+		boolean valid = seedText.length() == 0;
+		try {
+			Long.parseLong(seedText);
+			valid = true;
+		} catch (NumberFormatException e) {
+			// not a number
+		}
+		if (valid)
+			getManagedForm().getMessageManager().removeMessage("seed", seed);
+		else
+			getManagedForm().getMessageManager().addMessage("seed",
+					"The random seed must be a whole number or empty", null,
+					IMessageProvider.ERROR, seed);
 	}
 
 	public void doSave(IProgressMonitor monitor) {
@@ -111,6 +151,8 @@ public class MetadataPage extends FormPage implements IDirtyablePage {
 		    specification.setDeptData(i, Integer.parseInt( dataFile[i].getText() ));
 		}
 		specification.setDetectAromaticity( detectAromaticity.getSelection() );
+		// an invalid seed is kept as entered, checking the job reports it
+		specification.setSeedText( seed.getText() );
 		this.setDirty(false);
 	}
 
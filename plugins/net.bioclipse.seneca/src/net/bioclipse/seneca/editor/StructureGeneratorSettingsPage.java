@@ -93,6 +93,9 @@ public class StructureGeneratorSettingsPage extends FormPage implements IDirtyab
 
 	// items for the annealing engine settings
 	private Text numberOfSteps;
+	private Text numberOfReplicas;
+	private Text numberOfChains;
+	private Text targetScore;
 	
   // items for the configurabel annealing engine settings
   private Text acceptanceProb;
@@ -226,10 +229,24 @@ public class StructureGeneratorSettingsPage extends FormPage implements IDirtyab
 			"Number of Steps :", generatorName, "numberSteps",
 			Integer.toString(AdaptiveAnnealingEngine.DEFAULT_EVALSMAX)
 		);
+		// more than one replica runs a parallel tempering engine
+		this.numberOfReplicas = createSettingField(toolkit, settingsSectionClient, this.numberOfReplicas,
+			"Number of Replicas (parallel tempering if more than 1) :", generatorName, "replicas", "1"
+		);
+		this.numberOfChains = createSettingField(toolkit, settingsSectionClient, this.numberOfChains,
+			"Number of independent Chains :", generatorName, "chains", "1"
+		);
+		// empty means no target, all chains take all steps
+		this.targetScore = createSettingField(toolkit, settingsSectionClient, this.targetScore,
+			"Stop at Score (0-1, empty for none) :", generatorName, "targetScore", ""
+		);
 		Button resetParamsButton = toolkit.createButton(settingsSectionClient, "Reset", SWT.PUSH);
 		resetParamsButton.addSelectionListener(new SelectionAdapter() {
 		    public void widgetSelected(SelectionEvent e) {
 		        numberOfSteps.setText(Integer.toString(AdaptiveAnnealingEngine.DEFAULT_EVALSMAX));
+		        numberOfReplicas.setText("1");
+		        numberOfChains.setText("1");
+		        targetScore.setText("");
 		    }
 		});
 
@@ -476,6 +493,9 @@ public class StructureGeneratorSettingsPage extends FormPage implements IDirtyab
 		    
 		    specification.setGeneratorEnabled(classNameStoch.getText(), enabledStoch.getSelection());
     		specification.setGeneratorSetting(generatorName, "numberSteps", numberOfSteps.getText());
+    		specification.setGeneratorSetting(generatorName, "replicas", numberOfReplicas.getText());
+    		specification.setGeneratorSetting(generatorName, "chains", numberOfChains.getText());
+    		specification.setGeneratorSetting(generatorName, "targetScore", targetScore.getText());
     		specification.setGeneratorEnabled(classNameStochUserSettings.getText(), enabledStochUserSettings.getSelection());
 
 	        specification.setGeneratorSetting(generatorNameUserConfigurable, "acceptanceProbability", acceptanceProb.getText());
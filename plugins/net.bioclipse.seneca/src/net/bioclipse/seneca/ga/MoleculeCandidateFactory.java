@@ -42,7 +42,8 @@ public class MoleculeCandidateFactory extends AbstractCandidateFactory<IMolecule
     public IMolecule generateRandomCandidate( Random arg0 ) {
         SingleStructureRandomGenerator ssrg;
         try {
-            ssrg = new SingleStructureRandomGenerator();
+            // the default seed would give the same structure for each candidate
+            ssrg = new SingleStructureRandomGenerator(arg0);
             ssrg.setAtomContainer(formula);
             IMolecule mol = ssrg.generate();
             rearangeAtoms( mol );
@@ -42,7 +42,7 @@ public class MoleculeCrossover extends AbstractCrossover<IMolecule> {
                                    Random arg3 ) {
         List<IAtomContainer> l;
         try {
-            l = cm.doCrossover( arg0, arg1 );
+            l = cm.doCrossover( arg0, arg1, arg3 );
             List<IMolecule> result =new ArrayList<IMolecule>();
             if(detectAromaticity){
                 CDKHueckelAromaticityDetector.detectAromaticity( l.get( 0 ) );
@@ -27,16 +27,27 @@ public class MoleculeEvolutionObserver implements
         EvolutionObserver<IMolecule> {
     GAStructureElucidationJob site;
     double bestscoresofar=0;
+    int firstGeneration=0;
     
     public MoleculeEvolutionObserver(GAStructureElucidationJob site){
         this.site = site;
     }
 
+    /**
+     * @param bestScore       The best score of a resumed run.
+     * @param firstGeneration The generations of a resumed run.
+     */
+    public MoleculeEvolutionObserver(GAStructureElucidationJob site, double bestScore, int firstGeneration){
+        this.site = site;
+        this.bestscoresofar = bestScore;
+        this.firstGeneration = firstGeneration;
+    }
+
     public void populationUpdate( PopulationData<? extends IMolecule> data ) {
         site.temperatureChange( 0 );
         if(data.getBestCandidateFitness()>bestscoresofar){
             bestscoresofar = data.getBestCandidateFitness();
-            MoleculeState moleculeState = new MoleculeState(data.getBestCandidate(),Acceptance.ACCEPT,data.getGenerationNumber(), data.getBestCandidateFitness());
+            MoleculeState moleculeState = new MoleculeState(data.getBestCandidate(),Acceptance.ACCEPT,firstGeneration+data.getGenerationNumber(), data.getBestCandidateFitness());
             site.stateChanged( moleculeState );
         }
     }
@@ -14,7 +14,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
-import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
+import net.bioclipse.seneca.util.IncrementalAromaticity;
+
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IMolecule;
 import org.openscience.cdk.structgen.RandomGenerator;
@@ -35,12 +36,13 @@ public class MoleculeMutation implements EvolutionaryOperator<IMolecule> {
     public List<IMolecule> apply( List<IMolecule> arg0, Random arg1 ) {
         List<IMolecule> result= new ArrayList<IMolecule>();
         for(IMolecule molecule : arg0){
-            RandomGenerator rg=new RandomGenerator(molecule);
+            RandomGenerator rg=new RandomGenerator(molecule, arg1);
             IMolecule mol = rg.proposeStructure();
             MoleculeCandidateFactory.rearangeAtoms( mol );
             if(detectAromaticity)
                 try {
-                    CDKHueckelAromaticityDetector.detectAromaticity( mol );
+                    // the parent's aromaticity only changes around the moved atoms
+                    IncrementalAromaticity.detectAromaticity( mol, rg.getMovedAtoms() );
                 } catch ( CDKException e ) {
                     // TODO Auto-generated catch block
                     e.printStackTrace();
@@ -20,6 +20,7 @@ import net.bioclipse.seneca.editor.TemperatureAndScoreListener;
 import net.bioclipse.seneca.judge.ChiefJustice;
 import net.bioclipse.seneca.judge.IJudge;
 import net.bioclipse.seneca.judge.MissingInformationException;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -72,6 +73,10 @@ public class DeterministicStructureElucidationJob
   public void setDetectAromaticity(boolean detectAromaticity){
       this.detectAromaticity = detectAromaticity;
   }
+
+  public void setRandomSource(RandomSource random){
+      // this generator uses no random numbers
+  }
   
 	public DeterministicStructureElucidationJob(String jobTitle) {
 		this.jobTitle = jobTitle;
@@ -10,6 +10,11 @@
  ******************************************************************************/
 package net.bioclipse.seneca.job;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,12 +37,16 @@ import net.bioclipse.seneca.ga.MoleculeFitnessEvaluator;
 import net.bioclipse.seneca.ga.MoleculeMutation;
 import net.bioclipse.seneca.judge.ChiefJustice;
 import net.bioclipse.seneca.judge.IJudge;
+import net.bioclipse.seneca.util.Checkpoint;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.ProgressMonitorWrapper;
 import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
+import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IMolecule;
 import org.openscience.cdk.tools.CDKHydrogenAdder;
@@ -46,8 +55,10 @@ import org.uncommons.maths.random.MersenneTwisterRNG;
 import org.uncommons.watchmaker.framework.CandidateFactory;
 import org.uncommons.watchmaker.framework.ConcurrentEvolutionEngine;
 import org.uncommons.watchmaker.framework.EvolutionEngine;
+import org.uncommons.watchmaker.framework.EvolutionObserver;
 import org.uncommons.watchmaker.framework.EvolutionaryOperator;
 import org.uncommons.watchmaker.framework.FitnessEvaluator;
+import org.uncommons.watchmaker.framework.PopulationData;
 import org.uncommons.watchmaker.framework.SelectionStrategy;
 import org.uncommons.watchmaker.framework.TerminationCondition;
 import org.uncommons.watchmaker.framework.operators.EvolutionPipeline;
@@ -56,9 +67,14 @@ import org.uncommons.watchmaker.framework.termination.Stagnation;
 import org.uncommons.watchmaker.framework.termination.UserAbort;
 
 /**
+ * A checkpoint holds the population of the last generation, as its best
+ * candidate and the offspring of the pipeline, and the structures found so
+ * far. A resumed run evolves that population further, with random numbers
+ * seeded from the state saved with it.
+ *
  * @author Stefan Kuhn
  */
-public class GAStructureElucidationJob implements StateListener, ICASEJob {
+public class GAStructureElucidationJob implements StateListener, IResumableJob {
 
 	private SenecaJobSpecification            specification = null;
 	
@@ -87,6 +103,35 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
                                                                              new UserAbort();
     private boolean                           detectAromaticity;
 
+    private RandomSource                      random                 =
+                                                                             new RandomSource();
+
+    /** The number of scores remembered for structures visited again */
+    private static final int                  SCORE_CACHE_SIZE       = 10000;
+
+    private static final int                  POPULATION_SIZE        = 10;
+
+    private static final int                  ELITE_COUNT            = 1;
+
+    private File                              checkpointFile         = null;
+
+    private Checkpoint.Schedule               checkpointSchedule     = null;
+
+    /** the checkpoint to continue from, after its header */
+    private DataInputStream                   resumeData             = null;
+
+    /** the generations of the run, and of the run before resuming */
+    private int                               generation             = 0;
+
+    private int                               firstGeneration        = 0;
+
+    private double                            bestFitness            = 0;
+
+    /** the best candidate and the offspring of the last generation */
+    private IMolecule                         lastBest               = null;
+
+    private List<IMolecule>                   offspring              = null;
+
     private class MonitorWrapper extends ProgressMonitorWrapper {
 
         private AnnealerAdapterI aa;
@@ -117,6 +162,26 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
         this.detectAromaticity = detectAromaticity;
     }
 
+    public void setRandomSource( RandomSource random ) {
+
+        this.random = random;
+    }
+
+    public void setCheckpointFile( File file, long interval ) {
+
+        this.checkpointFile = file;
+        this.checkpointSchedule = new Checkpoint.Schedule( interval );
+    }
+
+    public void resumeFrom( File checkpoint ) throws IOException {
+
+        DataInputStream in = Checkpoint.read( checkpoint, Checkpoint.GENETIC );
+        if ( !in.readUTF().equals( fingerprint() ) )
+            throw new IOException( checkpoint
+                                   + " is the checkpoint of a run with other settings" );
+        resumeData = in;
+    }
+
     /*
      * @seeorg.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.
      * IProgressMonitor)
@@ -124,6 +189,7 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
     public StructureGeneratorResult run( IProgressMonitor monitor ) {
 
         this.monitor = new MonitorWrapper( monitor );
+        boolean finished = false;
 
         try {
 
@@ -137,26 +203,68 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
                     new LinkedList<EvolutionaryOperator<IMolecule>>();
             operators.add( new MoleculeMutation( detectAromaticity ) );
             operators.add( new MoleculeCrossover( detectAromaticity ) );
+            // the offspring make up the next generation, with the elite
+            operators.add( new EvolutionaryOperator<IMolecule>() {
+
+                public List<IMolecule> apply( List<IMolecule> candidates,
+                                              Random rng ) {
+
+                    offspring = candidates;
+                    return candidates;
+                }
+            } );
             EvolutionaryOperator<IMolecule> pipeline =
                     new EvolutionPipeline<IMolecule>( operators );
 
+            chiefJustice.getScoreCache().setMaxSize( SCORE_CACHE_SIZE );
+            chiefJustice.getScoreCache().resetStatistics();
             FitnessEvaluator<IMolecule> fitnessEvaluator =
                     new MoleculeFitnessEvaluator( chiefJustice );
             SelectionStrategy<Object> selection = new RouletteWheelSelection();
-            Random rng = new MersenneTwisterRNG();
+            List<IMolecule> population = null;
+            long elapsed = 0;
+            generation = firstGeneration = 0;
+            bestFitness = 0;
+            if ( resumeData != null ) {
+                monitor.subTask( "Resuming from checkpoint..." );
+                elapsed = resumeData.readLong();
+                population = resume( resumeData );
+                resumeData = null;
+            }
+            // the engine and the operators use this one, which is thread safe
+            logger.info( "Random seed: " + random.getSeed() );
+            byte[] seed = new byte[16];
+            random.nextBytes( seed );
+            Random rng = new MersenneTwisterRNG( seed );
 
             EvolutionEngine<IMolecule> engine =
                     new ConcurrentEvolutionEngine<IMolecule>( factory,
                                                               pipeline,
                                                               fitnessEvaluator,
                                                               selection, rng );
-            engine.addEvolutionObserver( new MoleculeEvolutionObserver( this ) );
+            engine.addEvolutionObserver( new MoleculeEvolutionObserver( this, bestFitness, firstGeneration ) );
+            engine.addEvolutionObserver( new EvolutionObserver<IMolecule>() {
+
+                public void populationUpdate( PopulationData<? extends IMolecule> data ) {
+
+                    generation = firstGeneration + data.getGenerationNumber();
+                    lastBest = data.getBestCandidate();
+                    bestFitness = Math.max( bestFitness, data.getBestCandidateFitness() );
+                    if ( checkpointSchedule != null && checkpointSchedule.isDue() ) {
+                        long start = System.currentTimeMillis();
+                        writeCheckpoint();
+                        checkpointSchedule.written( start );
+                    }
+                }
+            } );
             TerminationCondition[] terminations = new TerminationCondition[2];
             terminations[0] = new Stagnation( 20, true );
             terminations[1] = userAbort;
-            startTime = System.currentTimeMillis();
+            startTime = System.currentTimeMillis() - elapsed;
             IMolecule result = null;
-            if(specification.getGeneratorSetting(StructureGeneratorSettingsPage.gaGeneratorName, "initialfile")!=null){
+            if ( population != null ) {
+                result = engine.evolve( POPULATION_SIZE, ELITE_COUNT, population, terminations );
+            } else if(specification.getGeneratorSetting(StructureGeneratorSettingsPage.gaGeneratorName, "initialfile")!=null){
             	List<ICDKMolecule> mols = net.bioclipse.cdk.business.Activator.getDefault().getJavaCDKManager().loadMolecules(specification.getGeneratorSetting(StructureGeneratorSettingsPage.gaGeneratorName, "initialfile"));
             	List<IMolecule> seed = new ArrayList<IMolecule>();
             	int wrongseeds=0;
@@ -180,21 +288,114 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
             	}
             	if(seed.size()>0)
             		System.err.println("Seed "+chiefJustice.getScore(seed.get(0)));
-            	result = engine.evolve( 10, 1, seed, terminations );
+            	result = engine.evolve( POPULATION_SIZE, ELITE_COUNT, seed, terminations );
             }else{
-            	result = engine.evolve( 10, 1, terminations );
+            	result = engine.evolve( POPULATION_SIZE, ELITE_COUNT, terminations );
+            }
+            // a cancelled run keeps a checkpoint for resuming
+            if ( this.monitor.isCanceled() ) {
+                if ( checkpointFile != null && lastBest != null )
+                    writeCheckpoint();
+            } else {
+                finished = true;
             }
         } catch ( Exception exception ) {
             exception.printStackTrace();
             LogUtils.handleException( exception, logger,
                                       net.bioclipse.seneca.Activator.PLUGIN_ID );
         } finally {
+            if ( finished && checkpointFile != null )
+                checkpointFile.delete();
             monitor.done();
         }
 
         return sgr;
     }
 
+    /**
+     * Restores the structures and the state of the checkpoint given to
+     * resumeFrom.
+     *
+     * @return The population to evolve further.
+     */
+    private List<IMolecule> resume( DataInputStream in ) throws IOException, CDKException {
+
+        firstGeneration = generation = in.readInt();
+        bestFitness = in.readDouble();
+        Checkpoint.readRandom( in, random );
+        int structures = in.readInt();
+        for ( int k = 0; k < structures; k++ ) {
+            double score = in.readDouble();
+            IMolecule molecule = readMolecule( in );
+            molecule.setProperty( "Score", score );
+            sgr.structures.push( molecule );
+        }
+        List<IMolecule> population = new ArrayList<IMolecule>();
+        int size = in.readInt();
+        for ( int k = 0; k < size; k++ )
+            population.add( readMolecule( in ) );
+        logger.info( "Resumed at generation " + generation + " with best score "
+                     + bestFitness / chiefJustice.calcMaxScore() );
+        return population;
+    }
+
+    private IMolecule readMolecule( DataInputStream in ) throws IOException, CDKException {
+
+        IMolecule molecule = Checkpoint.readMolecule( in, initialContainer );
+        if ( detectAromaticity )
+            CDKHueckelAromaticityDetector.detectAromaticity( molecule );
+        return molecule;
+    }
+
+    /**
+     * Writes the structures found so far and the last generation to the
+     * checkpoint file.
+     */
+    private void writeCheckpoint() {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeUTF( fingerprint() );
+            out.writeLong( System.currentTimeMillis() - startTime );
+            out.writeInt( generation );
+            out.writeDouble( bestFitness );
+            Checkpoint.writeRandom( out, random );
+            // oldest first, so pushing them again keeps the order
+            out.writeInt( sgr.structures.size() );
+            for ( int k = sgr.structures.size() - 1; k >= 0; k-- ) {
+                IMolecule molecule = (IMolecule) sgr.structures.get( k );
+                Object score = molecule.getProperty( "Score" );
+                out.writeDouble( score instanceof Number ? ((Number) score).doubleValue() : 0 );
+                Checkpoint.writeMolecule( out, molecule );
+            }
+            List<IMolecule> population = new ArrayList<IMolecule>();
+            population.add( lastBest );
+            if ( offspring != null ) {
+                for ( IMolecule candidate : offspring ) {
+                    if ( population.size() < POPULATION_SIZE && candidate != lastBest )
+                        population.add( candidate );
+                }
+            }
+            out.writeInt( population.size() );
+            for ( IMolecule candidate : population )
+                Checkpoint.writeMolecule( out, candidate );
+            Checkpoint.write( checkpointFile, Checkpoint.GENETIC, bytes.toByteArray() );
+        } catch ( IOException exception ) {
+            // the run goes on, only without a checkpoint
+            logger.warn( "Could not write the checkpoint " + checkpointFile
+                         + ": " + exception.getMessage() );
+        }
+    }
+
+    /**
+     * @return The settings a checkpoint must have been written with.
+     */
+    private String fingerprint() {
+
+        return Checkpoint.fingerprint( specification, chiefJustice.getJudges() );
+    }
+
     public List<IJudge> getJudges() {
 
         return chiefJustice.getJudges();
@@ -228,7 +429,10 @@ public class GAStructureElucidationJob implements StateListener, ICASEJob {
         this.monitor.subTask( "Best score: " + ((MoleculeState) state).score/chiefJustice.calcMaxScore()
                               + ", s="
                               + (System.currentTimeMillis() - startTime) / 1000
-                              + ", #" + state.getStep() );
+                              + ", #" + state.getStep()
+                              + ", cache hits "
+                              + Math.round( chiefJustice.getScoreCache()
+                                      .getHitRate() * 100 ) + "%" );
         this.monitor.worked( state.getStep() );
 
     }
@@ -15,6 +15,7 @@ import java.util.List;
 import net.bioclipse.seneca.domain.SenecaJobSpecification;
 import net.bioclipse.seneca.editor.TemperatureAndScoreListener;
 import net.bioclipse.seneca.judge.IJudge;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -40,4 +41,12 @@ public interface ICASEJob {
 	
 	public void setDetectAromaticity(boolean detectAromaticity);
 
+	/**
+	 * Sets the random numbers of the run. Jobs split it for each of their
+	 * components, so the same seed gives the same run.
+	 *
+	 * @param random The random numbers.
+	 */
+	public void setRandomSource(RandomSource random);
+
 }
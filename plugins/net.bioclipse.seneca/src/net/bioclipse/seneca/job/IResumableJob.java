@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.job;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A job which writes checkpoints while it runs, so a run which was
+ * cancelled or lost in a crash can be resumed. A run which ends normally
+ * deletes its checkpoint.
+ */
+public interface IResumableJob extends ICASEJob {
+
+	/**
+	 * Makes the job write checkpoints.
+	 *
+	 * @param file     The file each checkpoint replaces.
+	 * @param interval The milliseconds between two checkpoints.
+	 */
+	public void setCheckpointFile(File file, long interval);
+
+	/**
+	 * Makes the next run continue the run which wrote a checkpoint. The job
+	 * must be set up as for that run.
+	 *
+	 * @param checkpoint The checkpoint file.
+	 * @throws IOException if the file is no checkpoint of a run of this job.
+	 */
+	public void resumeFrom(File checkpoint) throws IOException;
+
+}
@@ -23,6 +23,7 @@ import net.bioclipse.seneca.editor.TemperatureAndScoreListener;
 import net.bioclipse.seneca.judge.ChiefJustice;
 import net.bioclipse.seneca.judge.IJudge;
 import net.bioclipse.seneca.judge.MissingInformationException;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.apache.log4j.Logger;
@@ -74,6 +75,10 @@ public class PubchemStructureElucidationJob
   public void setDetectAromaticity(boolean detectAromaticity){
       this.detectAromaticity = detectAromaticity;
   }
+
+  public void setRandomSource(RandomSource random){
+      // this generator uses no random numbers
+  }
   
 	public PubchemStructureElucidationJob(String jobTitle) {
 		this.jobTitle = jobTitle;
@@ -7,16 +7,30 @@
 
 package net.bioclipse.seneca.job;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.bioclipse.core.util.LogUtils;
 import net.bioclipse.seneca.Activator;
 import net.bioclipse.seneca.anneal.AdaptiveAnnealingEngine;
-import net.bioclipse.seneca.anneal.AnnealerAdapterI;
 import net.bioclipse.seneca.anneal.AnnealingEngineI;
+import net.bioclipse.seneca.anneal.CheckpointListener;
 import net.bioclipse.seneca.anneal.MoleculeAnnealerAdapter;
 import net.bioclipse.seneca.anneal.MoleculeState;
+import net.bioclipse.seneca.anneal.ParallelTemperingEngine;
+import net.bioclipse.seneca.anneal.ReplicaExchangeState;
+import net.bioclipse.seneca.anneal.ResumableEngineI;
 import net.bioclipse.seneca.anneal.State;
 import net.bioclipse.seneca.anneal.StateListener;
 import net.bioclipse.seneca.anneal.TemperatureListener;
@@ -25,21 +39,34 @@ import net.bioclipse.seneca.domain.SenecaJobSpecification;
 import net.bioclipse.seneca.editor.TemperatureAndScoreListener;
 import net.bioclipse.seneca.judge.ChiefJustice;
 import net.bioclipse.seneca.judge.IJudge;
+import net.bioclipse.seneca.util.BestStructureBoard;
+import net.bioclipse.seneca.util.Checkpoint;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.ProgressMonitorWrapper;
+import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
+import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IMolecule;
 import org.openscience.cdk.structgen.SingleStructureRandomGenerator;
 import org.openscience.cdk.tools.FormatStringBuffer;
 
 /**
+ * Anneals random structures of the molecular formula towards the best score
+ * of the judges. Several independent chains may run at once, see setChains,
+ * each optionally being a set of replicas exchanging temperatures. The
+ * chains put their improvements on one BestStructureBoard, which gives the
+ * result and the structures passed to the IScoreImprovedListeners.
+ *
+ * A checkpoint holds the board and the last state each chain passed on,
+ * so a resumed run continues each chain from its own last checkpoint.
+ *
  * @author Egon Willighagen
  */
-public class StochasticStructureElucidationJob implements StateListener,
-        TemperatureListener, ICASEJob {
+public class StochasticStructureElucidationJob implements IResumableJob {
 
     private static final Logger               logger                 =
                                                                              Logger
@@ -54,18 +81,29 @@ public class StochasticStructureElucidationJob implements StateListener,
 
     private IAtomContainer                    initialContainer       = null;
 
-    private AnnealingEngineI                  annealingEngine;
+    private Chain[]                           chains                 =
+                                                                             new Chain[0];
 
-    private MoleculeAnnealerAdapter           aa;
+    private BestStructureBoard                board;
 
     private MonitorWrapper                    monitor;
 
     private long                              startTime;
 
-    private double                            temperature            = 0;
-
     private int                               numberOfSteps;
 
+    /** replicas run by a ParallelTemperingEngine, 1 for a single chain */
+    private int                               replicas;
+
+    /** independent chains run at once */
+    private int                               chainCount             = 1;
+
+    /** the relative score which stops all chains */
+    private double                            targetScore            =
+                                                                             Double.POSITIVE_INFINITY;
+
+    private volatile boolean                  stopped                = false;
+
     private List<IScoreImprovedListener>      scoreImprovedListeners =
                                                                              new ArrayList<IScoreImprovedListener>();
 
@@ -74,9 +112,27 @@ public class StochasticStructureElucidationJob implements StateListener,
 
     private boolean                           detectAromaticity;
 
-    private class MonitorWrapper extends ProgressMonitorWrapper {
+    private RandomSource                      random                 =
+                                                                             new RandomSource();
+
+    private File                              checkpointFile         = null;
 
-        private AnnealerAdapterI aa;
+    private long                              checkpointInterval;
+
+    /** the last state each chain passed on for a checkpoint */
+    private byte[][]                          chainStates            =
+                                                                             new byte[0][];
+
+    /** the checkpoint to continue from, after its header */
+    private DataInputStream                   resumeData             = null;
+
+    /** The number of scores remembered for structures visited again */
+    private static final int                  SCORE_CACHE_SIZE       = 10000;
+
+    /** The number of structures in the result */
+    private static final int                  RESULT_SIZE            = 20;
+
+    private class MonitorWrapper extends ProgressMonitorWrapper {
 
         public MonitorWrapper(IProgressMonitor monitor) {
 
@@ -86,18 +142,154 @@ public class StochasticStructureElucidationJob implements StateListener,
         // this is the key method that justifies this class
         public void setCanceled( boolean value ) {
 
-            aa.setCancelled( value );
+            stopped = value;
             super.setCanceled( value );
         }
     }
 
+    /**
+     * One annealing run with its own adapters, engine and random numbers.
+     */
+    private class Chain implements StateListener, TemperatureListener,
+            CheckpointListener, Runnable {
+
+        private final int                       index;
+
+        private final MoleculeAnnealerAdapter[] adapters;
+
+        private final AnnealingEngineI          engine;
+
+        private double                          temperature = 0;
+
+        Chain(int index, SingleStructureRandomGenerator ssrg, IMolecule first,
+              RandomSource chainRandom) throws CloneNotSupportedException {
+
+            this.index = index;
+            adapters = new MoleculeAnnealerAdapter[replicas];
+            // each replica starts from its own random structure, copied
+            // before the generator reuses the atoms
+            for ( int k = 0; k < replicas; k++ ) {
+                IMolecule start = k == 0 ? first : ssrg.generate();
+                adapters[k] =
+                        new MoleculeAnnealerAdapter( (IMolecule) start.clone(),
+                                                     chiefJustice,
+                                                     detectAromaticity,
+                                                     chainRandom.split() );
+            }
+            if ( replicas == 1 ) {
+                adapters[0].addStateListener( this );
+                AdaptiveAnnealingEngine adaptive =
+                        new AdaptiveAnnealingEngine( adapters[0], numberOfSteps,
+                                                     chainRandom.split() );
+                adaptive.setMaxSpeculation( speculationWidth() );
+                engine = adaptive;
+            } else {
+                double maxScore = chiefJustice.calcMaxScore();
+                ParallelTemperingEngine pt =
+                        new ParallelTemperingEngine(
+                              adapters, numberOfSteps,
+                              ParallelTemperingEngine.DEFAULT_COLDEST * maxScore,
+                              ParallelTemperingEngine.DEFAULT_HOTTEST * maxScore,
+                              chainRandom.split() );
+                pt.addStateListener( this );
+                engine = pt;
+            }
+            engine.addTemperatureListener( this );
+            if ( checkpointFile != null )
+                ((ResumableEngineI) engine)
+                        .setCheckpointListener( this, checkpointInterval );
+        }
+
+        public void run() {
+
+            try {
+                engine.run();
+            } catch ( Exception exception ) {
+                exception.printStackTrace();
+                LogUtils.handleException( exception, logger, Activator.PLUGIN_ID );
+            }
+        }
+
+        /**
+         * @return The best score of the adapters, relative to the maximum score.
+         */
+        double getBestScore() {
+
+            double bestCost = Double.POSITIVE_INFINITY;
+            for ( MoleculeAnnealerAdapter adapter : adapters )
+                bestCost = Math.min( bestCost, adapter.getBestCost() );
+            return (chiefJustice.calcMaxScore() - bestCost)/chiefJustice.calcMaxScore();
+        }
+
+        public void stateChanged( State state ) {
+
+            if ( state instanceof ReplicaExchangeState ) {
+                ReplicaExchangeState exchange = (ReplicaExchangeState) state;
+                logger.debug( "Chain " + index + ": replica acceptance rates "
+                              + Arrays.toString( exchange.acceptanceRates )
+                              + ", swap rates "
+                              + Arrays.toString( exchange.swapRates ) );
+            } else {
+                MoleculeState moleculeState = (MoleculeState) state;
+                if ( moleculeState.acceptance == Acceptance.ACCEPT ) {
+                    // an accepted state is only passed on if it is the best of the chain so far
+                    improved( moleculeState, temperature );
+                } else if ( moleculeState.acceptance == Acceptance.UNKNOWN
+                            && index == 0 ) {
+                    monitor.subTask( "Best score: "
+                                     + getBestScore()
+                                     + ", T="
+                                     + new FormatStringBuffer( "%.3f" )
+                                             .format( temperature ) + ", s="
+                                     + (System.currentTimeMillis() - startTime)
+                                     / 1000 + ", #" + state.getStep()
+                                     + ", cache hits "
+                                     + Math.round( chiefJustice.getScoreCache()
+                                             .getHitRate() * 100 ) + "%" );
+                    monitor.worked( state.getStep() );
+                }
+            }
+            if ( stopped || monitor.isCanceled() )
+                adapters[0].setCancelled( true );
+        }
+
+        public void checkpoint( byte[] state ) {
+
+            chainStates[index] = state;
+            writeCheckpoint();
+        }
+
+        public void temperatureChange( double temp ) {
+
+            this.temperature = temp;
+            if ( index != 0 )
+                return;
+            for ( TemperatureAndScoreListener templistener : temperatureListeners ) {
+                templistener.change( temp, StochasticStructureElucidationJob.this.getBestScore() );
+            }
+        }
+    }
+
     public StochasticStructureElucidationJob(
             IAtomContainer initialAtomContainer, int numberOfSteps) {
 
+        this( initialAtomContainer, numberOfSteps, 1 );
+    }
+
+    /**
+     * @param initialAtomContainer The atoms of the structures.
+     * @param numberOfSteps        The steps of the run, of each replica.
+     * @param replicas             The number of replicas exchanging temperatures,
+     *                             1 for a single adaptive annealing run.
+     */
+    public StochasticStructureElucidationJob(
+            IAtomContainer initialAtomContainer, int numberOfSteps, int replicas) {
+
         this.initialContainer = initialAtomContainer;
         System.out.println( "Constructed SSE job...: " + this.hashCode() );
-        sgr = new StructureGeneratorResult( 20 );
+        sgr = new StructureGeneratorResult( RESULT_SIZE );
         this.numberOfSteps = numberOfSteps;
+        this.replicas = Math.max( 1, replicas );
     }
 
     public void setDetectAromaticity( boolean detectAromaticity ) {
@@ -105,6 +297,46 @@ public class StochasticStructureElucidationJob implements StateListener,
         this.detectAromaticity = detectAromaticity;
     }
 
+    public void setRandomSource( RandomSource random ) {
+
+        this.random = random;
+    }
+
+    /**
+     * @param chains The number of independent chains run at once, each
+     *               starting from its own random structure.
+     */
+    public void setChains( int chains ) {
+
+        this.chainCount = Math.max( 1, chains );
+    }
+
+    /**
+     * @param targetScore The score, relative to the maximum score, at which
+     *                    all chains stop.
+     */
+    public void setTargetScore( double targetScore ) {
+
+        this.targetScore = targetScore;
+    }
+
+    public void setCheckpointFile( File file, long interval ) {
+
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+    }
+
+    public void resumeFrom( File checkpoint ) throws IOException {
+
+        DataInputStream in = Checkpoint.read( checkpoint, Checkpoint.STOCHASTIC );
+        if ( !in.readUTF().equals( fingerprint() )
+             || in.readInt() != numberOfSteps || in.readInt() != chainCount
+             || in.readInt() != replicas )
+            throw new IOException( checkpoint
+                                   + " is the checkpoint of a run with other settings" );
+        resumeData = in;
+    }
+
     /*
      * @seeorg.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.
      * IProgressMonitor)
@@ -112,16 +344,21 @@ public class StochasticStructureElucidationJob implements StateListener,
     public StructureGeneratorResult run( IProgressMonitor monitor ) {
 
         this.monitor = new MonitorWrapper( monitor );
+        stopped = false;
+        board = new BestStructureBoard( RESULT_SIZE );
+        boolean finished = false;
 
         try {
             monitor.beginTask( "Initializing", numberOfSteps );
 
             monitor.subTask( "Setting up first structures..." );
             SingleStructureRandomGenerator ssrg =
-                    new SingleStructureRandomGenerator();
+                    new SingleStructureRandomGenerator( random.split() );
 
             logger.info( "Analyzing given MF: "
                          + specification.getMolecularFormula() );
+            // the seed repeats this run
+            logger.info( "Random seed: " + random.getSeed() );
             logger.debug( "SAStochasticGenerator.execute()" );
             logger.debug( initialContainer.getBondCount() );
 
@@ -142,75 +379,232 @@ public class StochasticStructureElucidationJob implements StateListener,
             monitor.subTask( "Initializing annealing engine..." );
 
             chiefJustice.initJudges();
-
-            aa =
-                    new MoleculeAnnealerAdapter( mol, chiefJustice,
-                                                 detectAromaticity );
-            aa.addStateListener( this );
-            startTime = System.currentTimeMillis();
-
-            annealingEngine = new AdaptiveAnnealingEngine( aa, numberOfSteps );
-            annealingEngine.addTemperatureListener( this );
-            annealingEngine.run();
+            // the chains, replicas or speculative proposals use the
+            // processors already, judging in parallel would only add copies
+            chiefJustice.setParallel( speculationWidth() < 2
+                                      && Runtime.getRuntime()
+                                              .availableProcessors() > chainCount
+                                                                      * replicas );
+            chiefJustice.getScoreCache().setMaxSize( SCORE_CACHE_SIZE );
+            chiefJustice.getScoreCache().resetStatistics();
+
+            chains = new Chain[chainCount];
+            chainStates = new byte[chainCount][];
+            for ( int c = 0; c < chainCount; c++ )
+                chains[c] = new Chain( c, ssrg, c == 0 ? mol : ssrg.generate(),
+                                       random.split() );
+            long elapsed = 0;
+            if ( resumeData != null ) {
+                monitor.subTask( "Resuming from checkpoint..." );
+                elapsed = resume( resumeData );
+                resumeData = null;
+            }
+            startTime = System.currentTimeMillis() - elapsed;
+
+            if ( chainCount == 1 ) {
+                chains[0].run();
+            } else {
+                ExecutorService pool =
+                        Executors.newFixedThreadPool( chainCount, new ThreadFactory() {
+
+                            public Thread newThread( Runnable r ) {
+
+                                Thread thread = new Thread( r, "Seneca chain" );
+                                thread.setDaemon( true );
+                                return thread;
+                            }
+                        } );
+                try {
+                    List<Future<?>> runs = new ArrayList<Future<?>>();
+                    for ( Chain chain : chains )
+                        runs.add( pool.submit( chain ) );
+                    for ( Future<?> run : runs )
+                        run.get();
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            // a cancelled run keeps its checkpoint for resuming
+            finished = !this.monitor.isCanceled();
 
         } catch ( Exception exception ) {
             exception.printStackTrace();
             LogUtils.handleException( exception, logger, Activator.PLUGIN_ID );
         } finally {
+            // the stack keeps the last pushed structure first
+            List<BestStructureBoard.Entry> entries = board.getEntries();
+            for ( int k = entries.size() - 1; k >= 0; k-- )
+                sgr.structures.push( entries.get( k ).molecule );
+            if ( finished && checkpointFile != null )
+                checkpointFile.delete();
             monitor.done();
         }
 
         return sgr;
     }
 
-    public List<IJudge> getJudges() {
+    /**
+     * Puts the structures of the checkpoint given to resumeFrom on the board
+     * and continues the chains from their states in it.
+     *
+     * @return The milliseconds the run took before the checkpoint.
+     */
+    private long resume( DataInputStream in ) throws IOException, CDKException {
+
+        long elapsed = in.readLong();
+        Checkpoint.readRandom( in, random );
+        int entries = in.readInt();
+        for ( int k = 0; k < entries; k++ ) {
+            double score = in.readDouble();
+            int steps = in.readInt();
+            double temperature = in.readDouble();
+            IMolecule molecule = Checkpoint.readMolecule( in, initialContainer );
+            if ( detectAromaticity )
+                CDKHueckelAromaticityDetector.detectAromaticity( molecule );
+            molecule.setProperty( "Score", score );
+            molecule.setProperty( "Steps so far", steps );
+            molecule.setProperty( "Temperature", temperature );
+            board.offer( molecule, score );
+        }
+        for ( int c = 0; c < chainCount; c++ ) {
+            byte[] state = new byte[in.readInt()];
+            in.readFully( state );
+            // a chain without a state yet starts again
+            if ( state.length > 0 ) {
+                ((ResumableEngineI) chains[c].engine)
+                        .readState( new DataInputStream(
+                                       new ByteArrayInputStream( state ) ) );
+                chainStates[c] = state;
+            }
+        }
+        logger.info( "Resumed with best score " + board.getBestScore()
+                     + " after " + elapsed / 1000 + " s" );
+        IMolecule best = board.getBest();
+        if ( best != null ) {
+            for ( int i = 0; i < scoreImprovedListeners.size(); i++ ) {
+                scoreImprovedListeners.get( i ).betterScore( best );
+            }
+        }
+        return elapsed;
+    }
 
-        return chiefJustice.getJudges();
+    /**
+     * Writes the structures on the board and the last state of each chain
+     * to the checkpoint file. Called by the threads of the chains.
+     */
+    private synchronized void writeCheckpoint() {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeUTF( fingerprint() );
+            out.writeInt( numberOfSteps );
+            out.writeInt( chainCount );
+            out.writeInt( replicas );
+            out.writeLong( System.currentTimeMillis() - startTime );
+            Checkpoint.writeRandom( out, random );
+            List<BestStructureBoard.Entry> entries = board.getEntries();
+            out.writeInt( entries.size() );
+            for ( BestStructureBoard.Entry entry : entries ) {
+                out.writeDouble( entry.score );
+                out.writeInt( numberProperty( entry.molecule, "Steps so far" )
+                        .intValue() );
+                out.writeDouble( numberProperty( entry.molecule, "Temperature" )
+                        .doubleValue() );
+                Checkpoint.writeMolecule( out, entry.molecule );
+            }
+            for ( byte[] state : chainStates ) {
+                out.writeInt( state == null ? 0 : state.length );
+                if ( state != null )
+                    out.write( state );
+            }
+            Checkpoint.write( checkpointFile, Checkpoint.STOCHASTIC,
+                              bytes.toByteArray() );
+        } catch ( IOException exception ) {
+            // the run goes on, only without a checkpoint
+            logger.warn( "Could not write the checkpoint " + checkpointFile
+                         + ": " + exception.getMessage() );
+        }
     }
 
-    public AnnealingEngineI getAnnealingEngine() {
+    private static Number numberProperty( IMolecule molecule, String name ) {
 
-        return annealingEngine;
+        Object value = molecule.getProperty( name );
+        return value instanceof Number ? (Number) value : Integer.valueOf( 0 );
     }
 
-    public void addJudge( IJudge judge ) {
+    /**
+     * @return The number of proposals each chain costs at once, its share
+     *         of the processors if it has a single replica.
+     */
+    private int speculationWidth() {
 
-        chiefJustice.addJudge( judge );
+        if ( replicas > 1 )
+            return 1;
+        return Math.max( 1, Runtime.getRuntime().availableProcessors()
+                            / chainCount );
     }
 
-    public void stateChanged( State state ) {
+    /**
+     * @return The settings a checkpoint must have been written with.
+     */
+    private String fingerprint() {
 
-        MoleculeState moleculeState = (MoleculeState) state;
-        if ( moleculeState.acceptance == Acceptance.ACCEPT ) {
-            org.openscience.cdk.interfaces.IMolecule best = aa.getBest();
-            best.setProperty( "Score", (chiefJustice.calcMaxScore() - aa.getBestCost())/chiefJustice.calcMaxScore() );
-            best.setProperty( "Steps so far", aa.getBestStepIndex() );
-            best.setProperty( "Temperature", this.temperature );
-            sgr.structures.push( best );
-            for ( int i = 0; i < scoreImprovedListeners.size(); i++ ) {
-                scoreImprovedListeners.get( i ).betterScore( best );
+        return Checkpoint.fingerprint( specification, chiefJustice.getJudges() );
+    }
+
+    /**
+     * Puts the new best structure of a chain on the board, tells the
+     * listeners if it is the best of all chains, and stops all chains once
+     * the target score is reached. Called by the threads of the chains.
+     */
+    private void improved( MoleculeState state, double temperature ) {
+
+        IMolecule best = state.molecule;
+        double score = state.score/chiefJustice.calcMaxScore();
+        best.setProperty( "Score", score );
+        best.setProperty( "Steps so far", state.stepIndex );
+        best.setProperty( "Temperature", temperature );
+        if ( board.offer( best, score ) == 0 ) {
+            synchronized ( scoreImprovedListeners ) {
+                // another chain may have found a better one meanwhile
+                if ( board.getBest() == best ) {
+                    for ( int i = 0; i < scoreImprovedListeners.size(); i++ ) {
+                        scoreImprovedListeners.get( i ).betterScore( best );
+                    }
+                }
             }
-        } else if ( moleculeState.acceptance == Acceptance.UNKNOWN ) {
-            this.monitor.subTask( "Best score: "
-                                  + (chiefJustice.calcMaxScore() - aa.getBestCost())/chiefJustice.calcMaxScore()
-                                  + ", T="
-                                  + new FormatStringBuffer( "%.3f" )
-                                          .format( this.temperature ) + ", s="
-                                  + (System.currentTimeMillis() - startTime)
-                                  / 1000 + ", #" + state.getStep() );
-            this.monitor.worked( state.getStep() );
         }
-        if ( monitor.isCanceled() )
-            aa.setCancelled( true );
+        if ( score >= targetScore ) {
+            logger.info( "Target score " + targetScore + " reached" );
+            stopped = true;
+        }
+    }
+
+    /**
+     * @return The best score of all chains, relative to the maximum score.
+     */
+    private double getBestScore() {
 
+        return Math.max( board.getBestScore(), chains[0].getBestScore() );
     }
 
-    public void temperatureChange( double temp ) {
+    public List<IJudge> getJudges() {
 
-        this.temperature = temp;
-        for ( TemperatureAndScoreListener templistener : temperatureListeners ) {
-            templistener.change( temp, (chiefJustice.calcMaxScore() - aa.getBestCost())/chiefJustice.calcMaxScore() );
-        }
+        return chiefJustice.getJudges();
+    }
+
+    /**
+     * @return The engine of the first chain, null before the run.
+     */
+    public AnnealingEngineI getAnnealingEngine() {
+
+        return chains.length == 0 ? null : chains[0].engine;
+    }
+
+    public void addJudge( IJudge judge ) {
+
+        chiefJustice.addJudge( judge );
     }
 
     public void addScoreImprovedListener( IScoreImprovedListener listener ) {
@@ -229,4 +623,4 @@ public class StochasticStructureElucidationJob implements StateListener,
         this.specification = specification;
     }
 
-}
\ No newline at end of file
+}
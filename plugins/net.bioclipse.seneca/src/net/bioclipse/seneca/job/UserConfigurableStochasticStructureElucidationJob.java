@@ -24,6 +24,8 @@ import net.bioclipse.seneca.judge.IJudge;
 import net.bioclipse.seneca.judge.ScoreSummary;
 import net.bioclipse.seneca.structgen.ConvergenceAnnealingEngine;
 import net.bioclipse.seneca.structgen.IAnnealingEngine;
+import net.bioclipse.seneca.util.IncrementalAromaticity;
+import net.bioclipse.seneca.util.RandomSource;
 import net.bioclipse.seneca.util.StructureGeneratorResult;
 
 import org.apache.log4j.Logger;
@@ -64,6 +66,8 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
 
   private boolean detectAromaticity;
 
+  private RandomSource random = new RandomSource();
+
   public UserConfigurableStochasticStructureElucidationJob(IAtomContainer initialAtomContainer) {
     //super("Structure Elucidation");
     this.initialContainer = initialAtomContainer;
@@ -76,6 +80,10 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
       this.detectAromaticity = detectAromaticity;
   }
 
+  public void setRandomSource(RandomSource random){
+      this.random = random;
+  }
+
   /*
    * @seeorg.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.
    * IProgressMonitor)
@@ -90,9 +98,11 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
       richMonitor.beginTask("Initializing", 10000);
 
       richMonitor.subTask("Setting up first structures...");
-      SingleStructureRandomGenerator ssrg = new SingleStructureRandomGenerator();
+      SingleStructureRandomGenerator ssrg = new SingleStructureRandomGenerator(random.split());
 
       logger.info("Analyzing given MF: " + specification.getMolecularFormula());
+      // the seed repeats this run
+      logger.info("Random seed: " + random.getSeed());
       logger.debug("SAStochasticGenerator.execute()");
       logger.debug(initialContainer.getBondCount());
 
@@ -108,7 +118,7 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
       logger.debug("AtomCount: " + mol.getAtomCount());
       logger.debug("Starting structure generated");
 
-      RandomGenerator randomGent = new RandomGenerator(mol);
+      RandomGenerator randomGent = new RandomGenerator(mol, random.split());
 
       logger.debug("RandomGenerator initialized");
 
@@ -117,6 +127,7 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
 
       richMonitor.subTask("Initializing annealing engine...");
 
+      annealingEngine.setRandom(random.split());
       annealingEngine.initAnnealing(randomGent, chiefJustice, monitor);
       annealingEngine.setMaxPlateauSteps(Long.parseLong(specification.getGeneratorSetting(StructureGeneratorSettingsPage.generatorNameUserConfigurable, "maxPlateauSteps")));
       annealingEngine.setConvergenceStopCount(annealingEngine.getMaxPlateauSteps()*10);
@@ -142,7 +153,7 @@ public class UserConfigurableStochasticStructureElucidationJob implements ICASEJ
       do {
         IMolecule result = randomGent.proposeStructure();
         if(detectAromaticity)
-            CDKHueckelAromaticityDetector.detectAromaticity( result );
+            IncrementalAromaticity.detectAromaticity( result, randomGent.getMovedAtoms() );
 
         try {
           recentScore = chiefJustice.getScore(result);
@@ -7,15 +7,12 @@ import java.util.List;
 
 import net.bioclipse.chemoinformatics.wizards.WizardHelper;
 import net.bioclipse.core.util.LogUtils;
+import net.bioclipse.seneca.util.WCCKernel;
 import net.bioclipse.spectrum.domain.IJumboSpectrum;
 import net.bioclipse.spectrum.domain.JumboSpectrum;
 import net.bioclipse.spectrum.editor.MetadataUtils;
 import net.bioclipse.spectrum.editor.SpectrumEditor;
-import nu.xom.Document;
-import nu.xom.Element;
-import nu.xom.Nodes;
 import nu.xom.ParsingException;
-import nu.xom.XPathContext;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IContainer;
@@ -34,18 +31,11 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.xmlcml.cml.base.CMLBuilder;
-import org.xmlcml.cml.base.CMLElement;
 import org.xmlcml.cml.base.CMLElements;
-import org.xmlcml.cml.base.CMLUtil;
-import org.xmlcml.cml.element.CMLCml;
 import org.xmlcml.cml.element.CMLMetadata;
 import org.xmlcml.cml.element.CMLMetadataList;
-import org.xmlcml.cml.element.CMLPeak;
 import org.xmlcml.cml.element.CMLSpectrum;
 
-import spok.utils.SpectrumUtils;
-
 /**
  * This is an abstract class for all sort of pure 13C judges. The class does 
  * configuration, data processing etc. Implementing classes need to provide 
@@ -56,6 +46,10 @@ public abstract class Abstract13CJudge extends AbstractJudge {
 
     private static Logger logger = Logger.getLogger(Abstract13CJudge.class);
 	protected double[] carbonShifts;
+	/** The width of the weight function for comparing 13C spectra via the WCC */
+	protected static final double WCC_WIDTH = 20.0;
+	/** The experimental spectrum prepared for the WCC, set together with carbonShifts */
+	protected transient WCCKernel carbonKernel;
 
 	/**
 	 * Constructor for the Judge object
@@ -75,18 +69,7 @@ public abstract class Abstract13CJudge extends AbstractJudge {
 	public IJudge createJudge(IPath data) throws MissingInformationException {
 		try {
 			this.setData( data );
-			CMLBuilder builder = new CMLBuilder();
-			Document doc =  builder.buildEnsureCML(ResourcesPlugin.getWorkspace().getRoot().getFile( this.getData()).getContents());
-			SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-			doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-			Element element = builder.parseString(doc.toXML());
-			if(element instanceof CMLCml)
-			    this.configure((CMLCml)element);
-			else if(element instanceof CMLSpectrum){
-			    CMLCml cmlcml=new CMLCml();
-			    cmlcml.appendChild( element );
-			    this.configure(cmlcml);
-			}            
+			this.configure(SpectrumCache.getSpectra(ResourcesPlugin.getWorkspace().getRoot().getFile( this.getData())));
 			this.setEnabled(super.getEnabled());
 			return this;
 		} catch (IOException e) {
@@ -104,19 +87,8 @@ public abstract class Abstract13CJudge extends AbstractJudge {
      * @see net.bioclipse.seneca.judge.IJudge#checkJudge(java.lang.String)
      */
     public boolean checkJudge( String data ) {
-        CMLBuilder builder = new CMLBuilder();
         try {
-            Document doc =  builder.buildEnsureCML(ResourcesPlugin.getWorkspace().getRoot().getFile( new Path(data)).getContents());
-            SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-            doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-            Element element = builder.parseString(doc.toXML());
-            if(element instanceof CMLCml)
-                configure((CMLCml)element);
-            else if(element instanceof CMLSpectrum){
-                CMLCml cmlcml=new CMLCml();
-                cmlcml.appendChild( element );
-                configure(cmlcml);
-            }            
+            configure(SpectrumCache.getSpectra(ResourcesPlugin.getWorkspace().getRoot().getFile( new Path(data))));
         } catch (Exception e) {
         	e.printStackTrace();
             return false;
@@ -124,34 +96,26 @@ public abstract class Abstract13CJudge extends AbstractJudge {
         return true;
     }
 
-	private void configure(CMLElement input) throws MissingInformationException {
-		if (!(input instanceof CMLCml)) {
-			throw new MissingInformationException("Root element must be <cml>!");
+	/**
+	 * Takes the carbon shifts from the first 13C spectrum of a file.
+	 */
+	private void configure(List<SpectrumCache.Spectrum> spectra) throws MissingInformationException {
+		SpectrumCache.Spectrum cmlSpect = null;
+		for (SpectrumCache.Spectrum spectrum : spectra) {
+			if (spectrum.isCarbon()) {
+				cmlSpect = spectrum;
+				break;
+			}
 		}
-		CMLCml root = (CMLCml) input;
-
-		String CML_NAMESPACE = "http://www.xml-cml.org/schema";
-		XPathContext context = new XPathContext("cml", CML_NAMESPACE);
-		Nodes result = root
-				.query(
-						"./cml:spectrum[./cml:metadataList/cml:metadata/@content=\"13C\"]",
-						context);
-		if (result.size() == 0) {
+		if (cmlSpect == null) {
 			throw new MissingInformationException(
 					"No 13C NMR spectrum is defined!");
 		}
-
-		CMLSpectrum cmlSpect = (CMLSpectrum) result.get(0);
-		if (cmlSpect.getPeakListElements() == null) {
+		if (cmlSpect.getPeakListCount() == 0) {
 			throw new MissingInformationException("No peaks are defined!");
 		}
-		CMLElements<CMLPeak> peaks = cmlSpect.getPeakListElements().get(0)
-				.getPeakElements();
-		carbonShifts = new double[peaks.size()];
-		for (int peakNo = 0; peakNo < carbonShifts.length; peakNo++) {
-			CMLPeak peak = peaks.get(peakNo);
-			carbonShifts[peakNo] = peak.getXValue();
-		}
+		carbonShifts = cmlSpect.getXValues();
+		carbonKernel = new WCCKernel(carbonShifts, WCC_WIDTH);
 
 	}
 	
@@ -168,6 +132,13 @@ public abstract class Abstract13CJudge extends AbstractJudge {
 	public void labelStartStructure(IAtomContainer startStructure) {
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bioclipse.seneca.judge.IJudge#isAtomOrderDependent()
+	 */
+	public boolean isAtomOrderDependent() {
+		return false;
+	}
+
     /* (non-Javadoc)
      * @see net.bioclipse.seneca.judge.IJudge#setData(org.eclipse.jface.viewers.ISelection, org.eclipse.core.resources.IFile)
      */
@@ -33,7 +33,7 @@ import org.openscience.cdk.interfaces.IAtomContainer;
  * @created October 5, 2001
  */
 
-public abstract class AbstractJudge implements IJudge {
+public abstract class AbstractJudge implements IJudge, Cloneable {
 
 	/*
 	 * A name identifying the scope of the Judge
@@ -49,8 +49,7 @@ public abstract class AbstractJudge implements IJudge {
 	boolean hasMaxScore = false;
 
 	boolean ringSetRequired = false;
-	double maxScore, scoreSum;
-	String resultString;
+	double maxScore;
 	transient JudgeListener judgeListener = null;
 
 	/*
@@ -235,4 +234,22 @@ public abstract class AbstractJudge implements IJudge {
   public int getWeight(){
 	  return weight;
   }
+
+	/**
+	 * A shallow copy of this judge without listener, for getWorkerJudge of
+	 * judges implementing IConcurrentJudge. Subclasses replace the fields
+	 * which must not be shared between threads.
+	 *
+	 * @return A copy of this judge.
+	 */
+	protected AbstractJudge copy() {
+		try {
+			AbstractJudge judge = (AbstractJudge) super.clone();
+			judge.judgeListener = null;
+			return judge;
+		} catch (CloneNotSupportedException e) {
+			// cannot happen, AbstractJudge is Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
 }
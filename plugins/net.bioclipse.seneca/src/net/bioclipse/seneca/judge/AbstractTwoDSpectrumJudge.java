@@ -21,11 +21,11 @@
  */
 package net.bioclipse.seneca.judge;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-import org.openscience.cdk.graph.PathTools;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 
@@ -35,7 +35,8 @@ import org.openscience.cdk.interfaces.IAtomContainer;
  * @author steinbeck
  * @created October 6, 2001
  */
-public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
+public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge
+		implements ISnapshotJudge, IConcurrentJudge {
 
 	/**
 	 * Description of the Field
@@ -51,6 +52,23 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 	 */
 	private int cutOff;
 
+	/**
+	 * The atom indices of value1 and value2 of each coupling, -1 if no atom
+	 * has the value, as found in a labelled structure with atomCount atoms.
+	 */
+	private static class CouplingIndex {
+		final int[] atoms;
+		final int atomCount;
+
+		CouplingIndex(int[] atoms, int atomCount) {
+			this.atoms = atoms;
+			this.atomCount = atomCount;
+		}
+	}
+
+	/** replaced as a whole, so concurrent evaluations see a consistent index */
+	private volatile CouplingIndex couplingIndex = null;
+
 	/**
 	 * Constructor for the TwoDSpectrumJudge object
 	 *
@@ -151,11 +169,14 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 	 * @return Description of the Returned Value
 	 */
 	public JudgeResult evaluate(IAtomContainer ac) {
+		return evaluate(ac, new StructureSnapshot(ac));
+	}
+
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot) {
 		if (couplings == null) {
-			resultString = "No signals available for " + name;
-			return new JudgeResult(0, 0, 0, resultString);
+			return new JudgeResult(0, 0, 0, "No signals available for " + name);
 		}
-		scoreSum = 0;
+		double scoreSum = 0;
 		int satisfiedSignals = 0;
 		int plength = 0;
 		if (debug) {
@@ -166,9 +187,17 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 			System.out.println(ac);
 		}
 
-		Iterator<TwoDRule> it = couplings.iterator();
-		while(it.hasNext()){
-			TwoDRule cvalue = it.next();
+		CouplingIndex index = couplingIndex;
+		if (index == null || !isIndexFor(index, ac)) {
+			index = new CouplingIndex(indexCouplings(ac), ac.getAtomCount());
+			couplingIndex = index;
+		}
+		int[] atoms = index.atoms;
+		long[][] neighbours = neighbourSets(snapshot);
+		// rows of the distance matrix, computed for the atoms needing them
+		int[][] distances = new int[ac.getAtomCount()][];
+		for (int k = 0; k < couplings.size(); k++) {
+			TwoDRule cvalue = couplings.get(k);
 			if (debug) {
 				System.out
 						.println("TwoDSpectrumJudge->evaluate()->rule.atom1: "
@@ -177,11 +206,8 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 						.println("TwoDSpectrumJudge->evaluate()->rule.atom2: "
 								+ cvalue.value2);
 			}
-			List<IAtom> sphere = new ArrayList<IAtom>();
-			sphere.add(findAtom(cvalue.value1, ac));
-			plength = 
-				PathTools.breadthFirstTargetSearch(
-						ac, sphere, findAtom(cvalue.value2, ac), 0, cutOff);
+			plength = pathLength(atoms[2 * k], atoms[2 * k + 1], neighbours,
+					distances);
 			if (debug)
 				System.out.println("TwoDSpectrumJudge->evaluate()->plength: "
 						+ plength);
@@ -193,7 +219,7 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 			}
 
 		}
-		resultString = satisfiedSignals + "/" + couplings.size()
+		String resultString = satisfiedSignals + "/" + couplings.size()
 				+ " Signals satisfied in " + name + ". Score " + scoreSum + "/"
 				+ maxScore;
 		if (debug)
@@ -203,21 +229,160 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 	}
 
 	/**
-	 * Finds an atom with a certain shift in an atomcontainer.
-	 * 
-	 * @param value1 The value, properties C_SHIFT, H_SHIFT and H_SHIFT_2 are considered.
+	 * Finds the atoms of all couplings in a labelled structure, so that
+	 * evaluate needs no search for structures with the same labels. Labelling
+	 * judges call this at the end of labelStartStructure.
+	 *
+	 * @param labelled The structure labelled with C_SHIFT, H_SHIFT and H_SHIFT_2.
+	 */
+	protected void indexShifts(IAtomContainer labelled) {
+		if (couplings == null)
+			return;
+		couplingIndex = new CouplingIndex(indexCouplings(labelled),
+				labelled.getAtomCount());
+	}
+
+	/**
+	 * evaluate keeps its state in local variables, and the index of the
+	 * couplings is only replaced as a whole, so the judge is shared.
+	 */
+	public IJudge getWorkerJudge() {
+		return this;
+	}
+
+	/**
+	 * Finds the atoms with the values of each coupling in an atomcontainer.
+	 * Properties C_SHIFT, H_SHIFT and H_SHIFT_2 are considered, if several
+	 * atoms have a value, the first in the order of atoms is used.
+	 *
 	 * @param ac The atom container to search in.
-	 * @return The found atom. If several exist, the first in the order of atoms is returned.
+	 * @return The atom indices of value1 and value2 of each coupling, -1 if not found.
+	 */
+	private int[] indexCouplings(IAtomContainer ac) {
+		Map<Double, Integer> index = new HashMap<Double, Integer>();
+		for (int i = 0; i < ac.getAtomCount(); i++) {
+			IAtom atom = ac.getAtom(i);
+			addShift(index, atom.getProperty(HMBCJudge.C_SHIFT), i);
+			addShift(index, atom.getProperty(HMBCJudge.H_SHIFT), i);
+			addShift(index, atom.getProperty(HMBCJudge.H_SHIFT_2), i);
+		}
+		int[] atoms = new int[2 * couplings.size()];
+		for (int k = 0; k < couplings.size(); k++) {
+			Integer atom1 = index.get(couplings.get(k).value1);
+			Integer atom2 = index.get(couplings.get(k).value2);
+			atoms[2 * k] = atom1 == null ? -1 : atom1;
+			atoms[2 * k + 1] = atom2 == null ? -1 : atom2;
+		}
+		return atoms;
+	}
+
+	private static void addShift(Map<Double, Integer> index, Object shift, int atom) {
+		if (shift != null && !index.containsKey(shift))
+			index.put((Double) shift, atom);
+	}
+
+	/**
+	 * Checks that the atoms found for the couplings still carry their values
+	 * in ac, which holds as long as the atoms keep their order.
+	 */
+	private boolean isIndexFor(CouplingIndex index, IAtomContainer ac) {
+		if (ac.getAtomCount() != index.atomCount)
+			return false;
+		int[] atoms = index.atoms;
+		for (int k = 0; k < couplings.size(); k++) {
+			if (!hasShift(ac, atoms[2 * k], couplings.get(k).value1)
+					|| !hasShift(ac, atoms[2 * k + 1], couplings.get(k).value2))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean hasShift(IAtomContainer ac, int atom, double value) {
+		if (atom < 0)
+			return true;
+		IAtom a = ac.getAtom(atom);
+		Double shift = (Double) a.getProperty(HMBCJudge.C_SHIFT);
+		if (shift != null && shift == value)
+			return true;
+		shift = (Double) a.getProperty(HMBCJudge.H_SHIFT);
+		if (shift != null && shift == value)
+			return true;
+		shift = (Double) a.getProperty(HMBCJudge.H_SHIFT_2);
+		return shift != null && shift == value;
+	}
+
+	/**
+	 * The neighbours of each atom as a bit set over all atoms.
 	 */
-	private IAtom findAtom(double value1, IAtomContainer ac) {
-		for(int i=0;i<ac.getAtomCount();i++){
-			if((Double)ac.getAtom(i).getProperty(HMBCJudge.C_SHIFT)!=null && (Double)ac.getAtom(i).getProperty(HMBCJudge.C_SHIFT)==value1
-					|| (ac.getAtom(i).getProperty(HMBCJudge.H_SHIFT)!=null && (Double)ac.getAtom(i).getProperty(HMBCJudge.H_SHIFT)==value1)
-				    || (ac.getAtom(i).getProperty(HMBCJudge.H_SHIFT_2)!=null && (Double)ac.getAtom(i).getProperty(HMBCJudge.H_SHIFT_2)==value1)){
-				return ac.getAtom(i);
+	private static long[][] neighbourSets(StructureSnapshot snapshot) {
+		int atomCount = snapshot.getAtomCount();
+		long[][] neighbours = new long[atomCount][(atomCount + 63) >>> 6];
+		for (int i = 0; i < atomCount; i++) {
+			for (int k = 0; k < snapshot.getDegree(i); k++) {
+				int to = snapshot.getNeighbour(i, k);
+				neighbours[i][to >>> 6] |= 1L << to;
 			}
 		}
-		return null;
+		return neighbours;
+	}
+
+	/**
+	 * The length of the shortest path between two atoms, as given by
+	 * PathTools.breadthFirstTargetSearch with a start sphere of from: -1 if
+	 * there is none up to cutOff bonds, and 2 for from == to if the atom has
+	 * a neighbour. The row of from in the distance matrix is filled by a
+	 * breadth first search on bit sets, one word operation per 64 atoms.
+	 */
+	private int pathLength(int from, int to, long[][] neighbours,
+			int[][] distances) {
+		if (from < 0 || to < 0)
+			return -1;
+		if (from == to) {
+			boolean hasNeighbour = false;
+			for (int w = 0; w < neighbours[from].length; w++)
+				hasNeighbour |= neighbours[from][w] != 0;
+			return hasNeighbour && cutOff >= 2 ? 2 : -1;
+		}
+		if (distances[from] == null) {
+			int words = neighbours[from].length;
+			int[] row = new int[neighbours.length];
+			long[] visited = new long[words];
+			long[] sphere = new long[words];
+			long[] next = new long[words];
+			visited[from >>> 6] |= 1L << from;
+			sphere[from >>> 6] |= 1L << from;
+			for (int depth = 1; depth <= cutOff; depth++) {
+				boolean any = false;
+				for (int w = 0; w < words; w++)
+					next[w] = 0;
+				for (int w = 0; w < words; w++) {
+					long bits = sphere[w];
+					while (bits != 0) {
+						int atom = (w << 6) + Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+						for (int v = 0; v < words; v++)
+							next[v] |= neighbours[atom][v];
+					}
+				}
+				for (int w = 0; w < words; w++) {
+					next[w] &= ~visited[w];
+					visited[w] |= next[w];
+					any |= next[w] != 0;
+					long bits = next[w];
+					while (bits != 0) {
+						row[(w << 6) + Long.numberOfTrailingZeros(bits)] = depth;
+						bits &= bits - 1;
+					}
+				}
+				if (!any)
+					break;
+				long[] swap = sphere;
+				sphere = next;
+				next = swap;
+			}
+			distances[from] = row;
+		}
+		return distances[from][to] > 0 ? distances[from][to] : -1;
 	}
 
 	/**
@@ -248,6 +413,13 @@ public abstract class AbstractTwoDSpectrumJudge extends AbstractJudge {
 	public int[] getScores() {
 		return scores;
 	}
+
+	/**
+	 * The couplings are found through the labels of the atoms.
+	 */
+	public boolean isAtomOrderDependent() {
+		return true;
+	}
 	
 	public class TwoDRule {
 		double value1;
@@ -22,22 +22,80 @@
 package net.bioclipse.seneca.judge;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.openscience.cdk.interfaces.IMolecule;
 
 /**
- * Administers and controls all the Judges involved in a CASE run
+ * Administers and controls all the Judges involved in a CASE run.
+ * The enabled judges, their weights and the maximum score are fixed by
+ * initJudges; call it again after changing weights, data or enabling judges.
+ * The judges are evaluated cheapest first, as measured during the run, and
+ * optionally concurrently, see setParallel. Scores can be remembered for
+ * structures visited again, see getScoreCache. Judges implementing
+ * ISnapshotJudge share one StructureSnapshot per candidate.
+ * getScore may be called by several threads. The thread which called
+ * initJudges uses the judges themselves, every other thread the worker
+ * judges of the IConcurrentJudges; other judges are evaluated by one thread
+ * at a time.
  *
  * @author steinbeck
  * @created September 10, 2001
  */
 public class ChiefJustice {
 
+	/** Number of scorings after which the judges are sorted by cost again */
+	private static final int RESORT_INTERVAL = 100;
+
+	/** Relative slack when comparing a score limit with a threshold */
+	private static final double BOUND_SLACK = 1e-9;
+
+	private static ExecutorService executor = null;
+
 	List<IJudge> judges = null;
 	static boolean debug = false;
 	static boolean report = true;
-	boolean isInitialized = false;
+	volatile boolean isInitialized = false;
+
+	private IJudge[] activeJudges = new IJudge[0];
+	private int[] weights = new int[0];
+	private double maxScore = 0;
+	/** average evaluation time of each active judge in ns */
+	private long[] costs = new long[0];
+	/** indices into activeJudges, cheapest judge first */
+	private int[] costOrder = new int[0];
+	private int scoringsSinceSort = 0;
+	private boolean parallel = false;
+	/** true if one of the active judges labels atoms or reads them by index, so scores depend on the atom order */
+	private boolean atomOrderDependent = false;
+	/** true if one of the active judges reads a StructureSnapshot */
+	private boolean snapshots = false;
+	private ScoreCache scoreCache = new ScoreCache(0);
+	/** the thread which called initJudges */
+	private Thread owner = null;
+
+	/**
+	 * The judges a thread evaluates for a set of active judges.
+	 */
+	private static class WorkerJudges {
+		final IJudge[] active;
+		final IJudge[] workers;
+
+		WorkerJudges(IJudge[] active, IJudge[] workers) {
+			this.active = active;
+			this.workers = workers;
+		}
+	}
+
+	private final ThreadLocal<WorkerJudges> workerJudges = new ThreadLocal<WorkerJudges>();
 
 	/**
 	 * Constructor for the ChiefJustice object
@@ -59,15 +117,39 @@ public class ChiefJustice {
 	/**
 	 * initializes the judges
 	 */
-	public void initJudges() {
+	public synchronized void initJudges() {
+		List<IJudge> enabled = new ArrayList<IJudge>();
 		for (int f = 0; f < judges.size(); f++) {
 			IJudge judge = (IJudge) judges.get(f);
 			if (judge.getEnabled()) {
 				if (judge.hasMaxScore()) {
 					judge.calcMaxScore();
 				}
+				enabled.add(judge);
 			}
 		}
+		int[] newWeights = new int[enabled.size()];
+		int[] newOrder = new int[enabled.size()];
+		double newMaxScore = 0;
+		atomOrderDependent = false;
+		snapshots = false;
+		for (int f = 0; f < newWeights.length; f++) {
+			newWeights[f] = enabled.get(f).getWeight();
+			newMaxScore += newWeights[f];
+			newOrder[f] = f;
+			atomOrderDependent |= enabled.get(f).isLabelling()
+					|| enabled.get(f).isAtomOrderDependent();
+			snapshots |= enabled.get(f) instanceof ISnapshotJudge;
+		}
+		activeJudges = enabled.toArray(new IJudge[enabled.size()]);
+		weights = newWeights;
+		maxScore = newMaxScore;
+		costs = new long[newWeights.length];
+		costOrder = newOrder;
+		scoringsSinceSort = 0;
+		owner = Thread.currentThread();
+		// the scores remembered so far may come from other judges or weights
+		scoreCache.clear();
 		isInitialized = true;
 	}
 
@@ -79,6 +161,34 @@ public class ChiefJustice {
 	 */
 	public void setJudges(List<IJudge> judges) {
 		this.judges = judges;
+		this.isInitialized = false;
+	}
+
+	/**
+	 * If set to true, the judges are evaluated concurrently on a shared
+	 * thread pool, so the time for a scoring is that of the slowest judge
+	 * instead of the sum of all judges. Each judge except the cheapest gets
+	 * its own copy of the molecule, since judges may set flags on atoms.
+	 *
+	 * @param parallel true=evaluate judges concurrently, false=one after another.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * The cache of scores of structures scored before. It is switched off
+	 * (size 0) by default; set its size to remember scores, and use it to
+	 * read the hit rate. It is cleared by initJudges.
+	 *
+	 * @return The score cache of this ChiefJustice.
+	 */
+	public ScoreCache getScoreCache() {
+		return scoreCache;
 	}
 
 	/**
@@ -91,39 +201,318 @@ public class ChiefJustice {
 	 *                Description of Exception
 	 */
 	public ScoreSummary getScore(IMolecule molecule)  {
+		return getScore(molecule, true);
+	}
+
+	/**
+	 * Gets the score of a molecule.
+	 *
+	 * @param molecule
+	 *            The molecule to score.
+	 * @param withDescription
+	 *            If false, the description of the ScoreSummary is left empty,
+	 *            which saves building it when nobody reads it.
+	 * @return The score of this molecule.
+	 */
+	public ScoreSummary getScore(IMolecule molecule, boolean withDescription) {
 		if (!isInitialized)
 			initJudges();
+		IJudge[] active;
+		int[] order;
+		int[] judgeWeights;
+		double judgesMaxScore;
+		boolean canonical;
+		boolean withSnapshot;
+		Thread judgesOwner;
+		synchronized (this) {
+			active = activeJudges;
+			order = costOrder;
+			judgeWeights = weights;
+			judgesMaxScore = maxScore;
+			canonical = !atomOrderDependent;
+			withSnapshot = snapshots;
+			judgesOwner = owner;
+		}
+		String key = null;
+		if (scoreCache.getMaxSize() > 0) {
+			key = ScoreCache.keyOf(molecule, canonical);
+			ScoreCache.Entry entry = scoreCache.get(key, withDescription);
+			if (entry != null)
+				return new ScoreSummary(entry.score,
+						withDescription ? entry.description : "", judgesMaxScore);
+		}
+		IJudge[] workers = judgesForThread(active, judgesOwner);
+		StructureSnapshot snapshot = withSnapshot ? new StructureSnapshot(molecule) : null;
+		JudgeResult[] results = new JudgeResult[active.length];
+		if (parallel && active.length > 1) {
+			evaluateConcurrently(molecule, snapshot, active, workers, order, results);
+		} else {
+			for (int k = 0; k < order.length; k++)
+				results[order[k]] = evaluate(active, workers, order[k], molecule, snapshot);
+		}
+		sortByCost();
+		ScoreSummary scsy = summarize(active, judgeWeights, judgesMaxScore,
+				results, withDescription);
+		if (key != null)
+			remember(active, key, scsy, withDescription);
+		return scsy;
+	}
+
+	/**
+	 * Gets the score of a molecule, unless it cannot be above a threshold.
+	 * The judges are evaluated one after another, cheapest first, and the
+	 * evaluation stops as soon as the score so far plus the weights of the
+	 * judges not yet evaluated is not above the threshold. This relies on no
+	 * judge scoring above its maximum score. The description is left empty.
+	 *
+	 * @param molecule
+	 *            The molecule to score.
+	 * @param threshold
+	 *            Scores not above this are of no interest to the caller.
+	 * @return The score of this molecule, or an upper limit of the score not
+	 *         above threshold, in which case complete is false.
+	 */
+	public ScoreSummary getScore(IMolecule molecule, double threshold) {
+		if (!isInitialized)
+			initJudges();
+		IJudge[] active;
+		int[] order;
+		int[] judgeWeights;
+		double judgesMaxScore;
+		boolean canonical;
+		boolean withSnapshot;
+		Thread judgesOwner;
+		synchronized (this) {
+			active = activeJudges;
+			order = costOrder;
+			judgeWeights = weights;
+			judgesMaxScore = maxScore;
+			canonical = !atomOrderDependent;
+			withSnapshot = snapshots;
+			judgesOwner = owner;
+		}
+		String key = null;
+		if (scoreCache.getMaxSize() > 0) {
+			key = ScoreCache.keyOf(molecule, canonical);
+			ScoreCache.Entry entry = scoreCache.get(key, false);
+			if (entry != null)
+				return new ScoreSummary(entry.score, "", judgesMaxScore);
+		}
+		IJudge[] workers = judgesForThread(active, judgesOwner);
+		StructureSnapshot snapshot = withSnapshot ? new StructureSnapshot(molecule) : null;
+		JudgeResult[] results = new JudgeResult[active.length];
+		double remaining = judgesMaxScore;
+		double partial = 0;
+		for (int k = 0; k < order.length; k++) {
+			// the limit is compared with some slack, since the final score is
+			// summed in a different order
+			double limit = Math.max(0, partial + remaining);
+			if (limit + BOUND_SLACK * judgesMaxScore <= threshold) {
+				sortByCost();
+				ScoreSummary scsy = new ScoreSummary(limit, "", judgesMaxScore);
+				scsy.complete = false;
+				return scsy;
+			}
+			int f = order[k];
+			results[f] = evaluate(active, workers, f, molecule, snapshot);
+			remaining -= judgeWeights[f];
+			if (results[f] != null)
+				partial += results[f].score / results[f].maxScore * judgeWeights[f];
+		}
+		sortByCost();
+		ScoreSummary scsy = summarize(active, judgeWeights, judgesMaxScore,
+				results, false);
+		if (key != null)
+			remember(active, key, scsy, false);
+		return scsy;
+	}
+
+	/**
+	 * Puts a complete score into the score cache, unless the judges were
+	 * initialized again while it was calculated.
+	 */
+	private synchronized void remember(IJudge[] active, String key,
+			ScoreSummary scsy, boolean withDescription) {
+		if (active == activeJudges)
+			scoreCache.put(key, new ScoreCache.Entry(scsy.score,
+					withDescription ? scsy.description : null));
+	}
+
+	private ScoreSummary summarize(IJudge[] active, int[] judgeWeights,
+			double judgesMaxScore, JudgeResult[] results, boolean withDescription) {
 		double score = 0;
-		String description = "";
-		for (int f = 0; f < judges.size(); f++) {
-			IJudge judge = (IJudge) judges.get(f);
-			if (judge.getEnabled()) {
-				try {
-					JudgeResult ser = judge.evaluate(molecule);
-					//we adopt to values to weight
-					ser.score=ser.score/ser.maxScore*judge.getWeight();
-					ser.maxScore=judge.getWeight();
-					score += ser.score;
-					if (debug) {
-						System.out.println("Score from Judge " + judge.getName()
-								+ ": " + ser.score);
-					}
-					description += ser.scoreDescription + "\n";
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					// FIXME : do we want to catch here?
-					e.printStackTrace();
-				}
+		StringBuffer description = withDescription ? new StringBuffer() : null;
+		// the results are summed in judge order, independent of evaluation order
+		for (int f = 0; f < active.length; f++) {
+			JudgeResult ser = results[f];
+			if (ser == null)
+				continue;
+			//we adopt to values to weight
+			ser.score=ser.score/ser.maxScore*judgeWeights[f];
+			ser.maxScore=judgeWeights[f];
+			score += ser.score;
+			if (debug) {
+				System.out.println("Score from Judge " + active[f].getName()
+						+ ": " + ser.score);
 			}
+			if (description != null)
+				description.append(ser.scoreDescription).append("\n");
 		}
 		if (score < 0) {
 			score = 0;
 		}
-		ScoreSummary scsy = new ScoreSummary(score, description, calcMaxScore());
+		ScoreSummary scsy = new ScoreSummary(score,
+				description == null ? "" : description.toString(), judgesMaxScore);
 		return scsy;
 	}
-	
+
+	private void evaluateConcurrently(IMolecule molecule,
+			final StructureSnapshot snapshot, final IJudge[] active,
+			final IJudge[] workers, int[] order, JudgeResult[] results) {
+		// the cheapest judge runs in this thread on the original molecule, all
+		// others are submitted first, each with a copy made in this thread;
+		// the snapshot is immutable and shared by all. The pool threads use
+		// the judges of this thread, each judge is in one thread at a time.
+		List<Future<JudgeResult>> futures = new ArrayList<Future<JudgeResult>>();
+		for (int k = order.length - 1; k > 0; k--) {
+			final int index = order[k];
+			final IMolecule copy;
+			try {
+				copy = (IMolecule) molecule.clone();
+			} catch (CloneNotSupportedException e) {
+				e.printStackTrace();
+				futures.add(null);
+				continue;
+			}
+			futures.add(getExecutor().submit(new Callable<JudgeResult>() {
+				public JudgeResult call() {
+					return evaluate(active, workers, index, copy, snapshot);
+				}
+			}));
+		}
+		results[order[0]] = evaluate(active, workers, order[0], molecule, snapshot);
+		for (int k = order.length - 1; k > 0; k--) {
+			Future<JudgeResult> future = futures.get(order.length - 1 - k);
+			if (future == null)
+				continue;
+			try {
+				results[order[k]] = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+	}
+
+	private JudgeResult evaluate(IJudge[] active, IJudge[] workers, int index,
+			IMolecule molecule, StructureSnapshot snapshot) {
+		long start = System.nanoTime();
+		IJudge judge = workers[index];
+		try {
+			if (judge instanceof IConcurrentJudge)
+				return evaluate(judge, molecule, snapshot);
+			// nothing is known about the state such a judge keeps
+			synchronized (judge) {
+				return evaluate(judge, molecule, snapshot);
+			}
+		} catch (Exception e) {
+			// TODO Auto-generated catch block
+			// FIXME : do we want to catch here?
+			e.printStackTrace();
+			return null;
+		} finally {
+			synchronized (this) {
+				// the arrays are replaced if initJudges was called meanwhile
+				if (active == activeJudges) {
+					long time = System.nanoTime() - start;
+					costs[index] = costs[index] == 0 ? time
+							: costs[index] + (time - costs[index]) / 8;
+				}
+			}
+		}
+	}
+
+	private static JudgeResult evaluate(IJudge judge, IMolecule molecule,
+			StructureSnapshot snapshot) throws Exception {
+		if (snapshot != null && judge instanceof ISnapshotJudge)
+			return ((ISnapshotJudge) judge).evaluate(molecule, snapshot);
+		return judge.evaluate(molecule);
+	}
+
+	/**
+	 * The judges the current thread evaluates: the active judges themselves
+	 * in the thread which called initJudges, else the worker judges, which
+	 * are made once per thread and set of active judges.
+	 */
+	private IJudge[] judgesForThread(IJudge[] active, Thread judgesOwner) {
+		if (Thread.currentThread() == judgesOwner)
+			return active;
+		WorkerJudges current = workerJudges.get();
+		if (current != null && current.active == active)
+			return current.workers;
+		IJudge[] workers = new IJudge[active.length];
+		for (int f = 0; f < active.length; f++) {
+			workers[f] = active[f] instanceof IConcurrentJudge
+					? ((IConcurrentJudge) active[f]).getWorkerJudge() : active[f];
+		}
+		workerJudges.set(new WorkerJudges(active, workers));
+		return workers;
+	}
+
+	private synchronized void sortByCost() {
+		if (++scoringsSinceSort < RESORT_INTERVAL)
+			return;
+		scoringsSinceSort = 0;
+		final long[] currentCosts = costs;
+		Integer[] sorted = new Integer[currentCosts.length];
+		for (int f = 0; f < sorted.length; f++)
+			sorted[f] = f;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				long c1 = currentCosts[o1], c2 = currentCosts[o2];
+				return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+			}
+		});
+		int[] newOrder = new int[sorted.length];
+		for (int f = 0; f < sorted.length; f++)
+			newOrder[f] = sorted[f];
+		costOrder = newOrder;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Seneca judge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * The enabled judges ordered by their measured evaluation time, cheapest
+	 * first.
+	 *
+	 * @return The enabled judges, cheapest first.
+	 */
+	public synchronized List<IJudge> getJudgesByCost() {
+		if (!isInitialized)
+			initJudges();
+		List<IJudge> ordered = new ArrayList<IJudge>();
+		for (int f = 0; f < costOrder.length; f++)
+			ordered.add(activeJudges[costOrder[f]]);
+		return ordered;
+	}
+
    public double calcMaxScore() {
+       if (isInitialized)
+           return maxScore;
        double maxScore = 0;
        for (int f = 0; f < judges.size(); f++) {
          IJudge judge = (IJudge) judges.get(f);
@@ -162,6 +551,7 @@ public class ChiefJustice {
 	 */
 	public void removeJudge(IJudge judge) {
 		this.judges.remove(judge);
+		this.isInitialized = false;
 	}
 
 	/**
@@ -22,12 +22,11 @@
 package net.bioclipse.seneca.judge;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import net.bioclipse.chemoinformatics.wizards.WizardHelper;
 import net.bioclipse.core.util.LogUtils;
 import net.bioclipse.seneca.judge.AbstractTwoDSpectrumJudge.TwoDRule;
-import nu.xom.Document;
-import nu.xom.Elements;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IContainer;
@@ -44,12 +43,6 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.xmlcml.cml.base.CMLBuilder;
-import org.xmlcml.cml.base.CMLUtil;
-import org.xmlcml.cml.element.CMLCml;
-import org.xmlcml.cml.element.CMLSpectrum;
-
-import spok.utils.SpectrumUtils;
 
 /**
  * Gets the AllPairsShortestPath matrix for a given structure and checks if all
@@ -62,7 +55,8 @@ import spok.utils.SpectrumUtils;
 
 public class HHCOSYJudge extends AbstractTwoDSpectrumJudge {
 
-	private CMLCml cmlcml;
+	/** The spectra of the data file, read by createJudge */
+	private List<SpectrumCache.Spectrum> spectra;
 	private static Logger logger = Logger.getLogger(HHCOSYJudge.class);
 	
 	public HHCOSYJudge() {
@@ -72,20 +66,14 @@ public class HHCOSYJudge extends AbstractTwoDSpectrumJudge {
 
 	public IJudge createJudge(IPath data) throws MissingInformationException {
 		this.setData( data );
-        CMLBuilder builder = new CMLBuilder();
         try{
-            Document doc =  builder.buildEnsureCML(ResourcesPlugin.getWorkspace().getRoot().getFile( data).getContents());
-            SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-            doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-            cmlcml = (CMLCml)builder.parseString(doc.toXML());
+            spectra = SpectrumCache.getSpectra(ResourcesPlugin.getWorkspace().getRoot().getFile( data));
             couplings = new ArrayList<TwoDRule>();
-    		//using the hmbc spectrum, we build couplings.
-    		Elements spectra = cmlcml.getChildCMLElements("spectrum");
-    		for(int i=0;i<spectra.size();i++){
-    			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-    			if(spectrum.getType().equals("HHCOSY")){
-    				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
-    					couplings.add(new TwoDRule(spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue(), spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue()));
+    		//using the hhcosy spectrum, we build couplings.
+    		for(SpectrumCache.Spectrum spectrum : spectra){
+    			if(spectrum.isType("HHCOSY")){
+    				for(int k=0;k<spectrum.getPeakCount();k++){
+    					couplings.add(new TwoDRule(spectrum.getXValue(k), spectrum.getYValue(k)));
     				}
     			}
     		}
@@ -109,26 +97,19 @@ public class HHCOSYJudge extends AbstractTwoDSpectrumJudge {
     }
     
     private void check(String data) throws MissingInformationException {
-        CMLBuilder builder = new CMLBuilder();
         int correctspectra=0;
         int peakspectra=0;
-        Document doc;
 		try {
-			doc = builder.buildEnsureCML(((IFile)ResourcesPlugin.getWorkspace().getRoot().findMember(data)).getContents());
-	        SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-	        doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-	        CMLCml cmlcml = (CMLCml)builder.parseString(doc.toXML());
-	        Elements spectra = cmlcml.getChildCMLElements("spectrum");
-	        for(int i=0;i<spectra.size();i++){
-	        	CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-	        	if(spectrum.getType().equals("NMR")){
+	        List<SpectrumCache.Spectrum> spectra = SpectrumCache.getSpectra((IFile)ResourcesPlugin.getWorkspace().getRoot().findMember(data));
+	        for(SpectrumCache.Spectrum spectrum : spectra){
+	        	if(spectrum.isType("NMR")){
 	        		correctspectra++;
-	        	}else if(spectrum.getType().equals("HHCOSY")){
+	        	}else if(spectrum.isType("HHCOSY")){
 	        		correctspectra++;
-	        	}else if(spectrum.getType().equals("HSQC")){
+	        	}else if(spectrum.isType("HSQC")){
 	        		correctspectra++;
 	        	}
-	        	if(spectrum.getPeakListElements().size()==1)
+	        	if(spectrum.getPeakListCount()==1)
 	        		peakspectra++;
 	        }
 	        if(correctspectra!=3)
@@ -201,30 +182,27 @@ public class HHCOSYJudge extends AbstractTwoDSpectrumJudge {
 
 	public void labelStartStructure(IAtomContainer startStructure) {
 		//using the bb+hsqc spectrum, we assign c and h labels.
-		Elements spectra = cmlcml.getChildCMLElements("spectrum");
-		for(int i=0;i<spectra.size();i++){
-			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-			if(spectrum.getType().equals("NMR")){
-				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
+		for(SpectrumCache.Spectrum spectrum : spectra){
+			if(spectrum.isType("NMR")){
+				for(int k=0;k<spectrum.getPeakCount();k++){
 					for(int l=0;l<startStructure.getAtomCount();l++){
-						if(startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)==null && startStructure.getAtom(l).getImplicitHydrogenCount()==Integer.parseInt(spectrum.getPeakListElements().get(0).getPeakElements().get(k).getAttributeValue("multiplicity"))){
-							startStructure.getAtom(l).setProperty(HMBCJudge.C_SHIFT,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue());
+						if(startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)==null && startStructure.getAtom(l).getImplicitHydrogenCount()==Integer.parseInt(spectrum.getMultiplicity(k))){
+							startStructure.getAtom(l).setProperty(HMBCJudge.C_SHIFT,spectrum.getXValue(k));
 							break;
 						}
 					}
 				}
 			}
 		}
-		for(int i=0;i<spectra.size();i++){
-			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-			if(spectrum.getType().equals("HSQC")){
-				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
+		for(SpectrumCache.Spectrum spectrum : spectra){
+			if(spectrum.isType("HSQC")){
+				for(int k=0;k<spectrum.getPeakCount();k++){
 					for(int l=0;l<startStructure.getAtomCount();l++){
-						if((Double)startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)!=null && (Double)startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)==spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue()){
+						if((Double)startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)!=null && (Double)startStructure.getAtom(l).getProperty(HMBCJudge.C_SHIFT)==spectrum.getXValue(k)){
 							if(startStructure.getAtom(l).getProperty(HMBCJudge.H_SHIFT)==null)
-								startStructure.getAtom(l).setProperty(HMBCJudge.H_SHIFT,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue());
+								startStructure.getAtom(l).setProperty(HMBCJudge.H_SHIFT,spectrum.getYValue(k));
 							else
-								startStructure.getAtom(l).setProperty(HMBCJudge.H_SHIFT_2,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue());
+								startStructure.getAtom(l).setProperty(HMBCJudge.H_SHIFT_2,spectrum.getYValue(k));
 							break;
 						}
 					}
@@ -234,5 +212,6 @@ public class HHCOSYJudge extends AbstractTwoDSpectrumJudge {
 		/*for(int l=0;l<startStructure.getAtomCount();l++){
 			System.err.println(startStructure.getAtom(l).getProperty(C_SHIFT)+" "+startStructure.getAtom(l).getProperty(H_SHIFT)+" "+startStructure.getAtom(l).getProperty(H_SHIFT_2));
 		}*/
+		indexShifts(startStructure);
 	}
 }
@@ -22,11 +22,10 @@
 package net.bioclipse.seneca.judge;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import net.bioclipse.chemoinformatics.wizards.WizardHelper;
 import net.bioclipse.core.util.LogUtils;
-import nu.xom.Document;
-import nu.xom.Elements;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IContainer;
@@ -44,12 +43,6 @@ import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.xmlcml.cml.base.CMLBuilder;
-import org.xmlcml.cml.base.CMLUtil;
-import org.xmlcml.cml.element.CMLCml;
-import org.xmlcml.cml.element.CMLSpectrum;
-
-import spok.utils.SpectrumUtils;
 
 /**
  * Gets the score of a structure by an HMBC spectrum. The structure must be 
@@ -60,7 +53,8 @@ import spok.utils.SpectrumUtils;
 public class HMBCJudge extends AbstractTwoDSpectrumJudge {
 
     private static Logger logger = Logger.getLogger(HMBCJudge.class);
-	CMLCml cmlcml;
+	/** The spectra of the data file, read by createJudge */
+	List<SpectrumCache.Spectrum> spectra;
 	public static final String C_SHIFT="C_SHIFT";
 	public static final String H_SHIFT="H_SHIFT";
 	public static final String H_SHIFT_2="H_SHIFT_2";
@@ -75,20 +69,14 @@ public class HMBCJudge extends AbstractTwoDSpectrumJudge {
 
 	public IJudge createJudge(IPath data) throws MissingInformationException {
 		this.setData( data );
-        CMLBuilder builder = new CMLBuilder();
         try{
-            Document doc =  builder.buildEnsureCML(ResourcesPlugin.getWorkspace().getRoot().getFile( data).getContents());
-            SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-            doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-            cmlcml = (CMLCml)builder.parseString(doc.toXML());
+            spectra = SpectrumCache.getSpectra(ResourcesPlugin.getWorkspace().getRoot().getFile( data));
             couplings = new ArrayList<TwoDRule>();
     		//using the hmbc spectrum, we build couplings.
-    		Elements spectra = cmlcml.getChildCMLElements("spectrum");
-    		for(int i=0;i<spectra.size();i++){
-    			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-    			if(spectrum.getType().equals("HMBC")){
-    				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
-    					couplings.add(new TwoDRule(spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue(), spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue()));
+    		for(SpectrumCache.Spectrum spectrum : spectra){
+    			if(spectrum.isType("HMBC")){
+    				for(int k=0;k<spectrum.getPeakCount();k++){
+    					couplings.add(new TwoDRule(spectrum.getXValue(k), spectrum.getYValue(k)));
     				}
     			}
     		}
@@ -112,26 +100,19 @@ public class HMBCJudge extends AbstractTwoDSpectrumJudge {
     }
     
     private void check(String data) throws MissingInformationException {
-        CMLBuilder builder = new CMLBuilder();
         int correctspectra=0;
         int peakspectra=0;
-        Document doc;
 		try {
-			doc = builder.buildEnsureCML(((IFile)ResourcesPlugin.getWorkspace().getRoot().findMember(data)).getContents());
-	        SpectrumUtils.namespaceThemAll( doc.getRootElement().getChildElements() );
-	        doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
-	        CMLCml cmlcml = (CMLCml)builder.parseString(doc.toXML());
-	        Elements spectra = cmlcml.getChildCMLElements("spectrum");
-	        for(int i=0;i<spectra.size();i++){
-	        	CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-	        	if(spectrum.getType().equals("NMR")){
+	        List<SpectrumCache.Spectrum> spectra = SpectrumCache.getSpectra((IFile)ResourcesPlugin.getWorkspace().getRoot().findMember(data));
+	        for(SpectrumCache.Spectrum spectrum : spectra){
+	        	if(spectrum.isType("NMR")){
 	        		correctspectra++;
-	        	}else if(spectrum.getType().equals("HMBC")){
+	        	}else if(spectrum.isType("HMBC")){
 	        		correctspectra++;
-	        	}else if(spectrum.getType().equals("HSQC")){
+	        	}else if(spectrum.isType("HSQC")){
 	        		correctspectra++;
 	        	}
-	        	if(spectrum.getPeakListElements().size()==1)
+	        	if(spectrum.getPeakListCount()==1)
 	        		peakspectra++;
 	        }
 	        if(correctspectra!=3)
@@ -209,30 +190,27 @@ public class HMBCJudge extends AbstractTwoDSpectrumJudge {
 	 */
 	public void labelStartStructure(IAtomContainer startStructure) {
 		//using the bb+hsqc spectrum, we assign c and h labels.
-		Elements spectra = cmlcml.getChildCMLElements("spectrum");
-		for(int i=0;i<spectra.size();i++){
-			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-			if(spectrum.getType().equals("NMR")){
-				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
+		for(SpectrumCache.Spectrum spectrum : spectra){
+			if(spectrum.isType("NMR")){
+				for(int k=0;k<spectrum.getPeakCount();k++){
 					for(int l=0;l<startStructure.getAtomCount();l++){
-						if(startStructure.getAtom(l).getProperty(C_SHIFT)==null && startStructure.getAtom(l).getImplicitHydrogenCount()==Integer.parseInt(spectrum.getPeakListElements().get(0).getPeakElements().get(k).getAttributeValue("multiplicity"))){
-							startStructure.getAtom(l).setProperty(C_SHIFT,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue());
+						if(startStructure.getAtom(l).getProperty(C_SHIFT)==null && startStructure.getAtom(l).getImplicitHydrogenCount()==Integer.parseInt(spectrum.getMultiplicity(k))){
+							startStructure.getAtom(l).setProperty(C_SHIFT,spectrum.getXValue(k));
 							break;
 						}
 					}
 				}
 			}
 		}
-		for(int i=0;i<spectra.size();i++){
-			CMLSpectrum spectrum = (CMLSpectrum)spectra.get(i);
-			if(spectrum.getType().equals("HSQC")){
-				for(int k=0;k<spectrum.getPeakListElements().get(0).getPeakElements().size();k++){
+		for(SpectrumCache.Spectrum spectrum : spectra){
+			if(spectrum.isType("HSQC")){
+				for(int k=0;k<spectrum.getPeakCount();k++){
 					for(int l=0;l<startStructure.getAtomCount();l++){
-						if((Double)startStructure.getAtom(l).getProperty(C_SHIFT)!=null && (Double)startStructure.getAtom(l).getProperty(C_SHIFT)==spectrum.getPeakListElements().get(0).getPeakElements().get(k).getXValue()){
+						if((Double)startStructure.getAtom(l).getProperty(C_SHIFT)!=null && (Double)startStructure.getAtom(l).getProperty(C_SHIFT)==spectrum.getXValue(k)){
 							if(startStructure.getAtom(l).getProperty(H_SHIFT)==null)
-								startStructure.getAtom(l).setProperty(H_SHIFT,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue());
+								startStructure.getAtom(l).setProperty(H_SHIFT,spectrum.getYValue(k));
 							else
-								startStructure.getAtom(l).setProperty(H_SHIFT_2,spectrum.getPeakListElements().get(0).getPeakElements().get(k).getYValue());
+								startStructure.getAtom(l).setProperty(H_SHIFT_2,spectrum.getYValue(k));
 							break;
 						}
 					}
@@ -242,5 +220,6 @@ public class HMBCJudge extends AbstractTwoDSpectrumJudge {
 		/*for(int l=0;l<startStructure.getAtomCount();l++){
 			System.err.println(startStructure.getAtom(l).getProperty(C_SHIFT)+" "+startStructure.getAtom(l).getProperty(H_SHIFT)+" "+startStructure.getAtom(l).getProperty(H_SHIFT_2));
 		}*/
+		indexShifts(startStructure);
 	}
 }
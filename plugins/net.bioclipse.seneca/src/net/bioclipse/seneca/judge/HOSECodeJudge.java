@@ -38,7 +38,7 @@ import org.xmlcml.cml.base.CMLElement;
  * state and hetero attachments
  */
 
-public class HOSECodeJudge extends Abstract13CJudge {
+public class HOSECodeJudge extends Abstract13CJudge implements IConcurrentJudge {
 
 	public int score = 100; // Score for optimum fit of exp. with calc. shift
 	protected transient HOSECodeGenerator hcg;
@@ -68,8 +68,7 @@ public class HOSECodeJudge extends Abstract13CJudge {
 	 * @return A JudgeResult containing the score for this structure
 	 */
 	public JudgeResult evaluate(IAtomContainer ac) throws Exception {
-		scoreSum = 0;
-		debug = false;
+		double scoreSum = 0;
 		String hoseCode = null;
 		double shift = 0, confidenceLimit = 0, deviation = 0, mediumDeviation = 0;
 		int carbonCount = 0;
@@ -107,6 +106,24 @@ public class HOSECodeJudge extends Abstract13CJudge {
 		return new JudgeResult(maxScore, scoreSum, 0, message);
 	}
 
+	/**
+	 * The deviation of each carbon is taken from the shift with the same
+	 * index.
+	 */
+	public boolean isAtomOrderDependent() {
+		return true;
+	}
+
+	/**
+	 * The HOSECodeGenerator keeps the atoms of the spheres it is building, so
+	 * each thread gets a copy with its own generator.
+	 */
+	public IJudge getWorkerJudge() {
+		HOSECodeJudge judge = (HOSECodeJudge) copy();
+		judge.hcg = new HOSECodeGenerator();
+		return judge;
+	}
+
     public String getDescription() {
         return "Calculates a score based on a very simple 13C NMR prediction, using "+
         "a simple score function. The WCCHOSECodeJudge and primarily NMRShiftDB judge will do much better";
@@ -0,0 +1,21 @@
+package net.bioclipse.seneca.judge;
+
+/**
+ * A judge which can be used by several threads at once. Each thread other
+ * than the one which initialized the ChiefJustice evaluates through its own
+ * worker judge, obtained once by getWorkerJudge. A judge whose evaluate keeps
+ * all state in local variables returns itself; a judge keeping state between
+ * calls, or using helpers which are not thread safe, returns a copy with the
+ * same configuration and data. ChiefJustice evaluates judges not implementing
+ * this interface one thread at a time.
+ */
+public interface IConcurrentJudge extends IJudge {
+
+	/**
+	 * Gives the judge to be used by another thread.
+	 *
+	 * @return This judge if it can be shared, else a configured copy.
+	 */
+	public IJudge getWorkerJudge();
+
+}
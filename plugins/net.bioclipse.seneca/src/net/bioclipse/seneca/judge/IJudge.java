@@ -183,6 +183,16 @@ public interface IJudge {
 	public abstract void labelStartStructure(IAtomContainer startStructure);
 
 
+	/**
+	 * If this returns true, the score depends on the numbering of the atoms,
+	 * e.g. because the judge reads atoms by their index, so two numberings
+	 * of the same structure may score differently.
+	 * 
+	 * @return true=score depends on the atom order, false=only on the structure.
+	 */
+	public abstract boolean isAtomOrderDependent();
+
+
 	public abstract void setWeight(int weight);
 	public abstract int getWeight();
 
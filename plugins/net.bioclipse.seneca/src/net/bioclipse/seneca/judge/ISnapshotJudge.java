@@ -0,0 +1,24 @@
+package net.bioclipse.seneca.judge;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * A judge which can read the structure from a StructureSnapshot instead of
+ * the CDK accessors. ChiefJustice takes one snapshot per candidate and
+ * passes it to all judges implementing this interface; evaluate(ac) must
+ * still work on its own and give the same result.
+ */
+public interface ISnapshotJudge extends IJudge {
+
+	/**
+	 * Evaluates a structure.
+	 *
+	 * @param ac       The structure to judge.
+	 * @param snapshot A snapshot of ac, with the atoms in the same order.
+	 * @return A JudgeResult containing the score for this structure.
+	 * @throws Exception
+	 */
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot)
+			throws Exception;
+
+}
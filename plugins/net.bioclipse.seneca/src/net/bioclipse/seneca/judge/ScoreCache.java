@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.judge;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * A size bounded, least recently used cache of scores, used by ChiefJustice
+ * to avoid scoring a structure again which was scored before, e. g. after a
+ * move and its inverse. The key is a string describing the complete
+ * structure (elements, hydrogens, charges, aromaticity and all bonds) with
+ * the atoms in a canonical order, so different structures never share a key
+ * and renumbered copies of a structure usually do. Judges which label atoms
+ * or read them by index depend on the atom order (see
+ * IJudge.isAtomOrderDependent), for them the key keeps the order of the
+ * container. All methods are synchronized.
+ */
+public class ScoreCache {
+
+	/**
+	 * A cached score.
+	 */
+	static class Entry {
+		final double score;
+		/** null if the score was calculated without description */
+		final String description;
+
+		Entry(double score, String description) {
+			this.score = score;
+			this.description = description;
+		}
+	}
+
+	private int maxSize;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private final LinkedHashMap<String, Entry> map;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param maxSize The maximum number of scores to keep, 0 switches the cache off.
+	 */
+	public ScoreCache(int maxSize) {
+		this.maxSize = maxSize;
+		map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > ScoreCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a score and counts a hit or a miss.
+	 *
+	 * @param  key             The key of the structure, see keyOf.
+	 * @param  withDescription If true, a score cached without description counts as a miss.
+	 * @return                 The cached score, null if not cached.
+	 */
+	synchronized Entry get(String key, boolean withDescription) {
+		Entry entry = map.get(key);
+		if (entry == null || (withDescription && entry.description == null)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry;
+	}
+
+	/**
+	 * Stores a score, evicting the least recently used one if the cache is full.
+	 */
+	synchronized void put(String key, Entry entry) {
+		if (maxSize > 0)
+			map.put(key, entry);
+	}
+
+	/**
+	 * Changes the maximum size, evicting least recently used scores if needed.
+	 *
+	 * @param maxSize The maximum number of scores to keep, 0 switches the cache off.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		Iterator<String> it = map.keySet().iterator();
+		while (map.size() > maxSize && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getSize() {
+		return map.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The share of lookups which were hits, 0 if there were none.
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Removes all scores, e. g. because judges, weights or data changed. The counters are kept.
+	 */
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Sets hit, miss and eviction counters back to 0.
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	public synchronized String toString() {
+		return "ScoreCache: " + map.size() + "/" + maxSize + " entries, "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+	/**
+	 * Builds the key of a structure.
+	 *
+	 * @param  ac        The structure.
+	 * @param  canonical If true, the atoms are put in a canonical order, else the order of the container is kept.
+	 * @return           A string which is equal for two structures only if they are equal.
+	 */
+	public static String keyOf(IAtomContainer ac, boolean canonical) {
+		int atomCount = ac.getAtomCount();
+		Map<IAtom, Integer> index = new IdentityHashMap<IAtom, Integer>();
+		for (int f = 0; f < atomCount; f++)
+			index.put(ac.getAtom(f), f);
+		int bondCount = ac.getBondCount();
+		int[] from = new int[bondCount];
+		int[] to = new int[bondCount];
+		int[] codes = new int[bondCount];
+		for (int b = 0; b < bondCount; b++) {
+			IBond bond = ac.getBond(b);
+			from[b] = index.get(bond.getAtom(0));
+			to[b] = index.get(bond.getAtom(1));
+			codes[b] = ((bond.getOrder() == null ? 0 : bond.getOrder().ordinal() + 1) << 1)
+					| (bond.getFlag(CDKConstants.ISAROMATIC) ? 1 : 0);
+		}
+		String[] atoms = new String[atomCount];
+		for (int f = 0; f < atomCount; f++) {
+			IAtom atom = ac.getAtom(f);
+			atoms[f] = atom.getSymbol() + ',' + atom.getImplicitHydrogenCount()
+					+ ',' + atom.getFormalCharge()
+					+ (atom.getFlag(CDKConstants.ISAROMATIC) ? 'a' : '.');
+		}
+		int[] rank = canonical ? canonicalRanks(atoms, from, to, codes)
+				: identityRanks(atomCount);
+		int[] atomAt = new int[atomCount];
+		for (int f = 0; f < atomCount; f++)
+			atomAt[rank[f]] = f;
+		StringBuilder key = new StringBuilder();
+		key.append(atomCount).append('|');
+		for (int r = 0; r < atomCount; r++)
+			key.append(atoms[atomAt[r]]).append(';');
+		long[] bonds = new long[bondCount];
+		for (int b = 0; b < bondCount; b++) {
+			long low = Math.min(rank[from[b]], rank[to[b]]);
+			long high = Math.max(rank[from[b]], rank[to[b]]);
+			bonds[b] = (low << 40) | (high << 8) | codes[b];
+		}
+		Arrays.sort(bonds);
+		for (int b = 0; b < bondCount; b++)
+			key.append(bonds[b] >> 40).append('-').append((bonds[b] >> 8) & 0xffffffffL)
+					.append(':').append(bonds[b] & 0xff).append(';');
+		return key.toString();
+	}
+
+	private static int[] identityRanks(int atomCount) {
+		int[] rank = new int[atomCount];
+		for (int f = 0; f < atomCount; f++)
+			rank[f] = f;
+		return rank;
+	}
+
+	/**
+	 * Orders the atoms by invariants refined over their neighbourhoods, in
+	 * the manner of the Morgan algorithm. Ties left are broken by the
+	 * position in the container, so the result is always a valid order, at
+	 * worst one which gives two copies of a symmetric structure different
+	 * keys.
+	 */
+	private static int[] canonicalRanks(String[] atoms, int[] from, int[] to, int[] codes) {
+		final int atomCount = atoms.length;
+		final long[] invariant = new long[atomCount];
+		for (int f = 0; f < atomCount; f++)
+			invariant[f] = atoms[f].hashCode();
+		for (int b = 0; b < from.length; b++) {
+			invariant[from[b]] += 0x9e3779b97f4a7c15L * (codes[b] + 1);
+			invariant[to[b]] += 0x9e3779b97f4a7c15L * (codes[b] + 1);
+		}
+		int classes = countClasses(invariant);
+		long[] next = new long[atomCount];
+		for (int round = 0; round < atomCount; round++) {
+			for (int f = 0; f < atomCount; f++)
+				next[f] = invariant[f] * 31;
+			for (int b = 0; b < from.length; b++) {
+				next[from[b]] += mix(invariant[to[b]] + codes[b]);
+				next[to[b]] += mix(invariant[from[b]] + codes[b]);
+			}
+			int nextClasses = countClasses(next);
+			if (nextClasses <= classes)
+				break;
+			System.arraycopy(next, 0, invariant, 0, atomCount);
+			classes = nextClasses;
+		}
+		Integer[] order = new Integer[atomCount];
+		for (int f = 0; f < atomCount; f++)
+			order[f] = f;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				long i1 = invariant[o1], i2 = invariant[o2];
+				if (i1 != i2)
+					return i1 < i2 ? -1 : 1;
+				return o1.compareTo(o2);
+			}
+		});
+		int[] rank = new int[atomCount];
+		for (int r = 0; r < atomCount; r++)
+			rank[order[r]] = r;
+		return rank;
+	}
+
+	private static int countClasses(long[] invariant) {
+		long[] sorted = invariant.clone();
+		Arrays.sort(sorted);
+		int classes = sorted.length == 0 ? 0 : 1;
+		for (int f = 1; f < sorted.length; f++) {
+			if (sorted[f] != sorted[f - 1])
+				classes++;
+		}
+		return classes;
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		return value;
+	}
+}
@@ -26,6 +26,11 @@ public class ScoreSummary  {
 	public double score = 0;
 	public double maxScore = -1;
 	public String description = "";
+	/**
+	 * false if scoring stopped early, in which case score is only an upper
+	 * limit of the real score.
+	 */
+	public boolean complete = true;
 
 	public ScoreSummary(double score, String description, double maxScore) {
 		this.score = score;
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.judge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Elements;
+import nu.xom.ParsingException;
+import nu.xom.XPathContext;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.xmlcml.cml.base.CMLBuilder;
+import org.xmlcml.cml.base.CMLElements;
+import org.xmlcml.cml.base.CMLUtil;
+import org.xmlcml.cml.element.CMLCml;
+import org.xmlcml.cml.element.CMLPeak;
+import org.xmlcml.cml.element.CMLSpectrum;
+
+import spok.utils.SpectrumUtils;
+
+/**
+ * The peaks of the spectra in the CML files of the judges. Reading such a
+ * file means building a document, namespacing it, writing it out and parsing
+ * it again, which createJudge, checkJudge and labelStartStructure used to do
+ * each time a job was validated, started or its results were evaluated. This
+ * cache keeps what the judges use of a file, keyed by its path and
+ * modification stamp, so a file is only parsed again after it was changed.
+ * All methods may be called by several threads.
+ */
+public class SpectrumCache {
+
+	/**
+	 * The peaks of the first peak list of one spectrum.
+	 */
+	public static class Spectrum {
+		private final String type;
+		private final boolean carbon;
+		private final int peakListCount;
+		private final double[] xValues;
+		private final double[] yValues;
+		private final String[] multiplicities;
+
+		Spectrum(CMLSpectrum spectrum, XPathContext context) {
+			type = spectrum.getType();
+			carbon = spectrum.query(
+					"./cml:metadataList/cml:metadata[@content=\"13C\"]",
+					context).size() > 0;
+			peakListCount = spectrum.getPeakListElements().size();
+			if (peakListCount == 0) {
+				xValues = new double[0];
+				yValues = new double[0];
+				multiplicities = new String[0];
+				return;
+			}
+			CMLElements<CMLPeak> peaks = spectrum.getPeakListElements().get(0)
+					.getPeakElements();
+			xValues = new double[peaks.size()];
+			yValues = new double[peaks.size()];
+			multiplicities = new String[peaks.size()];
+			for (int k = 0; k < peaks.size(); k++) {
+				CMLPeak peak = peaks.get(k);
+				xValues[k] = peak.getXValue();
+				yValues[k] = peak.getYValue();
+				multiplicities[k] = peak.getAttributeValue("multiplicity");
+			}
+		}
+
+		/**
+		 * @return The type attribute of the spectrum, null if there is none.
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return true if the type of the spectrum is the given one.
+		 */
+		public boolean isType(String type) {
+			return type.equals(this.type);
+		}
+
+		/**
+		 * @return true if the metadata of the spectrum say it is a 13C spectrum.
+		 */
+		public boolean isCarbon() {
+			return carbon;
+		}
+
+		public int getPeakListCount() {
+			return peakListCount;
+		}
+
+		public int getPeakCount() {
+			return xValues.length;
+		}
+
+		public double getXValue(int peak) {
+			return xValues[peak];
+		}
+
+		public double getYValue(int peak) {
+			return yValues[peak];
+		}
+
+		/**
+		 * @return The multiplicity attribute of a peak, null if there is none.
+		 */
+		public String getMultiplicity(int peak) {
+			return multiplicities[peak];
+		}
+
+		/**
+		 * @return A copy of the x values of the peaks.
+		 */
+		public double[] getXValues() {
+			return xValues.clone();
+		}
+	}
+
+	private static class Entry {
+		final long stamp;
+		final List<Spectrum> spectra;
+
+		Entry(long stamp, List<Spectrum> spectra) {
+			this.stamp = stamp;
+			this.spectra = spectra;
+		}
+	}
+
+	/** Only a few files are used by the judges of a session */
+	private static final int MAX_SIZE = 32;
+
+	private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private static long parses = 0;
+
+	private SpectrumCache() {
+	}
+
+	/**
+	 * Gets the spectra of a CML file, parsing it only if it is not cached or
+	 * was modified since. The root element may be a cml element, whose
+	 * spectrum children are read, or a single spectrum.
+	 *
+	 * @param  file The CML file.
+	 * @return      The spectra in the order of the file, not modifiable.
+	 * @throws CoreException     If the file cannot be read from the workspace.
+	 * @throws IOException       If reading the contents fails.
+	 * @throws ParsingException  If the file is not well formed CML.
+	 */
+	public static List<Spectrum> getSpectra(IFile file) throws CoreException,
+			IOException, ParsingException {
+		String key = file.getFullPath().toString();
+		long stamp = file.getModificationStamp();
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.stamp == stamp)
+				return entry.spectra;
+		}
+		// parsed outside the lock, two threads may both parse a new file
+		List<Spectrum> spectra = parse(file);
+		synchronized (entries) {
+			entries.put(key, new Entry(stamp, spectra));
+			parses++;
+		}
+		return spectra;
+	}
+
+	/**
+	 * Removes all files, e. g. if the CML classes used for reading changed.
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return How often a file was parsed since the start.
+	 */
+	public static long getParseCount() {
+		synchronized (entries) {
+			return parses;
+		}
+	}
+
+	private static List<Spectrum> parse(IFile file) throws CoreException,
+			IOException, ParsingException {
+		CMLBuilder builder = new CMLBuilder();
+		Document doc = builder.buildEnsureCML(file.getContents());
+		SpectrumUtils.namespaceThemAll(doc.getRootElement().getChildElements());
+		doc.getRootElement().setNamespaceURI(CMLUtil.CML_NS);
+		Element element = builder.parseString(doc.toXML());
+		XPathContext context = new XPathContext("cml", CMLUtil.CML_NS);
+		List<Spectrum> spectra = new ArrayList<Spectrum>();
+		if (element instanceof CMLCml) {
+			Elements children = ((CMLCml) element).getChildCMLElements("spectrum");
+			for (int i = 0; i < children.size(); i++)
+				spectra.add(new Spectrum((CMLSpectrum) children.get(i), context));
+		} else if (element instanceof CMLSpectrum) {
+			spectra.add(new Spectrum((CMLSpectrum) element, context));
+		}
+		return Collections.unmodifiableList(spectra);
+	}
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.judge;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * An immutable copy of the constitution of a structure in primitive arrays:
+ * element, hydrogen count and charge of each atom, and the neighbours of
+ * each atom in compressed sparse row form together with the bond orders.
+ * Atoms are numbered as in the container. ChiefJustice builds one snapshot
+ * per candidate and passes it to all judges implementing ISnapshotJudge, so
+ * they need not call the CDK accessors in their loops. A snapshot may be
+ * read by several threads.
+ */
+public class StructureSnapshot {
+
+	/** Element code of atoms whose symbol is not an element */
+	public static final int UNKNOWN = 0;
+	public static final int HYDROGEN = 1;
+	public static final int CARBON = 6;
+	public static final int NITROGEN = 7;
+	public static final int OXYGEN = 8;
+
+	private static final String[] SYMBOLS = ("R H He Li Be B C N O F Ne Na Mg Al Si P S Cl Ar "
+			+ "K Ca Sc Ti V Cr Mn Fe Co Ni Cu Zn Ga Ge As Se Br Kr "
+			+ "Rb Sr Y Zr Nb Mo Tc Ru Rh Pd Ag Cd In Sn Sb Te I Xe").split(" ");
+	private static final Map<String, Integer> CODES = new HashMap<String, Integer>();
+	static {
+		for (int i = 1; i < SYMBOLS.length; i++)
+			CODES.put(SYMBOLS[i], i);
+	}
+
+	private final int atomCount;
+	private final int[] elements;
+	private final int[] implicitHydrogens;
+	private final int[] hydrogens;
+	private final int[] charges;
+	private final boolean[] aromatic;
+	/** the neighbours of atom i are neighbours[start[i]] to neighbours[start[i+1]-1] */
+	private final int[] start;
+	private final int[] neighbours;
+	/** the order (1-4, 0 if not set) of the bond to each entry of neighbours */
+	private final int[] orders;
+	private final boolean[] aromaticBonds;
+
+	/**
+	 * Takes a snapshot of a structure.
+	 *
+	 * @param ac The structure.
+	 */
+	public StructureSnapshot(IAtomContainer ac) {
+		atomCount = ac.getAtomCount();
+		elements = new int[atomCount];
+		implicitHydrogens = new int[atomCount];
+		hydrogens = new int[atomCount];
+		charges = new int[atomCount];
+		aromatic = new boolean[atomCount];
+		start = new int[atomCount + 1];
+		Map<IAtom, Integer> index = new IdentityHashMap<IAtom, Integer>();
+		for (int f = 0; f < atomCount; f++) {
+			IAtom atom = ac.getAtom(f);
+			index.put(atom, f);
+			elements[f] = elementCode(atom.getSymbol());
+			Integer h = atom.getImplicitHydrogenCount();
+			implicitHydrogens[f] = h == null ? 0 : h.intValue();
+			Integer charge = atom.getFormalCharge();
+			charges[f] = charge == null ? 0 : charge.intValue();
+			aromatic[f] = atom.getFlag(CDKConstants.ISAROMATIC);
+		}
+		int bondCount = ac.getBondCount();
+		int[] from = new int[bondCount];
+		int[] to = new int[bondCount];
+		for (int b = 0; b < bondCount; b++) {
+			IBond bond = ac.getBond(b);
+			from[b] = index.get(bond.getAtom(0));
+			to[b] = index.get(bond.getAtom(1));
+			start[from[b] + 1]++;
+			start[to[b] + 1]++;
+		}
+		for (int f = 0; f < atomCount; f++)
+			start[f + 1] += start[f];
+		neighbours = new int[2 * bondCount];
+		orders = new int[2 * bondCount];
+		aromaticBonds = new boolean[2 * bondCount];
+		int[] fill = new int[atomCount];
+		for (int b = 0; b < bondCount; b++) {
+			IBond bond = ac.getBond(b);
+			int order = bond.getOrder() == null ? 0 : bond.getOrder().ordinal() + 1;
+			boolean isAromatic = bond.getFlag(CDKConstants.ISAROMATIC);
+			int k = start[from[b]] + fill[from[b]]++;
+			neighbours[k] = to[b];
+			orders[k] = order;
+			aromaticBonds[k] = isAromatic;
+			k = start[to[b]] + fill[to[b]]++;
+			neighbours[k] = from[b];
+			orders[k] = order;
+			aromaticBonds[k] = isAromatic;
+		}
+		for (int f = 0; f < atomCount; f++) {
+			hydrogens[f] = implicitHydrogens[f];
+			for (int k = start[f]; k < start[f + 1]; k++) {
+				if (elements[neighbours[k]] == HYDROGEN)
+					hydrogens[f]++;
+			}
+		}
+	}
+
+	/**
+	 * The code used for an element symbol, which is its atomic number for
+	 * the elements up to Xe and UNKNOWN for all other symbols.
+	 *
+	 * @param symbol An element symbol.
+	 * @return The code of the element.
+	 */
+	public static int elementCode(String symbol) {
+		Integer code = CODES.get(symbol);
+		return code == null ? UNKNOWN : code.intValue();
+	}
+
+	public int getAtomCount() {
+		return atomCount;
+	}
+
+	/**
+	 * @return The element code of an atom, see elementCode.
+	 */
+	public int getElement(int atom) {
+		return elements[atom];
+	}
+
+	/**
+	 * @return The implicit hydrogen count of an atom, 0 if not set.
+	 */
+	public int getImplicitHydrogenCount(int atom) {
+		return implicitHydrogens[atom];
+	}
+
+	/**
+	 * @return The implicit hydrogens of an atom plus its hydrogen neighbours.
+	 */
+	public int getHydrogenCount(int atom) {
+		return hydrogens[atom];
+	}
+
+	/**
+	 * @return The formal charge of an atom, 0 if not set.
+	 */
+	public int getFormalCharge(int atom) {
+		return charges[atom];
+	}
+
+	public boolean isAromatic(int atom) {
+		return aromatic[atom];
+	}
+
+	/**
+	 * @return The number of neighbours of an atom.
+	 */
+	public int getDegree(int atom) {
+		return start[atom + 1] - start[atom];
+	}
+
+	/**
+	 * @return The k-th neighbour of an atom.
+	 */
+	public int getNeighbour(int atom, int k) {
+		return neighbours[start[atom] + k];
+	}
+
+	/**
+	 * @return The order (1-4, 0 if not set) of the bond to the k-th neighbour of an atom.
+	 */
+	public int getBondOrder(int atom, int k) {
+		return orders[start[atom] + k];
+	}
+
+	/**
+	 * @return true if the bond to the k-th neighbour of an atom is aromatic.
+	 */
+	public boolean isAromaticBond(int atom, int k) {
+		return aromaticBonds[start[atom] + k];
+	}
+
+	/**
+	 * Marks all atoms whose own properties or first sphere differ from the
+	 * same atom in <code>other</code>. Atoms of UNKNOWN element are always
+	 * marked, since their symbols are not kept.
+	 *
+	 * @param other A snapshot of a structure with the same atom count.
+	 * @return One flag per atom, true if the atom changed.
+	 */
+	boolean[] changedAtoms(StructureSnapshot other) {
+		boolean[] changed = new boolean[atomCount];
+		for (int f = 0; f < atomCount; f++) {
+			changed[f] = elements[f] == UNKNOWN
+					|| elements[f] != other.elements[f]
+					|| implicitHydrogens[f] != other.implicitHydrogens[f]
+					|| charges[f] != other.charges[f]
+					|| aromatic[f] != other.aromatic[f]
+					|| !sameNeighbours(f, other);
+		}
+		return changed;
+	}
+
+	/**
+	 * Compares the bonds of an atom with those of the same atom in
+	 * <code>other</code>, regardless of the order they are listed in.
+	 */
+	private boolean sameNeighbours(int atom, StructureSnapshot other) {
+		int degree = getDegree(atom);
+		if (degree != other.getDegree(atom))
+			return false;
+		for (int k = start[atom]; k < start[atom + 1]; k++) {
+			int l = other.start[atom];
+			while (l < other.start[atom + 1] && other.neighbours[l] != neighbours[k])
+				l++;
+			if (l == other.start[atom + 1] || other.orders[l] != orders[k]
+					|| other.aromaticBonds[l] != aromaticBonds[k])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds to <code>marked</code> every atom within <code>radius</code>
+	 * bonds of one of the <code>seeds</code> in this structure.
+	 */
+	void markWithin(boolean[] seeds, int radius, boolean[] marked) {
+		int[] queue = new int[atomCount];
+		int[] depth = new int[atomCount];
+		boolean[] seen = new boolean[atomCount];
+		int head = 0, tail = 0;
+		for (int f = 0; f < atomCount; f++) {
+			if (seeds[f]) {
+				seen[f] = true;
+				queue[tail++] = f;
+			}
+		}
+		while (head < tail) {
+			int atom = queue[head++];
+			marked[atom] = true;
+			if (depth[atom] == radius)
+				continue;
+			for (int k = start[atom]; k < start[atom + 1]; k++) {
+				int next = neighbours[k];
+				if (!seen[next]) {
+					seen[next] = true;
+					depth[next] = depth[atom] + 1;
+					queue[tail++] = next;
+				}
+			}
+		}
+	}
+}
@@ -23,11 +23,11 @@ package net.bioclipse.seneca.judge;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.jface.viewers.ISelection;
-import org.openscience.cdk.graph.invariant.MorganNumbersTools;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.tools.SwissArmyKnife;
 import org.xmlcml.cml.base.CMLElement;
@@ -38,10 +38,13 @@ import org.xmlcml.cml.base.CMLElement;
  * no) scores for unwanted bond orders
  */
 
-public class SymmetryJudge extends AbstractJudge implements Serializable, Cloneable {
+public class SymmetryJudge extends AbstractJudge implements Serializable, Cloneable,
+		ISnapshotJudge, IConcurrentJudge {
 
 	protected ArrayList symmetryClassesArrayList;
 	protected SymmetryClass[] symmetryClasses;
+	/** the atoms of each symmetry class, set by init together with symmetryClasses */
+	private int[][] members;
 
 	public SymmetryJudge() {
 		super("SymmetryJudge");
@@ -105,6 +108,17 @@ public class SymmetryJudge extends AbstractJudge implements Serializable, Clonea
 			symmetryClasses[f] = (SymmetryClass) symmetryClassesArrayList
 					.get(f);
 		}
+		int[][] newMembers = new int[symmetryClasses.length][];
+		for (int f = 0; f < symmetryClasses.length; f++) {
+			boolean[] symmetricAtoms = symmetryClasses[f].symmetricAtoms;
+			newMembers[f] = new int[symmetryClasses[f].symmetricAtomsCount];
+			int k = 0;
+			for (int g = 0; g < symmetricAtoms.length; g++) {
+				if (symmetricAtoms[g])
+					newMembers[f][k++] = g;
+			}
+		}
+		members = newMembers;
 	}
 
 	public void calcMaxScore() {
@@ -117,37 +131,38 @@ public class SymmetryJudge extends AbstractJudge implements Serializable, Clonea
 	}
 
 	public JudgeResult evaluate(IAtomContainer ac) throws Exception {
+		return evaluate(ac, new StructureSnapshot(ac));
+	}
+
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot)
+			throws Exception {
 		int scoreSum = 0;
-		long[] mm;
-		try {
-			mm = MorganNumbersTools.getMorganNumbers(ac);
-		} catch (Exception exc) {
-			String s = "An Exception occured while trying to calculate Morgan Numbers ";
-			s += "for the current structure. This should never happen of course :-)";
-
-			throw new Exception(s);
-		}
+		long[] mm = morganNumbers(snapshot);
 
 		/*
-		 * we cycle through all the symmetry classes. Within each class, we
-		 * check if each possible pair of atoms in the class has the same Morgan
-		 * number.
+		 * Within each symmetry class, every pair of atoms with the same Morgan
+		 * number scores. The Morgan numbers of the class are sorted, so atoms
+		 * with equal numbers are next to each other and a run of n atoms
+		 * gives n(n-1)/2 pairs.
 		 */
 
 		double score = 500;
-		for (int f = 0; f < symmetryClasses.length; f++) {
-			int hitCount = 0;
-			for (int g = 0; g < symmetryClasses[f].symmetricAtoms.length; g++) {
-				if (g < symmetryClasses[f].symmetricAtoms.length - 1
-						&& symmetryClasses[f].symmetricAtoms[g]) {
-					for (int h = g + 1; h < symmetryClasses[f].symmetricAtoms.length; h++) {
-						if (symmetryClasses[f].symmetricAtoms[h]) {
-							if (mm[g] == mm[h]) {
-								scoreSum += score;
-								hitCount++;
-							}
-						}
-					}
+		int[][] classes = members;
+		long[] numbers = null;
+		for (int f = 0; f < classes.length; f++) {
+			int[] atoms = classes[f];
+			if (numbers == null || numbers.length < atoms.length)
+				numbers = new long[atoms.length];
+			for (int g = 0; g < atoms.length; g++)
+				numbers[g] = mm[atoms[g]];
+			Arrays.sort(numbers, 0, atoms.length);
+			int run = 1;
+			for (int g = 1; g <= atoms.length; g++) {
+				if (g < atoms.length && numbers[g] == numbers[g - 1]) {
+					run++;
+				} else {
+					scoreSum += score * (run * (run - 1) / 2);
+					run = 1;
 				}
 			}
 		}
@@ -156,10 +171,46 @@ public class SymmetryJudge extends AbstractJudge implements Serializable, Clonea
 		return new JudgeResult(maxScore, scoreSum, 0, message);
 	}
 
+	/**
+	 * The Morgan numbers as MorganNumbersTools.getMorganNumbers calculates
+	 * them: the number of bonds of each atom, replaced atomCount times by the
+	 * sum over its neighbours. The neighbours are read from the snapshot
+	 * instead of searching each one's position in the container.
+	 *
+	 * @param snapshot The structure.
+	 * @return The Morgan number of each atom.
+	 */
+	static long[] morganNumbers(StructureSnapshot snapshot) {
+		int atomCount = snapshot.getAtomCount();
+		long[] current = new long[atomCount];
+		long[] next = new long[atomCount];
+		for (int f = 0; f < atomCount; f++)
+			current[f] = snapshot.getDegree(f);
+		for (int e = 0; e < atomCount; e++) {
+			for (int f = 0; f < atomCount; f++) {
+				long sum = 0;
+				for (int k = 0; k < snapshot.getDegree(f); k++)
+					sum += current[snapshot.getNeighbour(f, k)];
+				next[f] = sum;
+			}
+			long[] swap = current;
+			current = next;
+			next = swap;
+		}
+		return current;
+	}
+
 	public boolean[][][] getAssignment() {
 		return null;
 	}
 
+	/**
+	 * evaluate only reads the symmetry classes, so the judge is shared.
+	 */
+	public IJudge getWorkerJudge() {
+		return this;
+	}
+
 	class SymmetryClass implements java.io.Serializable {
 		boolean[] symmetricAtoms;
 		int symmetricAtomsCount = 0;
@@ -204,4 +255,11 @@ public class SymmetryJudge extends AbstractJudge implements Serializable, Clonea
 	public void labelStartStructure(IAtomContainer startStructure) {
 	}
 
+	/**
+	 * The symmetry classes are sets of atom indices.
+	 */
+	public boolean isAtomOrderDependent() {
+		return true;
+	}
+
 }
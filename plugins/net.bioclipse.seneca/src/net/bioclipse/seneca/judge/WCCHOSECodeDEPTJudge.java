@@ -22,16 +22,15 @@
 package net.bioclipse.seneca.judge;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
+import net.bioclipse.seneca.util.WCCKernel;
 import nu.xom.Nodes;
 import nu.xom.XPathContext;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.jface.viewers.ISelection;
-import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.tools.BremserOneSphereHOSECodePredictor;
 import org.openscience.cdk.tools.HOSECodeGenerator;
@@ -50,7 +49,8 @@ import org.xmlcml.cml.element.CMLSpectrum;
  * carbon atom environment is in the correct range with respect to hybridization
  * state and hetero attachments
  */
-public class WCCHOSECodeDEPTJudge extends AbstractJudge implements IJudge {
+public class WCCHOSECodeDEPTJudge extends AbstractJudge implements ISnapshotJudge,
+		IConcurrentJudge {
 
 	public double score = 1000; // Score for optimum fit of exp. with calc.
 								// shift
@@ -60,6 +60,14 @@ public class WCCHOSECodeDEPTJudge extends AbstractJudge implements IJudge {
 	protected double[] singleHydrogenCarbonShifts;
 	protected double[] twoHydrogenCarbonShifts;
 	protected double[] threeHydrogenCarbonShifts;
+	/** The four experimental spectra prepared for the WCC, indexed by hydrogen count */
+	protected transient WCCKernel[] kernels;
+	/**
+	 * The predicted shifts of the carbons of a structure, indexed by hydrogen
+	 * count, reused by evaluate; bucketSizes tells how many are filled.
+	 */
+	private transient double[][] buckets = null;
+	private transient int[] bucketSizes = null;
 
 	public WCCHOSECodeDEPTJudge() {
 		super("HOSECodeDEPTJudge (using the WCC)");
@@ -101,67 +109,56 @@ public class WCCHOSECodeDEPTJudge extends AbstractJudge implements IJudge {
 	 * @return A JudgeResult containing the score for this structure
 	 */
 	public JudgeResult evaluate(IAtomContainer ac) throws Exception {
-		scoreSum = 0;
-		debug = false;
+		return evaluate(ac, new StructureSnapshot(ac));
+	}
+
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot)
+			throws Exception {
+		// one pass puts the prediction of each carbon into the bucket of its
+		// hydrogen count, carbons with more than three hydrogens are ignored
+		int atomCount = snapshot.getAtomCount();
+		if (buckets == null || buckets[0].length < atomCount) {
+			buckets = new double[4][Math.max(atomCount, 16)];
+			bucketSizes = new int[4];
+		}
+		for (int hCount = 0; hCount <= 3; hCount++)
+			bucketSizes[hCount] = 0;
 		String hoseCode = null;
-		int carbonCount = 0;
-		for (int f = 0; f < ac.getAtomCount(); f++) {
-			if (ac.getAtom(f).getSymbol().equals("C"))
-				carbonCount++;
+		for (int f = 0; f < atomCount; f++) {
+			if (snapshot.getElement(f) != StructureSnapshot.CARBON)
+				continue;
+			int hCount = snapshot.getHydrogenCount(f);
+			if (hCount > 3)
+				continue;
+			try {
+				hoseCode = hcg.makeBremserCompliant(
+						hcg.getHOSECode(ac, ac.getAtom(f), 1));
+				buckets[hCount][bucketSizes[hCount]++] = predictor.predict(hoseCode);
+			} catch (Exception exc) {
+				exc.printStackTrace();
+				throw exc;
+			}
 		}
+		double scoreSum = 0;
 		for (int hCount = 0; hCount <= 3; hCount++) {
-			List<Double> shiftList = new ArrayList<Double>();
-			carbonCount = 0;
-			for (int f = 0; f < ac.getAtomCount(); f++) {
-				if (ac.getAtom(f).getSymbol().equals("C")) {
-					if (getHydrogenCount(ac, ac.getAtom(f)) == hCount) {
-						try {
-							hoseCode = hcg.makeBremserCompliant(
-									hcg.getHOSECode(ac, ac.getAtom(f), 1));
-							shiftList.add(predictor.predict(hoseCode));
-							carbonCount++;
-						} catch (Exception exc) {
-							exc.printStackTrace();
-							throw exc;
-						}
-					}
-				}
-			}
-			double[] shifts = new double[shiftList.size()];
-			for (int i = 0; i < shifts.length; i++) {
-				shifts[i] = shiftList.get(i);
-			}
-			if (hCount == 0) {
-				scoreSum += (int) (shiftwcc(this.zeroHydrogenCarbonShifts,
-						shifts, 20.0)
-						* maxScore * 0.25);
-			} else if (hCount == 1) {
-				scoreSum += (int) (shiftwcc(this.singleHydrogenCarbonShifts,
-						shifts, 20.0)
-						* maxScore * 0.25);
-			} else if (hCount == 2) {
-				scoreSum += (int) (shiftwcc(this.twoHydrogenCarbonShifts,
-						shifts, 20.0)
-						* maxScore * 0.25);
-			} else if (hCount == 3) {
-				scoreSum += (int) (shiftwcc(this.threeHydrogenCarbonShifts,
-						shifts, 20.0)
-						* maxScore * 0.25);
-			}
+			scoreSum += (int) (kernels[hCount].similarity(buckets[hCount],
+					bucketSizes[hCount]) * maxScore * 0.25);
 		}
 		String message = "Score: " + scoreSum + "/" + maxScore;
 		return new JudgeResult(maxScore, scoreSum, 0, message);
 	}
 
-	private int getHydrogenCount(IAtomContainer ac, IAtom atom) {
-		int hCount = atom.getImplicitHydrogenCount();
-		Iterator<IAtom> atoms = ac.getConnectedAtomsList(atom).iterator();
-		while (atoms.hasNext()) {
-			if (atoms.next().getSymbol().equals("H")) {
-				hCount++;
-			}
-		}
-		return hCount;
+	/**
+	 * A copy sharing the spectra and the predictor, with a HOSECodeGenerator
+	 * and buckets of its own.
+	 */
+	public IJudge getWorkerJudge() {
+		WCCHOSECodeDEPTJudge judge = (WCCHOSECodeDEPTJudge) copy();
+		if (hcg != null)
+			judge.hcg = new HOSECodeGenerator();
+		judge.buckets = null;
+		judge.bucketSizes = null;
+		return judge;
 	}
 
 	public boolean[][][] getAssignment() {
@@ -171,22 +168,8 @@ public class WCCHOSECodeDEPTJudge extends AbstractJudge implements IJudge {
 	public double shiftwcc(double[] positions1, double[] positions2,
 			double width) {
 
-		if (positions1.length == 0 || positions2.length == 0) {
-			return 0.0;
-		}
-
 		// one carbon per peak
-		double[] intensities1 = new double[positions1.length];
-		for (int i = 0; i < intensities1.length; i++)
-			intensities1[i] = 1.0;
-		double[] intensities2 = new double[positions2.length];
-		for (int i = 0; i < intensities2.length; i++)
-			intensities2[i] = 1.0;
-
-		return net.bioclipse.spectrum.Activator.getDefault()
-		    .getJavaSpectrumManager().calculateSimilarityWCC(
-		        positions1, intensities1, positions2, intensities2,
-				width);
+		return WCCKernel.similarity(positions1, positions2, width);
 	}
 
 	public void configure(CMLElement input) throws MissingInformationException {
@@ -266,6 +249,11 @@ public class WCCHOSECodeDEPTJudge extends AbstractJudge implements IJudge {
 		for (int i = 0; i < threeHydrogenCarbonShifts.length; i++) {
 			threeHydrogenCarbonShifts[i] = shiftList3.get(i);
 		}
+		kernels = new WCCKernel[] {
+				new WCCKernel(zeroHydrogenCarbonShifts, Abstract13CJudge.WCC_WIDTH),
+				new WCCKernel(singleHydrogenCarbonShifts, Abstract13CJudge.WCC_WIDTH),
+				new WCCKernel(twoHydrogenCarbonShifts, Abstract13CJudge.WCC_WIDTH),
+				new WCCKernel(threeHydrogenCarbonShifts, Abstract13CJudge.WCC_WIDTH) };
 
 		System.out.println("SHIFTS 0: " + shiftList0);
 		System.out.println("SHIFTS 1: " + shiftList1);
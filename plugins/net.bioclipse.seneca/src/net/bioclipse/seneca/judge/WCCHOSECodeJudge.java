@@ -29,6 +29,7 @@ import java.util.List;
 
 import net.bioclipse.chemoinformatics.wizards.WizardHelper;
 import net.bioclipse.core.util.LogUtils;
+import net.bioclipse.seneca.util.WCCKernel;
 import net.bioclipse.spectrum.domain.IJumboSpectrum;
 import net.bioclipse.spectrum.domain.JumboSpectrum;
 import net.bioclipse.spectrum.editor.MetadataUtils;
@@ -78,13 +79,13 @@ import spok.utils.SpectrumUtils;
  * carbon atom environment is in the correct range with respect to hybridization
  * state and hetero attachments
  */
-public class WCCHOSECodeJudge extends Abstract13CJudge implements IJudge {
+public class WCCHOSECodeJudge extends Abstract13CJudge implements ISnapshotJudge,
+		IConcurrentJudge {
 
   private static Logger logger = Logger.getLogger(WCCNMRShiftDBJudge.class);
 
 	protected transient HOSECodeGenerator hcg;
 	protected transient BremserOneSphereHOSECodePredictor predictor;
-	protected double[] carbonShifts;
 
 	public WCCHOSECodeJudge() {
 		super("Simple HOSE Code Scoring (using the WCC)");
@@ -110,18 +111,16 @@ public class WCCHOSECodeJudge extends Abstract13CJudge implements IJudge {
 	 * @return A JudgeResult containing the score for this structure
 	 */
 	public JudgeResult evaluate(IAtomContainer ac) throws Exception {
-		scoreSum = 0;
-		debug = false;
+		return evaluate(ac, new StructureSnapshot(ac));
+	}
+
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot)
+			throws Exception {
 		String hoseCode = null;
 		int carbonCount = 0;
-		for (int f = 0; f < ac.getAtomCount(); f++) {
-			if (ac.getAtom(f).getSymbol().equals("C"))
-				carbonCount++;
-		}
     List<Double> shifts = new ArrayList<Double>();
-    carbonCount = 0;
-    for (int f = 0; f < ac.getAtomCount(); f++) {
-      if (ac.getAtom(f).getSymbol().equals("C")) {
+    for (int f = 0; f < snapshot.getAtomCount(); f++) {
+      if (snapshot.getElement(f) == StructureSnapshot.CARBON) {
         try {
             hoseCode = hcg.makeBremserCompliant(hcg.getHOSECode(ac, ac
                                                 .getAtom(f), 1));
@@ -138,25 +137,25 @@ public class WCCHOSECodeJudge extends Abstract13CJudge implements IJudge {
     double[] shiftsarray = new double[shifts.size()];
     for(int i=0;i<shifts.size();i++)
         shiftsarray[i]=shifts.get( i );
-		scoreSum = shiftwcc(this.carbonShifts, shiftsarray, 20.0);
+		double scoreSum = carbonKernel.similarity(shiftsarray);
 		String message = "Score: " + scoreSum + "/" + maxScore;
 		return new JudgeResult(maxScore, scoreSum, 0, message);
 	}
 
+	/**
+	 * A copy with its own HOSECodeGenerator; the predictor only reads its
+	 * table and is shared.
+	 */
+	public IJudge getWorkerJudge() {
+		WCCHOSECodeJudge judge = (WCCHOSECodeJudge) copy();
+		judge.hcg = new HOSECodeGenerator();
+		return judge;
+	}
+
 	public double shiftwcc(double[] positions1, double[] positions2,
 			double width) {
 		// one carbon per peak
-		double[] intensities1 = new double[positions1.length];
-		for (int i = 0; i < intensities1.length; i++)
-			intensities1[i] = 1.0;
-		double[] intensities2 = new double[positions2.length];
-		for (int i = 0; i < intensities2.length; i++)
-			intensities2[i] = 1.0;
-
-		return net.bioclipse.spectrum.Activator.getDefault()
-		    .getJavaSpectrumManager().calculateSimilarityWCC(
-		        positions1, intensities1, positions2, intensities2,
-				width);
+		return WCCKernel.similarity(positions1, positions2, width);
 	}
 
     public String getDescription() {
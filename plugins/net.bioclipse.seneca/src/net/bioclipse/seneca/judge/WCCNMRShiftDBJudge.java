@@ -51,14 +51,22 @@ import spok.utils.SpectrumUtils;
  * Calculates a score via a prediction based on NMRShiftDB data. This should 
  * normally work well with a standard 13C spectrum.
  */
-public class WCCNMRShiftDBJudge extends Abstract13CJudge implements IJudge {
+public class WCCNMRShiftDBJudge extends Abstract13CJudge implements ISnapshotJudge,
+		IConcurrentJudge {
 
 
 	private static final long serialVersionUID = 4703522691110253797L;
 
+	/** The number of spheres used by the PredictionTool */
+	private static final int HOSE_SPHERES = 6;
+
 	protected PredictionTool predictor = null;
 	private List<String> elementSymbols;
 
+	private boolean incremental = true;
+	private StructureSnapshot lastSnapshot = null;
+	private double[] lastPredictions = null;
+
 	public WCCNMRShiftDBJudge() throws IOException {
 		super("NMRShiftDB Scoring (using the WCC)");
 		hasMaxScore = true;
@@ -73,6 +81,36 @@ public class WCCNMRShiftDBJudge extends Abstract13CJudge implements IJudge {
 		maxScore = 1;
 	}
 
+	/**
+	 * Switches incremental evaluation on or off. If on (the default), only
+	 * carbons within the HOSE code spheres of an atom which changed since the
+	 * last evaluated structure are predicted again, all others reuse the
+	 * previous prediction. The score is the same in both modes.
+	 *
+	 * @param incremental true to reuse predictions between calls to evaluate.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		lastSnapshot = null;
+		lastPredictions = null;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * The previous structure and its predictions are per thread, so each
+	 * thread gets a copy starting without them. The PredictionTool is
+	 * thread safe and shared.
+	 */
+	public IJudge getWorkerJudge() {
+		WCCNMRShiftDBJudge judge = (WCCNMRShiftDBJudge) copy();
+		judge.lastSnapshot = null;
+		judge.lastPredictions = null;
+		return judge;
+	}
+
 	/**
 	 * The methods evaluates a given structure by recalculating the carbon shift
 	 * for each carbon atom using a one-sphere HOSE Code method and calculating
@@ -86,6 +124,11 @@ public class WCCNMRShiftDBJudge extends Abstract13CJudge implements IJudge {
 	 * @return A JudgeResult containing the score for this structure
 	 */
 	public JudgeResult evaluate(IAtomContainer ac) throws Exception {
+		return evaluate(ac, new StructureSnapshot(ac));
+	}
+
+	public JudgeResult evaluate(IAtomContainer ac, StructureSnapshot snapshot)
+			throws Exception {
 
 		if (this.carbonShifts == null) {
 			String message = "No shifts were set for the target spectrum!";
@@ -94,37 +137,48 @@ public class WCCNMRShiftDBJudge extends Abstract13CJudge implements IJudge {
 			throw new NullPointerException(message);
 		}
 
-		scoreSum = 0;
-		debug = false;
-		int carbonCount = 0;
-		for (int f = 0; f < ac.getAtomCount(); f++) {
-			if (ac.getAtom(f).getSymbol().equals("C"))
-				carbonCount++;
+		int atomCount = ac.getAtomCount();
+		boolean[] affected = null;
+		if (incremental && lastSnapshot != null
+				&& lastSnapshot.getAtomCount() == atomCount) {
+			// a carbon's HOSE code can only change if one of the changed atoms
+			// lies within its spheres, either before or after the move
+			boolean[] changed = snapshot.changedAtoms(lastSnapshot);
+			affected = new boolean[atomCount];
+			lastSnapshot.markWithin(changed, HOSE_SPHERES, affected);
+			snapshot.markWithin(changed, HOSE_SPHERES, affected);
 		}
+		double[] predictions = new double[atomCount];
 		List<Double> shifts = new ArrayList<Double>();
-		carbonCount = 0;
-		for (int f = 0; f < ac.getAtomCount(); f++) {
-			if (ac.getAtom(f).getSymbol().equals("C")) {
+		for (int f = 0; f < atomCount; f++) {
+			if (snapshot.getElement(f) == StructureSnapshot.CARBON) {
 				try {
-				    double predictedShift = predictor.predict(ac, ac.getAtom(f))[1];
+				    double predictedShift;
+				    if (affected != null && !affected[f])
+				        predictedShift = lastPredictions[f];
+				    else
+				        predictedShift = predictor.predict(ac, ac.getAtom(f))[1];
+				    predictions[f] = predictedShift;
 				    if(!shifts.contains( predictedShift))
 				        shifts.add( predictedShift );
-					carbonCount++;
 				} catch (Exception exc) {
+					lastSnapshot = null;
+					lastPredictions = null;
 					exc.printStackTrace();
 					throw exc;
 				}
 			}
 		}
+		lastSnapshot = incremental ? snapshot : null;
+		lastPredictions = incremental ? predictions : null;
 		double[] shiftsarray = new double[shifts.size()];
 		for(int i=0;i<shifts.size();i++)
 		    shiftsarray[i]=shifts.get( i );
+		double scoreSum;
 		if(shifts.contains(new Double(-1)) && shifts.size()==1)
 			scoreSum=0;
 		else
-			scoreSum=net.bioclipse.spectrum.Activator.getDefault()
-		    .getJavaSpectrumManager().calculateSimilarityWCC(
-		        this.carbonShifts, shiftsarray, 20.0);
+			scoreSum=carbonKernel.similarity(shiftsarray);
 		String message = "Score: " + scoreSum + "/" + maxScore;
 		return new JudgeResult(maxScore, scoreSum, 0, message);
 	}
@@ -24,7 +24,10 @@
  */
 package net.bioclipse.seneca.structgen;
 
+import java.util.Random;
+
 import net.bioclipse.seneca.judge.ChiefJustice;
+import net.bioclipse.seneca.util.IncrementalAromaticity;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
@@ -161,6 +164,11 @@ public class ConvergenceAnnealingEngine implements IAnnealingEngine {
 
 	long reportsteps = 1000;
 
+	/**
+	 * The random numbers for accepting moves
+	 */
+	Random random = new Random();
+
 	boolean debug = false;
 	boolean report = true;
 
@@ -186,6 +194,16 @@ public class ConvergenceAnnealingEngine implements IAnnealingEngine {
 		this.initialAcceptanceProbability = initialAcceptanceProbability;
 	}
 
+	/**
+	 * Sets the random numbers for accepting moves.
+	 *
+	 *@param random
+	 *            The random numbers
+	 */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
 	/**
 	 * Sets the RandomGent attribute of the ConvergenceAnnealingEngine object
 	 *
@@ -409,7 +427,7 @@ public class ConvergenceAnnealingEngine implements IAnnealingEngine {
 		double deltaE = lastScore - recentScore;
 		// logger.debug("LastScore, RecentScore: " + lastScore + ", " +
 		// recentScore);
-		double rnd = Math.random();
+		double rnd = random.nextDouble();
 		double exp = ((double) deltaE / (double) current_kT);
 		if (deltaE <= 0) {
 			// logger.debug("Accepted better or equal result: deltaE = " +
@@ -478,6 +496,12 @@ public class ConvergenceAnnealingEngine implements IAnnealingEngine {
 		// initCycles);
 		int counter = 0;
 		monitor.subTask("Generator staring structures...");
+		try {
+			// the proposals below only perceive aromaticity around their moves
+			CDKHueckelAromaticityDetector.detectAromaticity(randomGent.getMolecule());
+		} catch (Exception exc) {
+			exc.printStackTrace();
+		}
 		for (int f = 0; f < initCycles; f++) {
 			if (monitor.isCanceled())
 				return;
@@ -493,7 +517,7 @@ public class ConvergenceAnnealingEngine implements IAnnealingEngine {
 			}
 			// logger.debug("  detecting aromaticity...");
 			try {
-				CDKHueckelAromaticityDetector.detectAromaticity(mol);
+				IncrementalAromaticity.detectAromaticity(mol, randomGent.getMovedAtoms());
 				// logger.debug("  scoring molecule...");
 				recentScore = chiefJustice.getScore(mol).score;
 				// logger.debug("  score: " + recentScore);
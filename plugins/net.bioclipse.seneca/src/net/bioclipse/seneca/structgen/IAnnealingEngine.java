@@ -47,6 +47,8 @@
  */
 package net.bioclipse.seneca.structgen;
 
+import java.util.Random;
+
 import net.bioclipse.seneca.judge.ChiefJustice;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -117,4 +119,9 @@ public interface IAnnealingEngine {
 
 	public double getInitializationCycles();
 
+	/**
+	 * Sets the random numbers for accepting moves.
+	 **/
+	public void setRandom(Random random);
+
 }
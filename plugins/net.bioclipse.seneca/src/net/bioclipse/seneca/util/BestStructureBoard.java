@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.bioclipse.seneca.judge.ScoreCache;
+
+import org.openscience.cdk.interfaces.IMolecule;
+
+/**
+ * The best structures found by several annealing chains running at once,
+ * each structure only once. The board is an immutable array, best first,
+ * which offer replaces by compare and set, so chains never wait for each
+ * other and readers always see a consistent board. Structures are told
+ * apart by ScoreCache.keyOf with canonical atom order.
+ */
+public class BestStructureBoard {
+
+	/**
+	 * A structure on the board.
+	 */
+	public static class Entry {
+		public final String key;
+		public final IMolecule molecule;
+		public final double score;
+
+		Entry(String key, IMolecule molecule, double score) {
+			this.key = key;
+			this.molecule = molecule;
+			this.score = score;
+		}
+	}
+
+	private final int size;
+
+	private final AtomicReference<Entry[]> entries = new AtomicReference<Entry[]>(
+			new Entry[0]);
+
+	/**
+	 * Creates an empty board.
+	 *
+	 * @param size The number of structures to keep.
+	 */
+	public BestStructureBoard(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Size must be positive: " + size);
+		this.size = size;
+	}
+
+	/**
+	 * Puts a structure on the board if it is among the best ones. If the
+	 * structure is on the board already, only a better score replaces it.
+	 * The molecule must not be changed afterwards.
+	 *
+	 * @param molecule The structure.
+	 * @param score    Its score, higher is better.
+	 * @return         The position of the structure on the board, 0 for the
+	 *                 best, or -1 if the board did not change.
+	 */
+	public int offer(IMolecule molecule, double score) {
+		Entry[] current = entries.get();
+		// most offers are rejected here, without building a key
+		if (current.length == size && score <= current[size - 1].score)
+			return -1;
+		Entry entry = new Entry(ScoreCache.keyOf(molecule, true), molecule,
+				score);
+		while (true) {
+			current = entries.get();
+			Entry[] next = insert(current, entry);
+			if (next == null)
+				return -1;
+			if (entries.compareAndSet(current, next)) {
+				for (int k = 0;; k++) {
+					if (next[k] == entry)
+						return k;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return A new board with the entry, or null if it does not change.
+	 */
+	private Entry[] insert(Entry[] current, Entry entry) {
+		int same = -1;
+		for (int k = 0; k < current.length; k++) {
+			if (current[k].key.equals(entry.key)) {
+				if (current[k].score >= entry.score)
+					return null;
+				same = k;
+				break;
+			}
+		}
+		if (same < 0 && current.length == size
+				&& entry.score <= current[size - 1].score)
+			return null;
+		int length = Math.min(size, same < 0 ? current.length + 1
+				: current.length);
+		Entry[] next = new Entry[length];
+		int n = 0;
+		boolean inserted = false;
+		for (int k = 0; k < current.length && n < length; k++) {
+			if (k == same)
+				continue;
+			if (!inserted && entry.score > current[k].score) {
+				next[n++] = entry;
+				inserted = true;
+				if (n == length)
+					break;
+			}
+			next[n++] = current[k];
+		}
+		if (!inserted)
+			next[n] = entry;
+		return next;
+	}
+
+	/**
+	 * @return The best score on the board, negative infinity if it is empty.
+	 */
+	public double getBestScore() {
+		Entry[] current = entries.get();
+		return current.length == 0 ? Double.NEGATIVE_INFINITY : current[0].score;
+	}
+
+	/**
+	 * @return The best structure on the board, null if it is empty.
+	 */
+	public IMolecule getBest() {
+		Entry[] current = entries.get();
+		return current.length == 0 ? null : current[0].molecule;
+	}
+
+	/**
+	 * @return The structures on the board, best first.
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(Arrays.asList(entries.get()));
+	}
+
+	public int size() {
+		return entries.get().length;
+	}
+}
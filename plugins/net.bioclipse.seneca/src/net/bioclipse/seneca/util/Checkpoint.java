@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import net.bioclipse.seneca.domain.SenecaJobSpecification;
+import net.bioclipse.seneca.judge.IJudge;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.runtime.IPath;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IMolecule;
+import org.openscience.cdk.tools.manipulator.BondManipulator;
+
+/**
+ * The checkpoint files from which an interrupted structure generation run
+ * is resumed. A file holds a header with the kind of run, the state written
+ * by the job, and a CRC32 of both, so a file cut short by a crash is not
+ * taken for a checkpoint. It is written to a temporary file, synced and
+ * renamed to the checkpoint, so the previous checkpoint stays whole until
+ * the new one is complete.
+ *
+ * <p>Structures are stored as the symbols and hydrogen counts of their
+ * atoms and their bonds, a few hundred bytes each, and read back onto
+ * clones of the atoms of the start structure of the run, so properties the
+ * judges set on its atoms are kept.
+ */
+public class Checkpoint {
+
+	/** The kinds of run */
+	public static final int STOCHASTIC = 1;
+	public static final int GENETIC = 2;
+
+	private static final int MAGIC = 0x534e4350;
+	private static final int VERSION = 1;
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Replaces a checkpoint file.
+	 *
+	 * @param file    The file.
+	 * @param kind    The kind of run.
+	 * @param content The state of the run.
+	 * @throws IOException
+	 */
+	public static void write(File file, int kind, byte[] content)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				content.length + 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(kind);
+		out.writeInt(content.length);
+		out.write(content);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try {
+			bytes.writeTo(stream);
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		// renaming onto an existing file fails on some platforms
+		if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+			throw new IOException("Could not rename " + temporary + " to " + file);
+	}
+
+	/**
+	 * Reads a checkpoint file.
+	 *
+	 * @param file The file.
+	 * @param kind The kind of run it must be of.
+	 * @return The state of the run.
+	 * @throws IOException if the file cannot be read or is no complete
+	 *                     checkpoint of this kind.
+	 */
+	public static DataInputStream read(File file, int kind) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream stream = new DataInputStream(new FileInputStream(file));
+		try {
+			stream.readFully(bytes);
+		} finally {
+			stream.close();
+		}
+		if (bytes.length < 24)
+			throw new IOException(file + " is no checkpoint");
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC)
+			throw new IOException(file + " is no checkpoint");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException(file + " has the unknown version " + version);
+		int fileKind = in.readInt();
+		if (fileKind != kind)
+			throw new IOException(file + " is the checkpoint of another kind of run");
+		int length = in.readInt();
+		if (length != bytes.length - 24)
+			throw new IOException(file + " is incomplete");
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		in.skipBytes(length);
+		if (in.readLong() != crc.getValue())
+			throw new IOException(file + " is damaged");
+		return new DataInputStream(new ByteArrayInputStream(bytes, 16, length));
+	}
+
+	/**
+	 * Describes the settings which decide the course of a run: the formula,
+	 * the seed, the aromaticity detection and the judges with their weights
+	 * and data files, the files by their size and modification time. A job
+	 * writes it into its checkpoints and only resumes from one with the
+	 * same description, so a job changed after a cancel starts a new run.
+	 *
+	 * @param specification The specification of the job, or null.
+	 * @param judges        The judges of the job.
+	 * @return The description.
+	 */
+	public static String fingerprint(SenecaJobSpecification specification,
+			List<IJudge> judges) {
+		StringBuilder text = new StringBuilder();
+		Map<String, IPath> data = null;
+		IPath directory = null;
+		if (specification != null) {
+			text.append(specification.getMolecularFormula());
+			text.append(" seed=").append(specification.getSeed());
+			text.append(" aromaticity=").append(
+					specification.getDetectAromaticity());
+			data = specification.getJudgesData();
+			IContainer container = specification.getJobDirectory();
+			directory = container == null ? null : container.getLocation();
+		}
+		for (IJudge judge : judges) {
+			String id = judge.getClass().getName();
+			text.append(' ').append(id).append(" weight=").append(
+					judge.getWeight());
+			IPath path = data == null ? null : data.get(id);
+			if (path != null) {
+				File file = directory == null ? path.toFile() : directory
+						.append(path).toFile();
+				text.append(" data=").append(path).append(' ').append(
+						file.length()).append('@').append(file.lastModified());
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes the atoms and bonds of a structure.
+	 *
+	 * @param out The output.
+	 * @param ac  The structure.
+	 * @throws IOException
+	 */
+	public static void writeMolecule(DataOutput out, IAtomContainer ac)
+			throws IOException {
+		out.writeShort(ac.getAtomCount());
+		for (int f = 0; f < ac.getAtomCount(); f++) {
+			IAtom atom = ac.getAtom(f);
+			Integer hydrogens = atom.getImplicitHydrogenCount();
+			out.writeUTF(atom.getSymbol());
+			out.writeByte(hydrogens == null ? -1 : hydrogens);
+		}
+		out.writeShort(ac.getBondCount());
+		for (int b = 0; b < ac.getBondCount(); b++) {
+			IBond bond = ac.getBond(b);
+			out.writeShort(ac.getAtomNumber(bond.getAtom(0)));
+			out.writeShort(ac.getAtomNumber(bond.getAtom(1)));
+			out.writeByte((int) BondManipulator.destroyBondOrder(bond.getOrder()));
+		}
+	}
+
+	/**
+	 * Reads a structure written by writeMolecule. Each atom is a clone of an
+	 * atom of the template with the same symbol and hydrogen count, the one
+	 * at the same position if it matches.
+	 *
+	 * @param in       The input.
+	 * @param template The atoms of the run.
+	 * @return The structure.
+	 * @throws IOException if the structure has other atoms than the template.
+	 */
+	public static IMolecule readMolecule(DataInput in, IAtomContainer template)
+			throws IOException {
+		IMolecule molecule = template.getBuilder().newInstance(IMolecule.class);
+		int atomCount = in.readShort();
+		if (atomCount != template.getAtomCount())
+			throw new IOException("The checkpoint has other atoms than the job");
+		boolean[] used = new boolean[atomCount];
+		for (int f = 0; f < atomCount; f++) {
+			String symbol = in.readUTF();
+			int hydrogens = in.readByte();
+			int match = -1;
+			if (!used[f] && matches(template.getAtom(f), symbol, hydrogens))
+				match = f;
+			for (int k = 0; match < 0 && k < atomCount; k++) {
+				if (!used[k] && matches(template.getAtom(k), symbol, hydrogens))
+					match = k;
+			}
+			if (match < 0)
+				throw new IOException("The checkpoint has other atoms than the job");
+			used[match] = true;
+			try {
+				molecule.addAtom((IAtom) template.getAtom(match).clone());
+			} catch (CloneNotSupportedException e) {
+				throw (IOException) new IOException(e.getMessage()).initCause(e);
+			}
+		}
+		int bondCount = in.readShort();
+		for (int b = 0; b < bondCount; b++) {
+			int i = in.readShort();
+			int j = in.readShort();
+			double order = in.readByte();
+			molecule.addBond(i, j, BondManipulator.createBondOrder(order));
+		}
+		return molecule;
+	}
+
+	private static boolean matches(IAtom atom, String symbol, int hydrogens) {
+		Integer count = atom.getImplicitHydrogenCount();
+		return symbol.equals(atom.getSymbol())
+				&& (count == null ? -1 : count.intValue()) == hydrogens;
+	}
+
+	/**
+	 * Writes the state of random numbers, if they are a RandomSource.
+	 *
+	 * @param out    The output.
+	 * @param random The random numbers.
+	 * @throws IOException
+	 */
+	public static void writeRandom(DataOutput out, Random random)
+			throws IOException {
+		out.writeBoolean(random instanceof RandomSource);
+		if (random instanceof RandomSource)
+			((RandomSource) random).writeState(out);
+	}
+
+	/**
+	 * Continues random numbers from a state written by writeRandom. Other
+	 * random numbers than a RandomSource have no state to continue, so they
+	 * must have been written as such too.
+	 *
+	 * @param in     The input.
+	 * @param random The random numbers.
+	 * @throws IOException if the state was written for a RandomSource and
+	 *             random is none, or the other way round
+	 */
+	public static void readRandom(DataInput in, Random random)
+			throws IOException {
+		boolean saved = in.readBoolean();
+		if (saved != random instanceof RandomSource)
+			throw new IOException(saved
+					? "The random numbers cannot continue from the saved state"
+					: "The saved random numbers have no state to continue from");
+		if (saved)
+			((RandomSource) random).readState(in);
+	}
+
+	/**
+	 * Tells when the next checkpoint is due: an interval after the last
+	 * one, or later if writing it took so long that checkpoints would take
+	 * more than 1% of the run time.
+	 */
+	public static class Schedule {
+		private final long interval;
+		private long due;
+
+		/**
+		 * @param interval The milliseconds between two checkpoints.
+		 */
+		public Schedule(long interval) {
+			this.interval = interval;
+			this.due = System.currentTimeMillis() + interval;
+		}
+
+		public boolean isDue() {
+			return System.currentTimeMillis() >= due;
+		}
+
+		/**
+		 * @param start The time writing the checkpoint started.
+		 */
+		public void written(long start) {
+			long now = System.currentTimeMillis();
+			due = now + Math.max(interval, 99 * (now - start));
+		}
+	}
+}
@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+
+import net.bioclipse.seneca.Activator;
+
+/**
+ * A read-only table of HOSE code shift statistics (min, average, max) in a
+ * compact binary file which is memory mapped, so opening it is fast and it
+ * takes hardly any heap. The file is compiled once from the nmrshiftdb.csv
+ * dump (lines of symbol|code|min|average|max) by compile or main.
+ * <p>
+ * The keys symbol|code are kept in a trie. A key is split into segments
+ * after the | and after each of the sphere separators ( ) and /, so every
+ * segment of a HOSE code is one sphere and a code truncated to fewer spheres
+ * is an ancestor in the trie. findSpheres looks up all truncations of a code
+ * in a single walk. Keys are exact, there are no collisions.
+ * <p>
+ * File layout, all numbers big endian:
+ * <pre>
+ * int magic, int version, long source stamp
+ * int entry count, int node count, int reserved, int root node offset
+ * float[entry count] min, float[entry count] average, float[entry count] max
+ * nodes
+ * </pre>
+ * A node is char segment length, segment bytes (UTF-8), int entry index or
+ * -1, int child count and one int per child with the offset of the child
+ * relative to the first node. Children are sorted by their segment bytes.
+ */
+public class HOSECodeDatabase {
+
+	private static final int MAGIC = 0x484f5345;
+	private static final int VERSION = 2;
+	private static final int HEADER_LENGTH = 32;
+	private static final String CSV_RESOURCE = "nmrshiftdb.csv";
+	private static final String BINARY_FILE = "nmrshiftdb.bin";
+
+	private static HOSECodeDatabase defaultDatabase = null;
+
+	private final ByteBuffer buffer;
+	private final long sourceStamp;
+	private final int entryCount;
+	private final int minOffset;
+	private final int averageOffset;
+	private final int maxOffset;
+	private final int nodesOffset;
+	private final int root;
+
+	/**
+	 * Maps a compiled file into memory.
+	 *
+	 * @param file The compiled file.
+	 * @throws IOException The file cannot be read or is not a compiled table.
+	 */
+	public HOSECodeDatabase(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+		if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != VERSION)
+			throw new IOException(file + " is not a compiled HOSE code table");
+		sourceStamp = buffer.getLong(8);
+		entryCount = buffer.getInt(16);
+		minOffset = HEADER_LENGTH;
+		averageOffset = minOffset + 4 * entryCount;
+		maxOffset = averageOffset + 4 * entryCount;
+		nodesOffset = maxOffset + 4 * entryCount;
+		root = nodesOffset + buffer.getInt(28);
+	}
+
+	/**
+	 * Gives the table compiled from the nmrshiftdb.csv on the class path of
+	 * loader. The compiled file is kept in the state location of the plugin
+	 * (or the temp directory outside of Eclipse) and compiled again only if
+	 * the checksum of the csv file changed. A modification time would not
+	 * do, bundle and jar URLs often report none.
+	 *
+	 * @param loader The class loader to find nmrshiftdb.csv with.
+	 * @return The table.
+	 * @throws IOException Problems reading the csv or compiled file.
+	 */
+	public static synchronized HOSECodeDatabase getDefault(ClassLoader loader)
+			throws IOException {
+		if (defaultDatabase != null)
+			return defaultDatabase;
+		URL csv = loader.getResource(CSV_RESOURCE);
+		if (csv == null)
+			throw new IOException(CSV_RESOURCE + " not found on the class path");
+		InputStream source = csv.openStream();
+		long stamp;
+		try {
+			stamp = checksum(source);
+		} finally {
+			source.close();
+		}
+		File file;
+		if (Activator.getDefault() != null)
+			file = Activator.getDefault().getStateLocation().append(BINARY_FILE).toFile();
+		else
+			file = new File(System.getProperty("java.io.tmpdir"), "seneca-" + BINARY_FILE);
+		if (file.exists()) {
+			try {
+				HOSECodeDatabase database = new HOSECodeDatabase(file);
+				if (database.sourceStamp == stamp) {
+					defaultDatabase = database;
+					return database;
+				}
+			} catch (IOException e) {
+				// a broken file is compiled again
+			}
+		}
+		InputStream in = csv.openStream();
+		try {
+			compile(in, stamp, file);
+		} finally {
+			in.close();
+		}
+		defaultDatabase = new HOSECodeDatabase(file);
+		return defaultDatabase;
+	}
+
+	/**
+	 * Looks up a HOSE code.
+	 *
+	 * @param symbol The element symbol of the atom.
+	 * @param code   The HOSE code.
+	 * @return The index of the entry, -1 if the code is not in the table.
+	 */
+	public int find(String symbol, String code) {
+		byte[] key = toBytes(symbol + "|" + code);
+		int node = root;
+		int start = 0;
+		while (start < key.length) {
+			int end = segmentEnd(key, start);
+			node = child(node, key, start, end);
+			if (node < 0)
+				return -1;
+			start = end;
+		}
+		return entry(node);
+	}
+
+	/**
+	 * Looks up all truncations of a HOSE code to fewer spheres in one walk
+	 * down the trie. Sphere k of the code is everything up to and including
+	 * the k-th sphere separator.
+	 *
+	 * @param symbol The element symbol of the atom.
+	 * @param code   The HOSE code, as built by the PredictionTool.
+	 * @return An array with the entry index of the code truncated to k
+	 *         spheres at position k, -1 where that code is not in the table.
+	 *         The array has one position more than the code has spheres.
+	 */
+	public int[] findSpheres(String symbol, String code) {
+		byte[] key = toBytes(symbol + "|" + code);
+		int segments = 0;
+		for (int start = 0; start < key.length; start = segmentEnd(key, start))
+			segments++;
+		int[] entries = new int[segments];
+		Arrays.fill(entries, -1);
+		int node = root;
+		int start = 0;
+		for (int k = 0; k < segments; k++) {
+			int end = segmentEnd(key, start);
+			node = child(node, key, start, end);
+			if (node < 0)
+				break;
+			// position 0 is the symbol alone
+			if (k > 0)
+				entries[k] = entry(node);
+			start = end;
+		}
+		return entries;
+	}
+
+	private static int segmentEnd(byte[] key, int start) {
+		int k = start;
+		while (k < key.length) {
+			byte b = key[k++];
+			if (b == '|' || b == '(' || b == ')' || b == '/')
+				break;
+		}
+		return k;
+	}
+
+	private int entry(int node) {
+		return buffer.getInt(node + 2 + buffer.getChar(node));
+	}
+
+	private int child(int node, byte[] key, int start, int end) {
+		int children = node + 2 + buffer.getChar(node) + 4;
+		int low = 0, high = buffer.getInt(children) - 1;
+		children += 4;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int child = nodesOffset + buffer.getInt(children + 4 * middle);
+			int comparison = compare(key, start, end, child + 2, buffer.getChar(child));
+			if (comparison == 0)
+				return child;
+			if (comparison > 0)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return -1;
+	}
+
+	public float getMin(int entry) {
+		return buffer.getFloat(minOffset + 4 * entry);
+	}
+
+	public float getAverage(int entry) {
+		return buffer.getFloat(averageOffset + 4 * entry);
+	}
+
+	public float getMax(int entry) {
+		return buffer.getFloat(maxOffset + 4 * entry);
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	private int compare(byte[] key, int start, int end, int position, int length) {
+		int n = Math.min(end - start, length);
+		for (int k = 0; k < n; k++) {
+			int a = key[start + k] & 0xff, b = buffer.get(position + k) & 0xff;
+			if (a != b)
+				return a - b;
+		}
+		return (end - start) - length;
+	}
+
+	private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+		int n = Math.min(aEnd - aStart, bEnd - bStart);
+		for (int k = 0; k < n; k++) {
+			int x = a[aStart + k] & 0xff, y = b[bStart + k] & 0xff;
+			if (x != y)
+				return x - y;
+		}
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+
+	private static byte[] toBytes(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static class Entry {
+		byte[] key;
+		float min, average, max;
+	}
+
+	private static class Node {
+		byte[] segment;
+		int entry = -1;
+		int offset;
+		List<Node> children = new ArrayList<Node>();
+
+		Node(byte[] segment) {
+			this.segment = segment;
+		}
+
+		int size() {
+			return 2 + segment.length + 4 + 4 + 4 * children.size();
+		}
+	}
+
+	/**
+	 * Compiles a HOSE code table in csv format into the binary format. The
+	 * file is written under a temporary name and renamed when complete. If a
+	 * code is listed twice, the last line wins.
+	 *
+	 * @param csv    The csv data, lines of symbol|code|min|average|max.
+	 * @param stamp  A stamp of the source, see checksum.
+	 * @param output The file to write.
+	 * @throws IOException Problems reading or writing.
+	 */
+	public static void compile(InputStream csv, long stamp, File output)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(csv, "UTF-8"));
+		List<Entry> entries = new ArrayList<Entry>();
+		String input;
+		while ((input = reader.readLine()) != null) {
+			StringTokenizer st2 = new StringTokenizer(input, "|");
+			if (st2.countTokens() < 5)
+				continue;
+			Entry entry = new Entry();
+			String symbol = st2.nextToken();
+			entry.key = toBytes(symbol + "|" + st2.nextToken());
+			entry.min = Float.parseFloat(st2.nextToken());
+			entry.average = Float.parseFloat(st2.nextToken());
+			entry.max = Float.parseFloat(st2.nextToken());
+			entries.add(entry);
+		}
+		// a stable sort keeps duplicates in file order, so the last one is kept
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry o1, Entry o2) {
+				return HOSECodeDatabase.compare(o1.key, 0, o1.key.length, o2.key, 0, o2.key.length);
+			}
+		});
+		List<Entry> unique = new ArrayList<Entry>(entries.size());
+		for (int f = 0; f < entries.size(); f++) {
+			if (f + 1 < entries.size()
+					&& Arrays.equals(entries.get(f).key, entries.get(f + 1).key))
+				continue;
+			unique.add(entries.get(f));
+		}
+		entries = unique;
+
+		// the keys are sorted, so children are added in sorted order
+		Node rootNode = new Node(new byte[0]);
+		for (int f = 0; f < entries.size(); f++) {
+			byte[] key = entries.get(f).key;
+			Node node = rootNode;
+			int start = 0;
+			while (start < key.length) {
+				int end = segmentEnd(key, start);
+				Node last = node.children.isEmpty() ? null
+						: node.children.get(node.children.size() - 1);
+				if (last != null && compare(last.segment, 0, last.segment.length, key, start, end) == 0) {
+					node = last;
+				} else {
+					Node child = new Node(new byte[end - start]);
+					System.arraycopy(key, start, child.segment, 0, end - start);
+					node.children.add(child);
+					node = child;
+				}
+				start = end;
+			}
+			node.entry = f;
+		}
+		List<Node> nodes = new ArrayList<Node>();
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(rootNode);
+		int offset = 0;
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			node.offset = offset;
+			offset += node.size();
+			nodes.add(node);
+			for (int k = node.children.size() - 1; k >= 0; k--)
+				stack.add(node.children.get(k));
+		}
+
+		File temp = new File(output.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(stamp);
+			out.writeInt(entries.size());
+			out.writeInt(nodes.size());
+			out.writeInt(0);
+			out.writeInt(rootNode.offset);
+			for (Entry entry : entries)
+				out.writeFloat(entry.min);
+			for (Entry entry : entries)
+				out.writeFloat(entry.average);
+			for (Entry entry : entries)
+				out.writeFloat(entry.max);
+			for (Node node : nodes) {
+				out.writeChar(node.segment.length);
+				out.write(node.segment);
+				out.writeInt(node.entry);
+				out.writeInt(node.children.size());
+				for (Node child : node.children)
+					out.writeInt(child.offset);
+			}
+		} finally {
+			out.close();
+		}
+		if (output.exists() && !output.delete())
+			throw new IOException("Could not replace " + output);
+		if (!temp.renameTo(output))
+			throw new IOException("Could not rename " + temp + " to " + output);
+	}
+
+	/**
+	 * The stamp getDefault compares with the one of the compiled file: the
+	 * CRC-32 of the content in the low 32 bits, its length in the high ones.
+	 *
+	 * @param in The csv data, read to the end but not closed.
+	 * @return The stamp of the data.
+	 * @throws IOException Problems reading.
+	 */
+	public static long checksum(InputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		long length = 0;
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			crc.update(buffer, 0, read);
+			length += read;
+		}
+		return (length << 32) | crc.getValue();
+	}
+
+	/**
+	 * Compiles a csv file from the command line.
+	 *
+	 * @param args The csv file and the binary file to write.
+	 * @throws IOException Problems reading or writing.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: HOSECodeDatabase nmrshiftdb.csv nmrshiftdb.bin");
+			return;
+		}
+		File csv = new File(args[0]);
+		InputStream in = new FileInputStream(csv);
+		long stamp;
+		try {
+			stamp = checksum(in);
+		} finally {
+			in.close();
+		}
+		in = new FileInputStream(csv);
+		try {
+			compile(in, stamp, new File(args[1]));
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Updates the aromaticity flags of a structure after a few of its bonds
+ * changed, instead of perceiving the rings of the whole structure again.
+ * The Hueckel detector decides each ring system on its own, so only the
+ * ring systems which contain a changed atom, or an atom that was aromatic
+ * together with one, are passed to it; the flags of all other atoms and
+ * bonds are kept. Finding those ring systems takes one pass over the bonds
+ * (cyclic bonds are the ones which are not bridges), the expensive ring
+ * search only runs on them.
+ */
+public class IncrementalAromaticity {
+
+	private IncrementalAromaticity() {
+	}
+
+	/**
+	 * Updates the aromaticity of a structure whose flags were right before
+	 * the bonds between some atoms changed.
+	 *
+	 * @param ac      The structure.
+	 * @param changed The atoms whose bonds changed; null entries are ignored.
+	 * @throws CDKException
+	 */
+	public static void detectAromaticity(IAtomContainer ac, IAtom[] changed)
+			throws CDKException {
+		int atomCount = ac.getAtomCount();
+		int bondCount = ac.getBondCount();
+		Map<IAtom, Integer> index = new IdentityHashMap<IAtom, Integer>();
+		for (int f = 0; f < atomCount; f++)
+			index.put(ac.getAtom(f), f);
+		// the bonds of each atom, as bond numbers
+		int[] degree = new int[atomCount + 1];
+		int[] from = new int[bondCount];
+		int[] to = new int[bondCount];
+		for (int b = 0; b < bondCount; b++) {
+			IBond bond = ac.getBond(b);
+			from[b] = index.get(bond.getAtom(0));
+			to[b] = index.get(bond.getAtom(1));
+			degree[from[b] + 1]++;
+			degree[to[b] + 1]++;
+		}
+		for (int f = 0; f < atomCount; f++)
+			degree[f + 1] += degree[f];
+		int[] bondsOf = new int[2 * bondCount];
+		int[] filled = degree.clone();
+		for (int b = 0; b < bondCount; b++) {
+			bondsOf[filled[from[b]]++] = b;
+			bondsOf[filled[to[b]]++] = b;
+		}
+
+		int[] queue = new int[atomCount];
+		boolean[] seen = new boolean[atomCount];
+		int queued = 0;
+		for (IAtom atom : changed) {
+			Integer f = atom == null ? null : index.get(atom);
+			if (f != null && !seen[f]) {
+				seen[f] = true;
+				queue[queued++] = f;
+			}
+		}
+		// the atoms aromatic together with a changed atom may not be any more
+		for (int head = 0; head < queued; head++) {
+			int f = queue[head];
+			for (int k = degree[f]; k < degree[f + 1]; k++) {
+				int b = bondsOf[k];
+				int other = from[b] == f ? to[b] : from[b];
+				if (ac.getBond(b).getFlag(CDKConstants.ISAROMATIC) && !seen[other]) {
+					seen[other] = true;
+					queue[queued++] = other;
+				}
+			}
+		}
+		// from all of them, the ring systems they are in now
+		boolean[] cyclic = cyclicBonds(atomCount, degree, bondsOf, from, to);
+		for (int head = 0; head < queued; head++) {
+			int f = queue[head];
+			for (int k = degree[f]; k < degree[f + 1]; k++) {
+				int b = bondsOf[k];
+				int other = from[b] == f ? to[b] : from[b];
+				if (cyclic[b] && !seen[other]) {
+					seen[other] = true;
+					queue[queued++] = other;
+				}
+			}
+		}
+
+		IAtomContainer ringSystems = ac.getBuilder().newInstance(
+				IAtomContainer.class);
+		try {
+			for (int head = 0; head < queued; head++) {
+				IAtom atom = ac.getAtom(queue[head]);
+				atom.setFlag(CDKConstants.ISAROMATIC, false);
+				ringSystems.addAtom(atom);
+			}
+			for (int b = 0; b < bondCount; b++) {
+				if (seen[from[b]] || seen[to[b]]) {
+					IBond bond = ac.getBond(b);
+					bond.setFlag(CDKConstants.ISAROMATIC, false);
+					if (cyclic[b] && seen[from[b]] && seen[to[b]])
+						ringSystems.addBond(bond);
+				}
+			}
+			if (ringSystems.getBondCount() > 0)
+				CDKHueckelAromaticityDetector.detectAromaticity(ringSystems);
+		} finally {
+			// unregisters the container from the atoms and bonds
+			ringSystems.removeAllElements();
+		}
+	}
+
+	/**
+	 * Finds the bonds which are in a ring, i.e. are no bridges, by a depth
+	 * first search keeping the lowest discovery time reachable from each
+	 * atom's subtree.
+	 */
+	private static boolean[] cyclicBonds(int atomCount, int[] degree,
+			int[] bondsOf, int[] from, int[] to) {
+		boolean[] cyclic = new boolean[from.length];
+		int[] discovered = new int[atomCount];
+		int[] low = new int[atomCount];
+		int[] parentBond = new int[atomCount];
+		int[] next = new int[atomCount];
+		int[] stack = new int[atomCount];
+		int time = 0;
+		for (int root = 0; root < atomCount; root++) {
+			if (discovered[root] != 0)
+				continue;
+			int depth = 0;
+			stack[depth++] = root;
+			discovered[root] = low[root] = ++time;
+			parentBond[root] = -1;
+			next[root] = degree[root];
+			while (depth > 0) {
+				int f = stack[depth - 1];
+				if (next[f] < degree[f + 1]) {
+					int b = bondsOf[next[f]++];
+					if (b == parentBond[f])
+						continue;
+					int other = from[b] == f ? to[b] : from[b];
+					if (discovered[other] == 0) {
+						discovered[other] = low[other] = ++time;
+						parentBond[other] = b;
+						next[other] = degree[other];
+						stack[depth++] = other;
+					} else {
+						// a bond to an atom found before closes a ring
+						cyclic[b] = true;
+						low[f] = Math.min(low[f], discovered[other]);
+					}
+				} else {
+					depth--;
+					if (parentBond[f] >= 0) {
+						int parent = stack[depth - 1];
+						low[parent] = Math.min(low[parent], low[f]);
+						// a bond is a bridge if the subtree cannot reach above it
+						cyclic[parentBond[f]] = low[f] <= discovered[parent];
+					}
+				}
+			}
+		}
+		return cyclic;
+	}
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, least recently used cache of shift predictions. The key is
+ * the full HOSE code of an atom (which starts with the symbol of the atom),
+ * the value is the resolved min/average/max triple together with the number
+ * of spheres which matched in the HOSE code table. All methods are
+ * synchronized, so one cache can be shared by all judges and threads.
+ */
+public class PredictionCache {
+
+  /**
+   * A cached prediction.
+   */
+  public static class Prediction {
+	  public final double min;
+	  public final double average;
+	  public final double max;
+	  /** The number of spheres which matched, 0 if none did. */
+	  public final int spheres;
+
+	  public Prediction(double min, double average, double max, int spheres) {
+		  this.min = min;
+		  this.average = average;
+		  this.max = max;
+		  this.spheres = spheres;
+	  }
+
+	  /**
+	   * @return A new array {min, average, max} as returned by PredictionTool.
+	   */
+	  public double[] toArray() {
+		  return new double[]{min, average, max};
+	  }
+  }
+
+  private int maxSize;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private final LinkedHashMap<String, Prediction> map;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxSize The maximum number of predictions to keep, 0 switches the cache off.
+   */
+  public PredictionCache(int maxSize) {
+	  this.maxSize = maxSize;
+	  map = new LinkedHashMap<String, Prediction>(16, 0.75f, true) {
+		  private static final long serialVersionUID = 1L;
+
+		  protected boolean removeEldestEntry(Map.Entry<String, Prediction> eldest) {
+			  if (size() > PredictionCache.this.maxSize) {
+				  evictions++;
+				  return true;
+			  }
+			  return false;
+		  }
+	  };
+  }
+
+  /**
+   * Looks up a prediction and counts a hit or a miss.
+   *
+   * @param  hoseCode The full HOSE code of the atom.
+   * @return          The cached prediction, null if not cached.
+   */
+  public synchronized Prediction get(String hoseCode) {
+	  Prediction prediction = map.get(hoseCode);
+	  if (prediction == null)
+		  misses++;
+	  else
+		  hits++;
+	  return prediction;
+  }
+
+  /**
+   * Stores a prediction, evicting the least recently used one if the cache is full.
+   *
+   * @param hoseCode   The full HOSE code of the atom.
+   * @param prediction The resolved prediction.
+   */
+  public synchronized void put(String hoseCode, Prediction prediction) {
+	  if (maxSize > 0)
+		  map.put(hoseCode, prediction);
+  }
+
+  /**
+   * Changes the maximum size, evicting least recently used predictions if needed.
+   *
+   * @param maxSize The maximum number of predictions to keep, 0 switches the cache off.
+   */
+  public synchronized void setMaxSize(int maxSize) {
+	  this.maxSize = maxSize;
+	  Iterator<String> it = map.keySet().iterator();
+	  while (map.size() > maxSize && it.hasNext()) {
+		  it.next();
+		  it.remove();
+		  evictions++;
+	  }
+  }
+
+  public synchronized int getMaxSize() {
+	  return maxSize;
+  }
+
+  public synchronized int getSize() {
+	  return map.size();
+  }
+
+  public synchronized long getHits() {
+	  return hits;
+  }
+
+  public synchronized long getMisses() {
+	  return misses;
+  }
+
+  public synchronized long getEvictions() {
+	  return evictions;
+  }
+
+  /**
+   * Removes all predictions, e. g. because the HOSE code table changed. The counters are kept.
+   */
+  public synchronized void clear() {
+	  map.clear();
+  }
+
+  /**
+   * Sets hit, miss and eviction counters back to 0.
+   */
+  public synchronized void resetStatistics() {
+	  hits = 0;
+	  misses = 0;
+	  evictions = 0;
+  }
+
+  public synchronized String toString() {
+	  return "PredictionCache: " + map.size() + "/" + maxSize + " entries, "
+	  		+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+  }
+}
@@ -20,14 +20,13 @@
  */
 package net.bioclipse.seneca.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -38,15 +37,35 @@ import org.openscience.cdk.tools.HOSECodeGenerator;
  *  This class offers a stand-alone prediction based on HOSE codes from NMRShiftDB. Apart from this class, you need a data dump.
  * You can get a jar containing class and dump from any nmrshiftdb server with a URL like http://servername/download/NmrshiftdbServlet/predictor.jar?nmrshiftdbaction=predictor.
  * For an example how to use this class, see the main method. For running this class you need the following additional jars: cdk-core.jar, cdk-extra.jar, JNL.jar.
- * Since the HOSE code table is kept in memory, this class needs a lot of memory depending on the size of the database. We recommand to run the JVM with at least 128 MB memory.
- * Also always set all references to this class to null if you no longer need it in order to have it removed by garbage collection.
+ * The HOSE code table is compiled once into a binary file which is memory mapped, see HOSECodeDatabase, so it takes hardly any heap.
  *
  * @author     shk3
  * @created    September 23, 2004
  */
 public class PredictionTool {
 
-  private static HashMap mapsmap = new HashMap();
+  private static HOSECodeDatabase database = null;
+
+  /** The element sets of all PredictionTools, a code is used if it is applicable to one of them */
+  private static List<Set<String>> symbolSets = new CopyOnWriteArrayList<Set<String>>();
+
+  /** Whether the code of each table entry is applicable: 1 if so, -1 if not, 0 if not decided yet */
+  private static volatile byte[] applicability = new byte[0];
+
+  /** The default number of predictions kept in the prediction cache */
+  public static final int DEFAULT_CACHE_SIZE = 100000;
+
+  private static PredictionCache predictionCache = new PredictionCache(DEFAULT_CACHE_SIZE);
+
+  /**
+   * The cache of resolved predictions, shared by all PredictionTools. Use it
+   * to read hit/miss/eviction counts or to change its size for a job.
+   *
+   * @return The prediction cache.
+   */
+  public static PredictionCache getPredictionCache() {
+	  return predictionCache;
+  }
 
   /**
    *Constructor for the PredictionTool object
@@ -54,45 +73,43 @@ public class PredictionTool {
    * @exception  IOException  Problems reading the HOSE code file.
    */
   public PredictionTool(List<String> symbols) throws IOException {
-	String filename = "nmrshiftdb.csv";
-    InputStream ins = this.getClass().getClassLoader().getResourceAsStream(filename);
-    BufferedReader reader = new BufferedReader(new InputStreamReader(ins));
-    String input;
-    int counter = 0;
-    int stored = 0;
-    int found = 0;
-    while ((input = reader.readLine()) != null) {
-        StringTokenizer st2 = new StringTokenizer(input, "|");
-        String symbol = st2.nextToken();
-        String code = st2.nextToken();
-        if (applicable(code, symbols)) {
-        	float min = Float.parseFloat(st2.nextToken());
-        	float av = Float.parseFloat(st2.nextToken());
-        	float max = Float.parseFloat(st2.nextToken());
-        	if (mapsmap.get(symbol) == null) {
-        		mapsmap.put(symbol, new HashMap(5));
-        	}
-        	((HashMap) mapsmap.get(symbol)).put(code,new ValueBean(min,av,max));
-        	stored++;
-        }
-    	counter++;
-    	found++;
-    	if (counter == 10000) {
-    		System.out.print("x");
-    		counter = 0;
-    	}
+    synchronized (PredictionTool.class) {
+      database = HOSECodeDatabase.getDefault(this.getClass().getClassLoader());
+      Set<String> symbolSet = new HashSet<String>(symbols);
+      if (!symbolSets.contains(symbolSet)) {
+        symbolSets.add(symbolSet);
+        // more codes are applicable now, so cached misses may be wrong
+        applicability = new byte[database.getEntryCount()];
+        predictionCache.clear();
+      } else if (applicability.length != database.getEntryCount()) {
+        applicability = new byte[database.getEntryCount()];
+      }
     }
-    // TODO : log
-//    BioclipseConsole.writeToConsole("Using " + stored + "/" + found + " HOSE codes in the PredictionTool.");
   }
 
-  private boolean applicable(String code, List<String> symbols) {
-	List<String> codeSymbols = HOSECodeAnalyser.getElements(code);
-	for (String codeSymbol : codeSymbols) {
-		if (!symbols.contains(codeSymbol)) return false;
+  /**
+   * Tells if the elements of a table code, the first length characters of
+   * code, are in the element set of one of the PredictionTools. The code is
+   * only parsed the first time its entry is looked up.
+   */
+  private static boolean applicable(int entry, String code, int length) {
+	// taken before the sets are read, so a decision for fewer sets goes into the table it was made for
+	byte[] decided = applicability;
+	if (entry < decided.length && decided[entry] != 0)
+		return decided[entry] > 0;
+	List<String> codeSymbols = HOSECodeAnalyser.getElements(code.substring(0, length));
+	boolean result = false;
+	for (Set<String> symbols : symbolSets) {
+		if (symbols.containsAll(codeSymbols)) {
+			result = true;
+			break;
+		}
 	}
-	return true;
-}
+	// several threads may decide an entry, they all decide the same
+	if (entry < decided.length)
+		decided[entry] = (byte) (result ? 1 : -1);
+	return result;
+  }
 
 /**
    *  This method does a prediction, either from the database or from the mapsmap initialized in the constructor. This should not be used directly when using the stand-alone predictor; use predict() then.
@@ -119,39 +136,62 @@ public class PredictionTool {
 		  int ignoreSpectrumEnd, StringBuffer comment, boolean commentWithMinMax, boolean withRange, Map predictionValuesForApplet, int maxSpheresToUse, boolean cache, StringBuffer hoseCodeOut, int spheresMax, boolean fromDB, boolean trueonly) throws Exception {
 	  HOSECodeGenerator hcg = new HOSECodeGenerator();
 	  double[] returnValues = new double[3];
-	  int spheres;
-	  for (spheres = maxSpheresToUse; spheres > 0; spheres--) {
-		  StringBuffer hoseCodeBuffer = new StringBuffer();
-		  StringTokenizer st = new StringTokenizer(hcg.getHOSECode(mol, a, maxSpheresToUse,false), "()/");
-		  for (int k = 0; k < spheres; k++) {
-			  if (st.hasMoreTokens()) {
-				  String partcode = st.nextToken();
-				  hoseCodeBuffer.append(partcode);
-			  }
-			  if (k == 0) {
-				  hoseCodeBuffer.append("(");
-			  } else if (k == 3) {
-				  hoseCodeBuffer.append(")");
-			  } else {
-				  hoseCodeBuffer.append("/");
-			  }
-		  }
-		  String hoseCode = hoseCodeBuffer.toString();
-		  ValueBean l = ((ValueBean) ((HashMap) mapsmap.get(a.getSymbol())).get(hoseCode));
-		  if (l != null) {
-			  returnValues[0]=l.min;
-			  returnValues[1]=l.average;
-			  returnValues[2]=l.max;
+	  String fullCode = hcg.getHOSECode(mol, a, maxSpheresToUse,false);
+	  PredictionCache.Prediction cached = predictionCache.get(fullCode);
+	  if (cached != null)
+		  return cached.toArray();
+	  // the code truncated to k spheres is the first k segments, one lookup finds all of them
+	  int[] sphereEnds = new int[maxSpheresToUse + 1];
+	  String hoseCode = truncate(fullCode, maxSpheresToUse, sphereEnds);
+	  int[] entries = database.findSpheres(a.getSymbol(), hoseCode);
+	  for (int spheres = Math.min(maxSpheresToUse, entries.length - 1); spheres > 0; spheres--) {
+		  int entry = entries[spheres];
+		  if (entry >= 0 && applicable(entry, hoseCode, sphereEnds[spheres])) {
+			  returnValues[0]=database.getMin(entry);
+			  returnValues[1]=database.getAverage(entry);
+			  returnValues[2]=database.getMax(entry);
+			  predictionCache.put(fullCode, new PredictionCache.Prediction(returnValues[0], returnValues[1], returnValues[2], spheres));
 			  return returnValues;
 		  }
 	  }
 	  returnValues[0]=-1;
 	  returnValues[1]=-1;
 	  returnValues[2]=-1;
+	  predictionCache.put(fullCode, new PredictionCache.Prediction(-1, -1, -1, 0));
 	  return returnValues;
   }
 
 
+  /**
+   * Builds the HOSE code truncated to a number of spheres, the way the table
+   * codes are built.
+   *
+   * @param  fullCode   The HOSE code of the atom.
+   * @param  spheres    The number of spheres to keep.
+   * @param  sphereEnds If not null, receives the length of the code truncated to k spheres at position k.
+   * @return            The truncated code.
+   */
+  static String truncate(String fullCode, int spheres, int[] sphereEnds) {
+	  StringBuffer hoseCodeBuffer = new StringBuffer();
+	  StringTokenizer st = new StringTokenizer(fullCode, "()/");
+	  for (int k = 0; k < spheres; k++) {
+		  if (st.hasMoreTokens()) {
+			  String partcode = st.nextToken();
+			  hoseCodeBuffer.append(partcode);
+		  }
+		  if (k == 0) {
+			  hoseCodeBuffer.append("(");
+		  } else if (k == 3) {
+			  hoseCodeBuffer.append(")");
+		  } else {
+			  hoseCodeBuffer.append("/");
+		  }
+		  if (sphereEnds != null)
+			  sphereEnds[k + 1] = hoseCodeBuffer.length();
+	  }
+	  return hoseCodeBuffer.toString();
+  }
+
   /**
    *  Does a prediction.
    *
@@ -163,17 +203,5 @@ public class PredictionTool {
   public double[] predict(IAtomContainer mol, IAtom atom) throws Exception {
     return generalPredict(mol, atom, true, true, -1, -1, new StringBuffer(), false, true, null, 6, false, null, 6, false, true);
   }
-
-  class ValueBean{
-	  public float min;
-	  public float average;
-	  public float max;
-
-	  public ValueBean(float a, float b, float c){
-		  min=a;
-		  average=b;
-		  max=c;
-	  }
-  }
 }
 
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The random numbers of a structure generation run. This is a SplitMix64
+ * generator (Steele, Lea and Flood, OOPSLA 2014) behind the java.util.Random
+ * interface, so it can be passed to the CDK and Watchmaker classes. Unlike
+ * Random it is not synchronized: each thread or component gets its own
+ * stream from split, so parallel chains never wait for each other, and a
+ * run started with the same seed and split in the same order gives the
+ * same structures again.
+ */
+public class RandomSource extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+	/** the seeds of sources made without one */
+	private static final AtomicLong defaultSeeds = new AtomicLong(
+			mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+
+	private long seed;
+	private long state;
+	private long gamma;
+
+	/**
+	 * Creates a source with a seed differing from all other sources made
+	 * this way. getSeed tells it, for running again.
+	 */
+	public RandomSource() {
+		this(mix64(defaultSeeds.getAndAdd(2 * GOLDEN_GAMMA)));
+	}
+
+	/**
+	 * Creates a source giving the same numbers for the same seed.
+	 *
+	 * @param seed The seed.
+	 */
+	public RandomSource(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private RandomSource(long seed, long gamma) {
+		super(seed);
+		this.seed = seed;
+		this.state = seed;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Starts the stream again from another seed.
+	 */
+	public void setSeed(long seed) {
+		// called by the constructor of Random before gamma is set
+		super.setSeed(seed);
+		this.seed = seed;
+		this.state = seed;
+	}
+
+	/**
+	 * @return The seed this source started from.
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Makes a new source whose numbers are independent of this one's. The
+	 * new source only depends on the state of this one, so splitting in the
+	 * same order gives the same sources.
+	 *
+	 * @return The new source.
+	 */
+	public RandomSource split() {
+		return new RandomSource(mix64(state += gamma), mixGamma(state += gamma));
+	}
+
+	/**
+	 * Writes where the stream is, for continuing it with readState.
+	 *
+	 * @param out The output.
+	 * @throws IOException
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeLong(seed);
+		out.writeLong(state);
+		out.writeLong(gamma);
+	}
+
+	/**
+	 * Continues the stream from where writeState left it.
+	 *
+	 * @param in The input.
+	 * @throws IOException
+	 */
+	public void readState(DataInput in) throws IOException {
+		seed = in.readLong();
+		state = in.readLong();
+		gamma = in.readLong();
+	}
+
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	public long nextLong() {
+		return mix64(state += gamma);
+	}
+
+	public double nextDouble() {
+		return (nextLong() >>> 11) * DOUBLE_UNIT;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * An odd increment with enough bit changes between neighbouring bits.
+	 */
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
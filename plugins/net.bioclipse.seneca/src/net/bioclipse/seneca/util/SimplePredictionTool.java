@@ -1,12 +1,7 @@
 package net.bioclipse.seneca.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -16,15 +11,14 @@ import org.openscience.cdk.tools.HOSECodeGenerator;
  *  This class offers a stand-alone prediction based on HOSE codes from NMRShiftDB. Apart from this class, you need a data dump.
  * You can get a jar containing class and dump from any nmrshiftdb server with a URL like http://servername/download/NmrshiftdbServlet/predictor.jar?nmrshiftdbaction=predictor.
  * For an example how to use this class, see the main method. For running this class you need the following additional jars: cdk-core.jar, cdk-extra.jar, JNL.jar.
- * Since the HOSE code table is kept in memory, this class needs a lot of memory depending on the size of the database. We recommand to run the JVM with at least 128 MB memory.
- * Also always set all references to this class to null if you no longer need it in order to have it removed by garbage collection.
+ * The HOSE code table is compiled once into a binary file which is memory mapped, see HOSECodeDatabase, so it takes hardly any heap.
  *
  * @author     shk3
  * @created    September 23, 2004
  */
 public class SimplePredictionTool {
 
-  private static HashMap mapsmap = new HashMap(460000);
+  private static HOSECodeDatabase database = null;
 
   /**
    *Constructor for the PredictionTool object
@@ -32,29 +26,8 @@ public class SimplePredictionTool {
    * @exception  IOException  Problems reading the HOSE code file.
    */
   public SimplePredictionTool() throws IOException {
-	  float av;
-	String filename = "nmrshiftdb.csv";
-    InputStream ins = this.getClass().getClassLoader().getResourceAsStream(filename);
-    BufferedReader reader = new BufferedReader(new InputStreamReader(ins));
-    String input;
-    int counter = 0;
-    while ((input = reader.readLine()) != null) {
-        StringTokenizer st2 = new StringTokenizer(input, "|");
-        String symbol = st2.nextToken();
-        String code = st2.nextToken();
-        //if (code.equals("C-3;=CCO(,C,&/")) System.out.println(code.hashCode());
-        st2.nextToken();
-        av = Float.parseFloat(st2.nextToken());
-        st2.nextToken();
-        if (mapsmap.get(symbol) == null) {
-          mapsmap.put(symbol, new HashMap(5));
-        }
-        ((HashMap) mapsmap.get(symbol)).put(code.hashCode(),new Float(av));
-        counter++;
-        if (counter == 10000) {
-        	System.out.print("x");
-        	counter = 0;
-        }
+    synchronized (SimplePredictionTool.class) {
+      database = HOSECodeDatabase.getDefault(this.getClass().getClassLoader());
     }
   }
 
@@ -83,29 +56,12 @@ public class SimplePredictionTool {
 		  int ignoreSpectrumEnd, StringBuffer comment, boolean commentWithMinMax, boolean withRange, Map predictionValuesForApplet, int maxSpheresToUse, boolean cache, StringBuffer hoseCodeOut, int spheresMax, boolean fromDB, boolean trueonly) throws Exception {
 	  HOSECodeGenerator hcg = new HOSECodeGenerator();
 //	  double[] returnValues = new double[3];
-	  int spheres;
-	  for (spheres = maxSpheresToUse; spheres > 0; spheres--) {
-		  StringBuffer hoseCodeBuffer = new StringBuffer();
-		  StringTokenizer st = new StringTokenizer(hcg.getHOSECode(mol, a, maxSpheresToUse,false), "()/");
-		  for (int k = 0; k < spheres; k++) {
-			  if (st.hasMoreTokens()) {
-				  String partcode = st.nextToken();
-				  hoseCodeBuffer.append(partcode);
-			  }
-			  if (k == 0) {
-				  hoseCodeBuffer.append("(");
-			  } else if (k == 3) {
-				  hoseCodeBuffer.append(")");
-			  } else {
-				  hoseCodeBuffer.append("/");
-			  }
-		  }
-		  String hoseCode = hoseCodeBuffer.toString();
-
-		  Float shift = (Float) ((HashMap) mapsmap.get(a.getSymbol())).get(hoseCode.hashCode());
-		  if (shift != null)
+	  String hoseCode = PredictionTool.truncate(hcg.getHOSECode(mol, a, maxSpheresToUse,false), maxSpheresToUse, null);
+	  int[] entries = database.findSpheres(a.getSymbol(), hoseCode);
+	  for (int spheres = Math.min(maxSpheresToUse, entries.length - 1); spheres > 0; spheres--) {
+		  if (entries[spheres] >= 0)
 		  {
-			  return shift.floatValue();
+			  return database.getAverage(entries[spheres]);
 		  }
 	  }
 	  return -1;
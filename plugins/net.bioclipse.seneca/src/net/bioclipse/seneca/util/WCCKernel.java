@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Bioclipse Project
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.seneca.util;
+
+import java.util.Arrays;
+
+/**
+ * Weighted cross correlation (WCC) of stick spectra in which every peak has
+ * intensity 1, as used by the 13C judges. Two peaks at distance d contribute
+ * 1 - |d|/width if |d| &lt; width, the similarity is the cross term divided
+ * by the square root of the product of both self terms. The reference
+ * spectrum is sorted and its self term computed once, candidate spectra are
+ * sorted into a per thread buffer, so a comparison allocates nothing and
+ * only visits pairs of peaks which are closer than width.
+ */
+public class WCCKernel {
+
+  private static final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+	  protected double[] initialValue() {
+		  return new double[64];
+	  }
+  };
+
+  private final double[] reference;
+  private final double width;
+  private final double referenceSelf;
+
+  /**
+   * Creates a kernel for one reference (experimental) spectrum.
+   *
+   * @param positions The peak positions of the reference, in any order. The array is copied.
+   * @param width     The width of the triangular weight function.
+   */
+  public WCCKernel(double[] positions, double width) {
+	  this.reference = positions.clone();
+	  Arrays.sort(this.reference);
+	  this.width = width;
+	  this.referenceSelf = correlation(reference, reference.length, reference, reference.length, width);
+  }
+
+  public double getWidth() {
+	  return width;
+  }
+
+  public int getPeakCount() {
+	  return reference.length;
+  }
+
+  /**
+   * Compares a spectrum to the reference.
+   *
+   * @param  positions The peak positions, in any order. The array is not changed.
+   * @return           The WCC, 0 if one of the spectra has no peaks.
+   */
+  public double similarity(double[] positions) {
+	  return similarity(positions, positions.length);
+  }
+
+  /**
+   * Compares the first <code>length</code> peaks of a spectrum to the reference.
+   *
+   * @param  positions The peak positions, in any order. The array is not changed.
+   * @param  length    The number of peaks to use.
+   * @return           The WCC, 0 if one of the spectra has no peaks.
+   */
+  public double similarity(double[] positions, int length) {
+	  if (length == 0 || reference.length == 0)
+		  return 0.0;
+	  double[] sorted = scratch.get();
+	  if (sorted.length < length) {
+		  sorted = new double[Math.max(length, 2 * sorted.length)];
+		  scratch.set(sorted);
+	  }
+	  System.arraycopy(positions, 0, sorted, 0, length);
+	  Arrays.sort(sorted, 0, length);
+	  double cross = correlation(reference, reference.length, sorted, length, width);
+	  double self = correlation(sorted, length, sorted, length, width);
+	  return cross / Math.sqrt(referenceSelf * self);
+  }
+
+  /**
+   * Compares two spectra without precomputing anything; use an instance
+   * when one of them is compared more than once.
+   *
+   * @param  positions1 The peak positions of the first spectrum, in any order.
+   * @param  positions2 The peak positions of the second spectrum, in any order.
+   * @param  width      The width of the triangular weight function.
+   * @return            The WCC, 0 if one of the spectra has no peaks.
+   */
+  public static double similarity(double[] positions1, double[] positions2, double width) {
+	  return new WCCKernel(positions1, width).similarity(positions2);
+  }
+
+  /**
+   * The sum of the triangular weights over all pairs of peaks of two sorted
+   * spectra. For every peak of a, the window of peaks of b closer than width
+   * only moves to the right, so this is linear in the number of peaks plus
+   * the number of close pairs.
+   */
+  static double correlation(double[] a, int lengthA, double[] b, int lengthB, double width) {
+	  double sum = 0;
+	  int start = 0;
+	  for (int i = 0; i < lengthA; i++) {
+		  double x = a[i];
+		  while (start < lengthB && b[start] <= x - width)
+			  start++;
+		  for (int j = start; j < lengthB && b[j] < x + width; j++) {
+			  double d = b[j] - x;
+			  sum += 1 - (d < 0 ? -d : d) / width;
+		  }
+	  }
+	  return sum;
+  }
+}
@@ -82,6 +82,7 @@ public class SJSCheckWizardPage extends WizardPage implements
 	});
  	setControl(control);
   checkForRequiredData(tree);
+  checkSeed(tree);
   checkJudges(tree);
   configureEngine(tree);
   setErrorMessage(null);
@@ -141,6 +142,20 @@ public class SJSCheckWizardPage extends WizardPage implements
  }
 
 
+ private void checkSeed(Tree parent) {
+     CheckItem item = new CheckItem(parent, "Checking random seed...", "");
+
+     if (jobSpec.isSeedValid()) {
+       item.setState( "valid" );
+     } else {
+       item.setState( "no" );
+       item.setError( "The random seed '" + jobSpec.getSeedText()
+                      + "' is no whole number, leave it empty for a new one each run" );
+       item.setExpanded( true );
+     }
+ }
+
+
  private void configureEngine(Tree parent) {
      CheckItem item = new CheckItem(parent, "Checking generators...", "");
      
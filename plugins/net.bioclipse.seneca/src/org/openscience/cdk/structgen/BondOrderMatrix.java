@@ -0,0 +1,492 @@
+/* $Revision$ $Author$ $Date$
+ *
+ * Copyright (C) 2010  The Bioclipse Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.openscience.cdk.structgen;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.tools.manipulator.BondManipulator;
+
+/**
+ * The bonds of a structure as a byte matrix of bond orders, for making
+ * Faulon moves without the cost of the IAtomContainer: looking up a bond
+ * is an array access, and a move neither creates objects nor sends change
+ * notifications. Atoms are numbered as in the container the matrix was
+ * made from. The last move is recorded, so it can be undone or copied to
+ * a container.
+ *
+ * <p>A move keeps the bond order sum of every atom, so a saturated
+ * structure stays saturated and is not checked again.
+ *
+ * <p>The bonds are also kept in a list and, for each atom, a list of its
+ * neighbours, so a move is drawn from the bonds that exist rather than
+ * from four random atoms, most of which have no bonds between them in a
+ * large structure.
+ *
+ * @cdk.keyword structure generator
+ */
+public class BondOrderMatrix {
+
+	/** the atoms a search from either end of a removed bond may find before all atoms are searched */
+	public static final int SEARCH_LIMIT = 16;
+
+	private final int size;
+	private final byte[] orders;
+
+	/** the atoms of the last move and the bonds it changed */
+	private final int[] movedAtoms = new int[4];
+	private final int[] changedFrom = new int[4];
+	private final int[] changedTo = new int[4];
+	private final byte[] oldOrders = new byte[4];
+	private final byte[] newOrders = new byte[4];
+	private int changeCount = 0;
+	private final int[] choices = new int[3];
+
+	/** the neighbours of atom i in row i, and the place of j in row i */
+	private final int[] neighbours;
+	private final int[] place;
+	private final int[] degree;
+	/** the atoms of each bond, and the number of bond i-j at i * size + j */
+	private final int[] bondAtoms;
+	private final int[] bondNumber;
+	private int bondCount = 0;
+	/** the sum of degree * (degree - 1), the ordered pairs of bonds with a common atom */
+	private int adjacentPairs = 0;
+
+	/** for the connectivity searches, the second queue for the other end of a bond */
+	private final int[] queue;
+	private final int[] otherQueue;
+	private final int[] visited;
+	private int visit = 0;
+
+	/**
+	 * Makes the matrix of the bonds of a container.
+	 *
+	 * @param ac The structure.
+	 */
+	public BondOrderMatrix(IAtomContainer ac) {
+		size = ac.getAtomCount();
+		orders = new byte[size * size];
+		queue = new int[size];
+		otherQueue = new int[size];
+		visited = new int[size];
+		neighbours = new int[size * size];
+		place = new int[size * size];
+		degree = new int[size];
+		bondAtoms = new int[size * size];
+		bondNumber = new int[size * size];
+		load(ac);
+	}
+
+	/**
+	 * Replaces the bonds by those of another container with as many atoms,
+	 * reusing the arrays. The last move is forgotten.
+	 *
+	 * @param ac The structure.
+	 * @throws IllegalArgumentException if it has another number of atoms
+	 */
+	public void load(IAtomContainer ac) {
+		if (ac.getAtomCount() != size)
+			throw new IllegalArgumentException("The matrix is for " + size
+					+ " atoms, not " + ac.getAtomCount());
+		// only the entries of the bonds are set, the other ones are unused
+		for (int b = 0; b < bondCount; b++) {
+			int i = bondAtoms[2 * b];
+			int j = bondAtoms[2 * b + 1];
+			orders[i * size + j] = 0;
+			orders[j * size + i] = 0;
+		}
+		Arrays.fill(degree, 0);
+		bondCount = 0;
+		adjacentPairs = 0;
+		changeCount = 0;
+		for (int b = 0; b < ac.getBondCount(); b++) {
+			IBond bond = ac.getBond(b);
+			int i = ac.getAtomNumber(bond.getAtom(0));
+			int j = ac.getAtomNumber(bond.getAtom(1));
+			store(i, j, (int) BondManipulator.destroyBondOrder(bond.getOrder()));
+		}
+	}
+
+	public int getAtomCount() {
+		return size;
+	}
+
+	/**
+	 * @return The order of the bond between two atoms, 0 if there is none.
+	 */
+	public int getOrder(int i, int j) {
+		return orders[i * size + j];
+	}
+
+	/**
+	 * Randomly chooses four atoms and alters the bonding pattern between
+	 * them according to rules described in "Faulon, JCICS 1996, 36, 731".
+	 *
+	 * <p>The atoms x1, x2, y1, y2 are drawn uniformly from all ordered
+	 * quadruples of distinct atoms which have at least two bonds among
+	 * x1-y1, x1-y2, x2-y1 and x2-y2, and for which the order of x1-y1 can be
+	 * changed; the new order b11 is drawn uniformly from the orders it can
+	 * be changed to. This is the distribution of drawing four atoms until
+	 * they are such a quadruple, which is how the moves were made before,
+	 * but the quadruples are made from the bonds: two of the four bonds
+	 * are either a pair of bonds without a common atom, or two bonds of one
+	 * atom together with any fourth atom. Drawing such a pair uniformly and
+	 * placing it uniformly on two of the four bonds gives a quadruple with
+	 * k bonds with a probability proportional to the k * (k - 1) / 2 pairs
+	 * leading to it, so it is kept with probability 2 / (k * (k - 1)).
+	 *
+	 * @param random The random numbers.
+	 * @throws IllegalStateException if no four atoms have two bonds among them
+	 */
+	public void move(Random random) {
+		// the placements of two bonds without a common atom on x1-y1 and
+		// x2-y2, or on x1-y2 and x2-y1, in both orders and directions
+		double disjoint = 4.0 * ((double) bondCount * bondCount - bondCount
+				- adjacentPairs);
+		// the placements of two bonds of one atom on two bonds of x1, x2, y1
+		// or y2, with any other atom as the fourth
+		double adjacent = (double) adjacentPairs * Math.max(0, size - 3);
+		if (disjoint + adjacent <= 0)
+			throw new IllegalStateException(
+					"No four atoms have two bonds among them");
+		int a11, a12, a21, a22;
+		int lowerborder, upperborder;
+		int choiceCounter;
+		while (true) {
+			if (random.nextDouble() * (2 * disjoint + 4 * adjacent) < 2 * disjoint)
+				placeDisjointBonds(random);
+			else
+				placeAdjacentBonds(random);
+			int x1 = movedAtoms[0], x2 = movedAtoms[1];
+			int y1 = movedAtoms[2], y2 = movedAtoms[3];
+			a11 = orders[x1 * size + y1];
+			a12 = orders[x1 * size + y2];
+			a21 = orders[x2 * size + y1];
+			a22 = orders[x2 * size + y2];
+			int nonZeroBondsCounter = (a11 > 0 ? 1 : 0) + (a12 > 0 ? 1 : 0)
+					+ (a21 > 0 ? 1 : 0) + (a22 > 0 ? 1 : 0);
+			int bondPairs = nonZeroBondsCounter * (nonZeroBondsCounter - 1) / 2;
+			if (bondPairs > 1 && random.nextInt(bondPairs) != 0)
+				continue;
+
+			/* Compute the range for b11 (see Faulons formulae for details) */
+			lowerborder = Math.max(Math.max(0, a11 - a22), Math.max(a11 + a12
+					- 3, a11 + a21 - 3));
+			upperborder = Math.min(Math.min(3, a11 + a12), Math.min(a11 + a21,
+					a11 - a22 + 3));
+			/* Randomly choose b11 != a11 in the range max > r > min */
+			choiceCounter = 0;
+			for (int f = lowerborder; f <= upperborder; f++) {
+				if (f != a11)
+					choices[choiceCounter++] = f;
+			}
+			if (choiceCounter > 0)
+				break;
+		}
+		int b11 = choices[random.nextInt(choiceCounter)];
+
+		int x1 = movedAtoms[0], x2 = movedAtoms[1];
+		int y1 = movedAtoms[2], y2 = movedAtoms[3];
+		changeCount = 0;
+		setOrder(x1, y1, b11);
+		setOrder(x1, y2, a11 + a12 - b11);
+		setOrder(x2, y1, a11 + a21 - b11);
+		setOrder(x2, y2, a22 - a11 + b11);
+	}
+
+	/**
+	 * Draws two bonds without a common atom and makes them x1-y1 and x2-y2
+	 * or x1-y2 and x2-y1.
+	 */
+	private void placeDisjointBonds(Random random) {
+		int first, second;
+		do {
+			first = random.nextInt(bondCount);
+			second = random.nextInt(bondCount);
+		} while (first == second
+				|| bondAtoms[2 * first] == bondAtoms[2 * second]
+				|| bondAtoms[2 * first] == bondAtoms[2 * second + 1]
+				|| bondAtoms[2 * first + 1] == bondAtoms[2 * second]
+				|| bondAtoms[2 * first + 1] == bondAtoms[2 * second + 1]);
+		int end = random.nextInt(2);
+		movedAtoms[0] = bondAtoms[2 * first + end];
+		int y = bondAtoms[2 * first + 1 - end];
+		end = random.nextInt(2);
+		movedAtoms[1] = bondAtoms[2 * second + end];
+		int otherY = bondAtoms[2 * second + 1 - end];
+		if (random.nextInt(2) == 0) {
+			movedAtoms[2] = y;
+			movedAtoms[3] = otherY;
+		} else {
+			movedAtoms[2] = otherY;
+			movedAtoms[3] = y;
+		}
+	}
+
+	/**
+	 * Draws an atom with the weight degree * (degree - 1), two of its
+	 * neighbours and another atom, and makes the two bonds the bonds of one
+	 * of x1, x2, y1 or y2.
+	 */
+	private void placeAdjacentBonds(Random random) {
+		int r = random.nextInt(adjacentPairs);
+		int center = 0;
+		while (r >= degree[center] * (degree[center] - 1)) {
+			r -= degree[center] * (degree[center] - 1);
+			center++;
+		}
+		int first = random.nextInt(degree[center]);
+		int second = random.nextInt(degree[center] - 1);
+		if (second >= first)
+			second++;
+		first = neighbours[center * size + first];
+		second = neighbours[center * size + second];
+		int fourth;
+		do {
+			fourth = random.nextInt(size);
+		} while (fourth == center || fourth == first || fourth == second);
+		// the common atom is movedAtoms[shared], bonded to the other side
+		int shared = random.nextInt(4);
+		int side = shared < 2 ? 2 : 0;
+		movedAtoms[shared] = center;
+		movedAtoms[shared ^ 1] = fourth;
+		movedAtoms[side] = first;
+		movedAtoms[side + 1] = second;
+	}
+
+	private void setOrder(int i, int j, int order) {
+		byte old = orders[i * size + j];
+		if (old == order)
+			return;
+		changedFrom[changeCount] = i;
+		changedTo[changeCount] = j;
+		oldOrders[changeCount] = old;
+		newOrders[changeCount] = (byte) order;
+		changeCount++;
+		store(i, j, order);
+	}
+
+	/**
+	 * Sets the order of a bond and adds it to or removes it from the lists.
+	 */
+	private void store(int i, int j, int order) {
+		byte old = orders[i * size + j];
+		orders[i * size + j] = (byte) order;
+		orders[j * size + i] = (byte) order;
+		if (old == 0 && order != 0) {
+			link(i, j);
+			link(j, i);
+			bondNumber[i * size + j] = bondCount;
+			bondNumber[j * size + i] = bondCount;
+			bondAtoms[2 * bondCount] = i;
+			bondAtoms[2 * bondCount + 1] = j;
+			bondCount++;
+		} else if (old != 0 && order == 0) {
+			unlink(i, j);
+			unlink(j, i);
+			// the last bond takes the place of the removed one
+			int b = bondNumber[i * size + j];
+			bondCount--;
+			int last1 = bondAtoms[2 * bondCount];
+			int last2 = bondAtoms[2 * bondCount + 1];
+			bondAtoms[2 * b] = last1;
+			bondAtoms[2 * b + 1] = last2;
+			bondNumber[last1 * size + last2] = b;
+			bondNumber[last2 * size + last1] = b;
+		}
+	}
+
+	private void link(int i, int j) {
+		adjacentPairs += 2 * degree[i];
+		neighbours[i * size + degree[i]] = j;
+		place[i * size + j] = degree[i];
+		degree[i]++;
+	}
+
+	private void unlink(int i, int j) {
+		degree[i]--;
+		adjacentPairs -= 2 * degree[i];
+		// the last neighbour takes the place of the removed one
+		int last = neighbours[i * size + degree[i]];
+		int k = place[i * size + j];
+		neighbours[i * size + k] = last;
+		place[i * size + last] = k;
+	}
+
+	/**
+	 * Changes the bonds of the last move back.
+	 */
+	public void undo() {
+		for (int k = changeCount - 1; k >= 0; k--)
+			store(changedFrom[k], changedTo[k], oldOrders[k]);
+		changeCount = 0;
+	}
+
+	/**
+	 * @return Atom k of the four atoms chosen by the last move.
+	 */
+	public int getMovedAtom(int k) {
+		return movedAtoms[k];
+	}
+
+	/**
+	 * @return The number of bonds whose order the last move changed.
+	 */
+	public int getChangeCount() {
+		return changeCount;
+	}
+
+	public int getChangedFrom(int k) {
+		return changedFrom[k];
+	}
+
+	public int getChangedTo(int k) {
+		return changedTo[k];
+	}
+
+	public int getOldOrder(int k) {
+		return oldOrders[k];
+	}
+
+	public int getNewOrder(int k) {
+		return newOrders[k];
+	}
+
+	/**
+	 * @return Whether all atoms are connected.
+	 */
+	public boolean isConnected() {
+		return size == 0 || reach(0) == size;
+	}
+
+	/**
+	 * Tells whether a structure which was connected before the last move
+	 * still is: this only needs the ends of each removed bond to be
+	 * connected, and nothing to be searched if no bond was removed. The
+	 * ends are searched for each other from both sides at once; if both
+	 * sides find SEARCH_LIMIT atoms first, all atoms are searched.
+	 *
+	 * @return Whether all atoms are connected.
+	 */
+	public boolean isConnectedAfterMove() {
+		for (int k = 0; k < changeCount; k++) {
+			if (newOrders[k] != 0)
+				continue;
+			int joined = join(changedFrom[k], changedTo[k]);
+			if (joined == 0)
+				return false;
+			if (joined < 0)
+				return isConnected();
+		}
+		return true;
+	}
+
+	/**
+	 * Searches breadth first from an atom, along the neighbour lists, so a
+	 * search takes time in the number of atoms and bonds it reaches.
+	 *
+	 * @return The number of atoms reached.
+	 */
+	private int reach(int from) {
+		nextVisit();
+		int found = 0;
+		queue[found++] = from;
+		visited[from] = visit;
+		for (int head = 0; head < found; head++) {
+			int atom = queue[head];
+			int row = atom * size;
+			for (int k = 0; k < degree[atom]; k++) {
+				int j = neighbours[row + k];
+				if (visited[j] != visit) {
+					visited[j] = visit;
+					queue[found++] = j;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Searches from two atoms at once, always growing the side which has
+	 * found fewer atoms, until the sides meet or one side has found all
+	 * atoms it is connected to. A bond whose removal cuts off a small
+	 * fragment is so decided after searching that fragment only.
+	 *
+	 * @return 1 if the atoms are connected, 0 if not, -1 if both sides
+	 *         found SEARCH_LIMIT atoms first
+	 */
+	private int join(int from, int to) {
+		nextVisit();
+		// the atoms found from "from" are marked visit - 1, from "to" visit
+		int fromMark = visit - 1;
+		queue[0] = from;
+		otherQueue[0] = to;
+		visited[from] = fromMark;
+		visited[to] = visit;
+		int fromFound = 1, toFound = 1;
+		int fromHead = 0, toHead = 0;
+		while (true) {
+			boolean fromSide = fromFound <= toFound;
+			int found = fromSide ? fromFound : toFound;
+			int head = fromSide ? fromHead : toHead;
+			if (head == found)
+				// this side is a whole fragment without the other atom
+				return 0;
+			if (found >= SEARCH_LIMIT)
+				// the smaller side is at the limit, so both are
+				return -1;
+			int[] sideQueue = fromSide ? queue : otherQueue;
+			int own = fromSide ? fromMark : visit;
+			int other = fromSide ? visit : fromMark;
+			int atom = sideQueue[head];
+			int row = atom * size;
+			for (int k = 0; k < degree[atom]; k++) {
+				int j = neighbours[row + k];
+				if (visited[j] == other)
+					return 1;
+				if (visited[j] != own) {
+					visited[j] = own;
+					sideQueue[found++] = j;
+				}
+			}
+			if (fromSide) {
+				fromHead++;
+				fromFound = found;
+			} else {
+				toHead++;
+				toFound = found;
+			}
+		}
+	}
+
+	/**
+	 * Advances the marks of visited atoms by two, which is enough for both
+	 * searches, starting again when they run out.
+	 */
+	private void nextVisit() {
+		if (visit >= Integer.MAX_VALUE - 2) {
+			Arrays.fill(visited, 0);
+			visit = 0;
+		}
+		visit += 2;
+	}
+}
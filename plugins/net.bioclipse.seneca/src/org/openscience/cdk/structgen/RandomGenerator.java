@@ -24,12 +24,13 @@
  */
 package org.openscience.cdk.structgen;
 
-import org.openscience.cdk.graph.ConnectivityChecker;
+import java.util.Random;
+
+import org.openscience.cdk.CDKConstants;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.interfaces.IMolecule;
-import org.openscience.cdk.math.MathTools;
 import org.openscience.cdk.tools.ILoggingTool;
 import org.openscience.cdk.tools.LoggingToolFactory;
 import org.openscience.cdk.tools.manipulator.BondManipulator;
@@ -42,6 +43,20 @@ import org.openscience.cdk.tools.manipulator.BondManipulator;
  *
  * <p>Unlike the VicinitySampler, this methods does not sample
  * the full Faulon vicinity.
+ *
+ * <p>proposeStructure returns a changed copy of the current structure.
+ * proposeStructureInPlace changes the current structure itself and keeps
+ * a record of the at most four bonds it changed, so acceptStructure and
+ * rejectStructure only have to forget or undo them; nothing is copied
+ * or allocated for a step.
+ *
+ * <p>The moves are made in a BondOrderMatrix of the current structure,
+ * and only the one which is proposed is made in the molecule. A move can
+ * only disconnect a connected structure by removing bonds, so once the
+ * current structure is known to be connected, a move is only checked by
+ * searching from both ends of each removed bond for each other; all atoms
+ * are searched only if both sides grow beyond
+ * BondOrderMatrix.SEARCH_LIMIT atoms.
  * 
  * @see         org.openscience.cdk.structgen.VicinitySampler
  * 
@@ -55,6 +70,24 @@ public class RandomGenerator {
 	private IMolecule proposedStructure = null;
 	private IMolecule molecule = null;
 	private IMolecule trial = null;
+	private Random random = null;
+
+	/** the last move made by mutate, and whether it is an unresolved proposal */
+	private final Move move = new Move();
+	private boolean movePending = false;
+
+	/** the bonds of the current molecule, or of the pending proposal */
+	private BondOrderMatrix matrix = null;
+	/** whether the matrix holds the bonds of the current molecule */
+	private boolean matrixLoaded = false;
+	private boolean trialPending = false;
+
+	/** whether the current molecule is known to be connected */
+	private boolean connected = false;
+
+	/** the ring and aromaticity flags of the structure proposed in place */
+	private boolean[] atomFlags = new boolean[0];
+	private boolean[] bondFlags = new boolean[0];
 
 	/**
 	 * Constructs a RandomGenerator with a given starting structure.
@@ -62,8 +95,21 @@ public class RandomGenerator {
 	 * @param   molecule  The starting structure
 	 */
 	public RandomGenerator(IMolecule molecule)
+	{
+		this(molecule, new Random());
+	}
+
+	/**
+	 * Constructs a RandomGenerator with a given starting structure and
+	 * source of random numbers, e. g. to repeat a run.
+	 *
+	 * @param   molecule  The starting structure
+	 * @param   random    The random numbers for choosing the moves
+	 */
+	public RandomGenerator(IMolecule molecule, Random random)
 	{
 		setMolecule(molecule);
+		this.random = random;
 	}
 
 
@@ -77,245 +123,307 @@ public class RandomGenerator {
 	public IMolecule proposeStructure()
 	{
 		logger.debug("RandomGenerator->proposeStructure() Start");
-		do
-		{
-			try {
-				trial = (IMolecule)molecule.clone();
-			} catch (CloneNotSupportedException e) {
-				logger.error("Could not clone IAtomContainer!" + e.getMessage());
-				trial = null;
+		rejectStructure();
+		BondOrderMatrix bonds = bondOrders();
+		moveConnected(bonds);
+		try {
+			trial = (IMolecule)molecule.clone();
+		} catch (CloneNotSupportedException e) {
+			logger.error("Could not clone IAtomContainer!" + e.getMessage());
+			bonds.undo();
+			return null;
+		}
+		applyMove(trial, bonds);
+		trialPending = true;
+		if(logger.isDebugEnabled()) {
+			String s = "BondCounts:    ";
+			for (int f = 0; f < trial.getAtomCount(); f++) {
+				s += trial.getConnectedBondsCount(trial.getAtom(f)) + " ";
 			}
-			mutate(trial);
-			if(logger.isDebugEnabled()) {
-				String s = "BondCounts:    ";
-				for (int f = 0; f < trial.getAtomCount(); f++) {
-					s += trial.getConnectedBondsCount(trial.getAtom(f)) + " ";
-				}
-				logger.debug(s);
-				s = "BondOrderSums: ";
-				for (int f = 0; f < trial.getAtomCount(); f++) {
-					s += trial.getBondOrderSum(trial.getAtom(f)) + " ";
-				}
-				logger.debug(s);
+			logger.debug(s);
+			s = "BondOrderSums: ";
+			for (int f = 0; f < trial.getAtomCount(); f++) {
+				s += trial.getBondOrderSum(trial.getAtom(f)) + " ";
 			}
+			logger.debug(s);
 		}
-		while(trial == null || !ConnectivityChecker.isConnected(trial));
 		proposedStructure = trial;
 		
 		return proposedStructure;
 	}
 
+	/**
+	 * Proposes a structure by changing the current structure itself, which
+	 * is returned. The change must be accepted or rejected before the
+	 * next proposal; a structure which is not accepted is undone, as is
+	 * any change of the ring and aromaticity flags made while scoring it.
+	 * Callers which keep the structure must copy it.
+	 *
+	 * @return The current molecule, changed
+	 */
+	public IMolecule proposeStructureInPlace()
+	{
+		logger.debug("RandomGenerator->proposeStructureInPlace() Start");
+		rejectStructure();
+		BondOrderMatrix bonds = bondOrders();
+		moveConnected(bonds);
+		applyMove(molecule, bonds);
+		movePending = true;
+		saveFlags();
+		proposedStructure = molecule;
+		return molecule;
+	}
+
 	/**
 	 * Tell the RandomGenerator to accept the last structure that had been proposed.
 	 */
 	public void acceptStructure()
 	{
-		if (proposedStructure != null)
+		if (movePending)
+		{
+			movePending = false;
+			connected = true;
+		}
+		else if (trialPending)
+		{
+			molecule = proposedStructure;
+			trialPending = false;
+			connected = true;
+		}
+		else if (proposedStructure != null)
 		{
 			molecule = proposedStructure;
 		}
 	}
+
+	/**
+	 * Returns the four atoms whose bonds the last move changed, in the
+	 * structure it was made on, e.g. to update the aromaticity of the
+	 * proposed structure only around them.
+	 *
+	 * @return The atoms, valid until the next proposal
+	 */
+	public IAtom[] getMovedAtoms()
+	{
+		return move.atoms;
+	}
+
+	/**
+	 * Tell the RandomGenerator to reject the last structure that had been
+	 * proposed. A structure proposed in place is changed back.
+	 */
+	public void rejectStructure()
+	{
+		if (movePending)
+		{
+			restoreFlags();
+			move.undo();
+			matrix.undo();
+			movePending = false;
+		}
+		else if (trialPending)
+		{
+			matrix.undo();
+			trialPending = false;
+		}
+	}
+
+	/**
+	 * Returns the bond matrix of the current molecule, loaded when first
+	 * needed, when the molecule is also checked to be connected: the moves
+	 * only keep a molecule connected if it is. The arrays of the matrix are
+	 * reused for the next molecule with as many atoms.
+	 */
+	private BondOrderMatrix bondOrders()
+	{
+		if (!matrixLoaded)
+		{
+			if (matrix == null || matrix.getAtomCount() != molecule.getAtomCount())
+				matrix = new BondOrderMatrix(molecule);
+			else
+				matrix.load(molecule);
+			connected = matrix.isConnected();
+			matrixLoaded = true;
+		}
+		return matrix;
+	}
+
+	/**
+	 * Makes moves in a matrix until one leaves the structure connected.
+	 */
+	private void moveConnected(BondOrderMatrix bonds)
+	{
+		bonds.move(random);
+		while (!(connected ? bonds.isConnectedAfterMove() : bonds.isConnected()))
+		{
+			bonds.undo();
+			bonds.move(random);
+		}
+	}
+
+	private void saveFlags()
+	{
+		int atomCount = molecule.getAtomCount();
+		int bondCount = molecule.getBondCount();
+		if (atomFlags.length < 2 * atomCount)
+			atomFlags = new boolean[2 * atomCount];
+		if (bondFlags.length < 2 * bondCount)
+			bondFlags = new boolean[2 * bondCount];
+		for (int f = 0; f < atomCount; f++)
+		{
+			IAtom atom = molecule.getAtom(f);
+			atomFlags[2 * f] = atom.getFlag(CDKConstants.ISAROMATIC);
+			atomFlags[2 * f + 1] = atom.getFlag(CDKConstants.ISINRING);
+		}
+		for (int f = 0; f < bondCount; f++)
+		{
+			IBond bond = molecule.getBond(f);
+			bondFlags[2 * f] = bond.getFlag(CDKConstants.ISAROMATIC);
+			bondFlags[2 * f + 1] = bond.getFlag(CDKConstants.ISINRING);
+		}
+	}
+
+	private void restoreFlags()
+	{
+		int atomCount = molecule.getAtomCount();
+		int bondCount = molecule.getBondCount();
+		// the flags were saved right after the move, with the same atoms and bonds
+		if (atomFlags.length < 2 * atomCount || bondFlags.length < 2 * bondCount)
+			return;
+		for (int f = 0; f < atomCount; f++)
+		{
+			IAtom atom = molecule.getAtom(f);
+			atom.setFlag(CDKConstants.ISAROMATIC, atomFlags[2 * f]);
+			atom.setFlag(CDKConstants.ISINRING, atomFlags[2 * f + 1]);
+		}
+		for (int f = 0; f < bondCount; f++)
+		{
+			IBond bond = molecule.getBond(f);
+			bond.setFlag(CDKConstants.ISAROMATIC, bondFlags[2 * f]);
+			bond.setFlag(CDKConstants.ISINRING, bondFlags[2 * f + 1]);
+		}
+	}
 	
 	
 	/**
 	 * Randomly chooses four atoms and alters the bonding
 	 * pattern between them according to rules described 
 	 * in "Faulon, JCICS 1996, 36, 731".
+	 * The changed bonds are recorded until the next call.
 	 */
 	public void mutate(IAtomContainer ac)
 	{
 		logger.debug("RandomGenerator->mutate() Start");
-		int nrOfAtoms = ac.getAtomCount();
-		int x1 = 0, x2 = 0, y1 = 0, y2 = 0;
-		double a11 = 0, a12 = 0, a22 = 0, a21 = 0;
-		double b11 = 0, lowerborder = 0, upperborder = 0;
+		BondOrderMatrix bonds = new BondOrderMatrix(ac);
+		bonds.move(random);
+		applyMove(ac, bonds);
+		if (ac == molecule)
+			matrixLoaded = false;
+	}
 
-		IAtom ax1 = null, ax2 = null, ay1 = null, ay2  = null;
-		IBond b1 = null, b2 = null, b3 = null, b4 = null;
-		int[] choices = new int[3];
-		int choiceCounter  = 0;
-		/* We need at least two non-zero bonds in order to be successful */
-		int nonZeroBondsCounter = 0;
-		do
+	/**
+	 * Makes the changes of the last move of a matrix in a container with
+	 * the same atoms, and records them.
+	 */
+	private void applyMove(IAtomContainer ac, BondOrderMatrix bonds)
+	{
+		move.start(ac, ac.getAtom(bonds.getMovedAtom(0)), ac.getAtom(bonds.getMovedAtom(1)),
+			ac.getAtom(bonds.getMovedAtom(2)), ac.getAtom(bonds.getMovedAtom(3)));
+		for (int k = 0; k < bonds.getChangeCount(); k++)
 		{
-			do
-			{
-				nonZeroBondsCounter = 0;
-				/* Randomly choose four distinct atoms */
-				do
-				{
-					// this yields numbers between 0 and (nrOfAtoms - 1)
-					x1 = (int)(Math.random() * nrOfAtoms);
-					x2 = (int)(Math.random() * nrOfAtoms);
-					y1 = (int)(Math.random() * nrOfAtoms);
-					y2 = (int)(Math.random() * nrOfAtoms);
-					logger.debug("RandomGenerator->mutate(): x1, x2, y1, y2: " + x1 + ", " + x2 + ", " + y1 + ", " + y2);
-				}
-				while (!(x1 != x2 && x1 != y1 && x1 != y2 && x2 != y1 && x2 != y2 && y1 != y2));
-				ax1 = ac.getAtom(x1);
-				ay1 = ac.getAtom(y1);
-				ax2 = ac.getAtom(x2);
-				ay2 = ac.getAtom(y2);
-				/* Get four bonds for these four atoms */
-				
-				b1 = ac.getBond(ax1, ay1);
-				if (b1 != null)
-				{
-					a11 = BondManipulator.destroyBondOrder(b1.getOrder());
-					nonZeroBondsCounter ++;				
-				}
-				else
-				{
-					a11 = 0;
-				}
-				
-				b2 = ac.getBond(ax1, ay2);
-				if (b2 != null)
-				{
-					a12 = BondManipulator.destroyBondOrder(b2.getOrder());
-					nonZeroBondsCounter ++;				
-				}
-				else
-				{
-					a12 = 0;
-				}
-
-				b3 = ac.getBond(ax2, ay1);
-				if (b3 != null)
-				{
-					a21 = BondManipulator.destroyBondOrder(b3.getOrder());
-					nonZeroBondsCounter ++;				
-				}
-				else
-				{
-					a21 = 0;
-				}
-				
-				b4 = ac.getBond(ax2, ay2);									
-				if (b4 != null)
-				{
-					a22 = BondManipulator.destroyBondOrder(b4.getOrder());
-					nonZeroBondsCounter ++;
-				}
-				else
-				{
-					a22 = 0;
-				}
-				logger.debug("RandomGenerator->mutate()->The old bond orders: a11, a12, a21, a22: " +  + a11 + ", " + a12 + ", " + a21 + ", " + a22);
-			}while(nonZeroBondsCounter < 2);
-			
-					
-			/* Compute the range for b11 (see Faulons formulae for details) */
-			double[] cmax = {0, a11 - a22, a11 + a12 - 3, a11 + a21 - 3};
-			double[] cmin = {3, a11 + a12, a11 + a21, a11 - a22 + 3};
-			lowerborder = MathTools.max(cmax);
-			upperborder = MathTools.min(cmin);
-			/* Randomly choose b11 != a11 in the range max > r > min */
-			logger.debug("*** New Try ***");
-			logger.debug("a11 = ", a11);
-			logger.debug("upperborder = ", upperborder);
-			logger.debug("lowerborder = ", lowerborder);
-			choiceCounter = 0;
-			for (double f = lowerborder; f <= upperborder; f++)
-			{
-				if (f != a11)
-				{
-					choices[choiceCounter] = (int)f;
-					choiceCounter ++;
-				}
-			}
-			if (choiceCounter > 0)
-			{
-				b11 = choices[(int)(Math.random() * choiceCounter)];
-			}
-
-			logger.debug("b11 = " + b11);
+			IAtom a1 = ac.getAtom(bonds.getChangedFrom(k));
+			IAtom a2 = ac.getAtom(bonds.getChangedTo(k));
+			IBond bond = bonds.getOldOrder(k) == 0 ? null : ac.getBond(a1, a2);
+			setBond(ac, bond, a1, a2, bonds.getNewOrder(k));
 		}
-		while (!(b11 != a11 && (b11 >= lowerborder && b11 <= upperborder)));
+		logger.debug("RandomGenerator->mutate(): x1, x2, y1, y2: " + bonds.getMovedAtom(0) + ", "
+			+ bonds.getMovedAtom(1) + ", " + bonds.getMovedAtom(2) + ", " + bonds.getMovedAtom(3));
+	}
 
-		double b12 = a11 + a12 - b11;
-		double b21 = a11 + a21 - b11;
-		double b22 = a22 - a11 + b11;
-		
-		
-		if (b11 > 0)
-		{
-			if (b1 == null)
-			{
-				b1 = ac.getBuilder().newInstance(IBond.class,
-					ax1, ay1, BondManipulator.createBondOrder(b11)
-				);
-				ac.addBond(b1);
-			}
-			else
-			{
-				b1.setOrder(BondManipulator.createBondOrder(b11));
-			}
-		}
-		else if (b1 != null)
-		{
-			ac.removeBond(b1);
-		}
-		
-		if (b12 > 0) 
+	/**
+	 * Gives the bond between two atoms a new order, adding or removing it
+	 * as needed, and records the change.
+	 */
+	private void setBond(IAtomContainer ac, IBond bond, IAtom a1, IAtom a2, double order)
+	{
+		if (order > 0)
 		{
-			if (b2 == null)
+			if (bond == null)
 			{
-				b2 = ac.getBuilder().newInstance(IBond.class,
-					ax1, ay2, BondManipulator.createBondOrder(b12)
+				bond = ac.getBuilder().newInstance(IBond.class,
+					a1, a2, BondManipulator.createBondOrder(order)
 				);
-				ac.addBond(b2);
+				ac.addBond(bond);
+				move.record(Move.ADDED, bond, null);
 			}
 			else
 			{
-				b2.setOrder(BondManipulator.createBondOrder(b12));
+				move.record(Move.CHANGED, bond, bond.getOrder());
+				bond.setOrder(BondManipulator.createBondOrder(order));
 			}
 		}
-		else if (b2 != null)
+		else if (bond != null)
 		{
-			ac.removeBond(b2);
+			ac.removeBond(bond);
+			move.record(Move.REMOVED, bond, bond.getOrder());
 		}
-		
-		if (b21 > 0) 
+	}
+
+	/**
+	 * The bonds changed by one Faulon move, with their old orders.
+	 */
+	private static class Move
+	{
+		static final int ADDED = 0;
+		static final int REMOVED = 1;
+		static final int CHANGED = 2;
+
+		private IAtomContainer container;
+		private final IAtom[] atoms = new IAtom[4];
+		private int count;
+		private final int[] kinds = new int[4];
+		private final IBond[] bonds = new IBond[4];
+		private final IBond.Order[] orders = new IBond.Order[4];
+
+		void start(IAtomContainer container, IAtom x1, IAtom x2, IAtom y1, IAtom y2)
 		{
-			if (b3 == null)
-			{
-				b3 = ac.getBuilder().newInstance(IBond.class,
-					ax2, ay1, BondManipulator.createBondOrder(b21)
-				);
-				ac.addBond(b3);
-			}
-			else
-			{
-				b3.setOrder(BondManipulator.createBondOrder(b21));
-			}
+			this.container = container;
+			atoms[0] = x1;
+			atoms[1] = x2;
+			atoms[2] = y1;
+			atoms[3] = y2;
+			this.count = 0;
 		}
-		else if (b3 != null)
+
+		void record(int kind, IBond bond, IBond.Order order)
 		{
-			ac.removeBond(b3);
+			kinds[count] = kind;
+			bonds[count] = bond;
+			orders[count] = order;
+			count++;
 		}
 
-		if (b22 > 0) 
+		/**
+		 * Changes the bonds back, last change first.
+		 */
+		void undo()
 		{
-			if (b4 == null)
-			{
-				b4 = ac.getBuilder().newInstance(IBond.class,
-					ax2, ay2, BondManipulator.createBondOrder(b22)
-				);
-				ac.addBond(b4);
-			}
-			else
+			for (int k = count - 1; k >= 0; k--)
 			{
-				b4.setOrder(BondManipulator.createBondOrder(b22));
+				switch (kinds[k])
+				{
+				case ADDED:
+					container.removeBond(bonds[k]);
+					break;
+				case REMOVED:
+					container.addBond(bonds[k]);
+					break;
+				default:
+					bonds[k].setOrder(orders[k]);
+				}
 			}
+			count = 0;
 		}
-		else if (b4 != null)
-		{
-			ac.removeBond(b4);
-		}
-		
-		logger.debug("a11 a12 a21 a22: " + a11 + " " + a12 + " " + a21 + " " + a22);
-		logger.debug("b11 b12 b21 b22: " + b11 + " " + b12 + " " + b21 + " " + b22);
 	}
 
 	
@@ -326,6 +434,18 @@ public class RandomGenerator {
 	 */
 	public void setMolecule(IMolecule molecule)
 	{
+		// a proposal made in place stays in the old molecule
+		movePending = false;
+		if (molecule != this.molecule)
+		{
+			matrixLoaded = false;
+			connected = false;
+		}
+		else if (trialPending)
+		{
+			matrix.undo();
+		}
+		trialPending = false;
 		this.molecule = molecule;	
 	}
 
@@ -81,9 +81,19 @@ public class SingleStructureRandomGenerator {
 	 * Constructor for the SingleStructureRandomGenerator object.
 	 */
 	public SingleStructureRandomGenerator(long seed) throws java.lang.Exception
+	{
+		this(new Random(seed));
+	}
+
+	/**
+	 * Constructor for the SingleStructureRandomGenerator object.
+	 *
+	 * @param random The random numbers for choosing the bonds
+	 */
+	public SingleStructureRandomGenerator(Random random) throws java.lang.Exception
 	{
 		satCheck = new SaturationChecker();
-		random = new Random(seed);
+		this.random = random;
 	}
 
 	/**
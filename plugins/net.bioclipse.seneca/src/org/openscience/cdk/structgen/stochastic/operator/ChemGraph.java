@@ -26,10 +26,10 @@ package org.openscience.cdk.structgen.stochastic.operator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.openscience.cdk.graph.matrix.ConnectionMatrix;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.math.RandomNumbersTool;
 
 /**
  * @cdk.module     structgen
@@ -48,9 +48,17 @@ public class ChemGraph
 	protected boolean[] visited;
 	/*Depth first traversal of the graph*/
 	protected List<Integer> subGraph;
+	/*Random numbers for choosing the seed atom and the order of neighbours*/
+	protected Random random;
 		
 	public ChemGraph(IAtomContainer chrom)
 	{
+		this(chrom, new Random());
+	}
+
+	public ChemGraph(IAtomContainer chrom, Random random)
+	{
+		this.random = random;
 		dim = chrom.getAtomCount();
 		numAtoms = (int)(dim/2);
 		contab = new double[dim][dim];
@@ -65,7 +73,7 @@ public class ChemGraph
 		subGraph = new ArrayList<Integer>();		
 		visited = new boolean[dim];			 		
 		for (int atom = 0; atom < dim; atom++)	visited[atom] = false;
-        int seedAtom = RandomNumbersTool.randomInt(0,dim-1);
+        int seedAtom = random.nextInt(dim);
 		recursiveDFT(seedAtom);
 	
 		return subGraph;
@@ -91,7 +99,7 @@ public class ChemGraph
             }
 			while (adjSet.size() > 0)
 			{
-				int adjIndex = RandomNumbersTool.randomInt(0,adjSet.size()-1);
+				int adjIndex = random.nextInt(adjSet.size());
 				recursiveDFT(((Integer)adjSet.get(adjIndex)).intValue());
 				adjSet.remove(adjIndex);
 			}
@@ -107,7 +115,7 @@ public class ChemGraph
 		subGraph = new ArrayList<Integer>();		
 		visited = new boolean[dim];			 		
 		for (int atom = 0; atom < dim; atom++)	visited[atom] = false;
-        int seedAtom = RandomNumbersTool.randomInt(0,dim-1);
+        int seedAtom = random.nextInt(dim);
 		
 		List<Integer> atomQueue = new ArrayList<Integer>();
 		atomQueue.add(Integer.valueOf(seedAtom));
@@ -130,7 +138,7 @@ public class ChemGraph
             }
 			while (adjSet.size() > 0)
 			{
-				int adjIndex = RandomNumbersTool.randomInt(0,adjSet.size()-1);
+				int adjIndex = random.nextInt(adjSet.size());
 				atomQueue.add((Integer)adjSet.get(adjIndex));
 				visited[((Integer)adjSet.get(adjIndex)).intValue()] = true;
 				adjSet.remove(adjIndex);
@@ -22,13 +22,13 @@ package org.openscience.cdk.structgen.stochastic.operator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.graph.ConnectivityChecker;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IAtomContainerSet;
-import org.openscience.cdk.math.RandomNumbersTool;
 import org.openscience.cdk.structgen.stochastic.PartialFilledStructureMerger;
 import org.openscience.cdk.tools.SaturationChecker;
 
@@ -43,6 +43,8 @@ import org.openscience.cdk.tools.SaturationChecker;
 public class CrossoverMachine  
 {
 	PartialFilledStructureMerger pfsm;
+	/** the random numbers used if none are given to doCrossover */
+	Random random;
 	
 	/** selects a partitioning mode*/
 	int splitMode = 2;	
@@ -59,8 +61,19 @@ public class CrossoverMachine
      * Constructs a new CrossoverMachine operator.
      */
     public CrossoverMachine()
+    {
+		this(new Random());
+    }
+
+    /**
+     * Constructs a new CrossoverMachine operator.
+     *
+     * @param random The random numbers for dividing the atoms.
+     */
+    public CrossoverMachine(Random random)
     {
 		pfsm = new PartialFilledStructureMerger();
+		this.random = random;
     }
 	
 	/**
@@ -74,6 +87,19 @@ public class CrossoverMachine
      * @exception CDKException if it was not possible to form offsprings.
      */
     public List<IAtomContainer> doCrossover(IAtomContainer dad, IAtomContainer mom) throws CDKException
+    {
+    	return doCrossover(dad, mom, random);
+    }
+
+	/**
+     * Performs the n point crossover of two {@link IAtomContainer}, see
+     * doCrossover(IAtomContainer, IAtomContainer).
+     *
+     * @param random The random numbers for dividing the atoms.
+     * @return The children.
+     * @exception CDKException if it was not possible to form offsprings.
+     */
+    public List<IAtomContainer> doCrossover(IAtomContainer dad, IAtomContainer mom, Random random) throws CDKException
     {
     	int tries=0;
     	while(true){
@@ -91,7 +117,7 @@ public class CrossoverMachine
 				for (int i = 0; i < dim; i++)
 					redAtoms.add(Integer.valueOf(i));
 				for (int i = 0; i < (dim - numatoms); i++)
-				{   int ranInt = RandomNumbersTool.randomInt(0,redAtoms.size()-1);
+				{   int ranInt = random.nextInt(redAtoms.size());
 					redAtoms.remove(Integer.valueOf(ranInt));
 					blueAtoms.add(Integer.valueOf(ranInt));
 				}
@@ -100,7 +126,7 @@ public class CrossoverMachine
 			else
 			{
 				/*split graph using depth/breadth first traverse*/
-				ChemGraph graph = new ChemGraph(dad);
+				ChemGraph graph = new ChemGraph(dad, random);
 				graph.setNumAtoms(numatoms);
 				if (splitMode==SPLIT_MODE_DEPTH_FIRST)
 				{